@@ -0,0 +1,44 @@
+#!/bin/sh
+#
+# Copyright 2026 University of Oslo, Norway
+#
+# This file is part of Cerebrum.
+#
+# Cerebrum is free software; you can redistribute it and/or modify it
+# under the terms of the GNU General Public License as published by
+# the Free Software Foundation; either version 2 of the License, or
+# (at your option) any later version.
+#
+# Cerebrum is distributed in the hope that it will be useful, but
+# WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+# General Public License for more details.
+#
+# You should have received a copy of the GNU General Public License
+# along with Cerebrum; if not, write to the Free Software Foundation,
+# Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+#
+# Runs lib/JBofh.jar with the class data sharing archive lib/JBofh.jsa,
+# when there is one that is newer than the jar.  "ant cds" makes the
+# archive with "jbofh --cds-training".  The JVM only uses the archive
+# with the jar path it was made with, so both are found from the
+# physical path of this script.  JBOFH_JAVA_OPTS is passed to java.
+
+lib=$(cd "$(dirname "$0")/../lib" && pwd -P) || exit 1
+jar="$lib/JBofh.jar"
+jsa="$lib/JBofh.jsa"
+java="${JAVA_HOME:+$JAVA_HOME/bin/}java"
+
+if [ "$1" = "--cds-training" ]; then
+    rm -f "$jsa"
+    exec "$java" $JBOFH_JAVA_OPTS -XX:ArchiveClassesAtExit="$jsa" \
+        -cp "$jar" no.uio.jbofh.CdsTraining
+fi
+if [ -f "$jsa" ] && [ "$jsa" -nt "$jar" ]; then
+    # A stale or unusable archive is ignored without a warning
+    exec "$java" $JBOFH_JAVA_OPTS -XX:SharedArchiveFile="$jsa" -Xshare:auto \
+        -Xlog:cds=off -Xlog:cds+dynamic=off -jar "$jar" "$@"
+fi
+exec "$java" $JBOFH_JAVA_OPTS -jar "$jar" "$@"
+
+# arch-tag: 2b7d4e91-c3a8-4f56-9e1d-8a6f0c3b5d27
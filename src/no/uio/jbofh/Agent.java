@@ -0,0 +1,406 @@
+/*
+ * Copyright 2026 University of Oslo, Norway
+ *
+ * This file is part of Cerebrum.
+ *
+ * Cerebrum is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerebrum is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerebrum; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package no.uio.jbofh;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jdk.net.ExtendedSocketOptions;
+import jdk.net.UnixDomainPrincipal;
+
+/**
+ * Keeps a logged in jbofh running, and runs bofhd commands for local
+ * clients that connect to a UNIX domain socket.  A client pays for
+ * neither JVM warm-up, TLS setup, login nor <code>get_commands</code>,
+ * and each client is served on its own thread, so they can run at the
+ * same time.
+ *
+ * Start the agent with <code>jbofh --agent</code>, and run commands
+ * with <code>jbofh call user info foo</code>, or with
+ * <code>java -cp JBofh.jar no.uio.jbofh.Agent user info foo</code>,
+ * which loads even fewer classes.  The arguments are quoted as needed
+ * and parsed as a command line, so a <code>|</code> argument on its
+ * own starts a pipeline; a single argument is taken as the command
+ * line itself, as in <code>jbofh call "group list foo | count"</code>.
+ * There is no one to prompt, so all arguments must be given, and an
+ * expired session can not be renewed: restart the agent.
+ *
+ * The socket is in <code>~/.jbofh</code> by default, and only the
+ * user running the agent may connect to it: it is private before it
+ * is put in place, and a client is refused unless
+ * <code>SO_PEERCRED</code> shows it is that user.  A client sends the
+ * number of arguments and each argument; the agent sends frames of
+ * output as the command runs, and a frame with the exit status: 0 if
+ * the command succeeded, 1 if it failed and 2 if it could not be
+ * parsed or is not known.
+ */
+class Agent {
+    static final byte OUTPUT = 'o', EXIT = 'x';
+    static final int OK = JBofh.EXIT_OK, FAILED = JBofh.EXIT_FAILED,
+        USAGE = JBofh.EXIT_USAGE;
+    /** Output is sent at least this often, in milliseconds */
+    static final long FLUSH_INTERVAL = 100;
+    JBofh jbofh;
+    Path path;
+    private final ThreadLocal current = new ThreadLocal();
+    private final ExecutorService executor;
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * One client connection.
+     */
+    class Session implements Runnable {
+        final SocketChannel channel;
+        DataOutputStream out;
+        Thread thread;
+        ScheduledFuture flushing;
+        /** true if there is output that has not been flushed */
+        boolean dirty = false;
+        boolean broken = false, done = false;
+
+        Session(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void run() {
+            current.set(this);
+            thread = Thread.currentThread();
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel)));
+                out = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(channel), 65536));
+                int argc = in.readInt();
+                String[] argv = new String[argc];
+                for (int i = 0; i < argc; i++) argv[i] = in.readUTF();
+                flushing = flusher.scheduleWithFixedDelay(this::flushOutput,
+                    FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+                exit(runCommand(argv));
+            } catch (EOFException e) {
+                JBofh.logger.debug("agent client went away");
+            } catch (IOException e) {
+                JBofh.logger.debug("agent client failed", e);
+            } finally {
+                if (flushing != null) flushing.cancel(false);
+                synchronized (this) {
+                    done = true;
+                }
+                current.remove();
+                try {
+                    channel.close();
+                } catch (IOException e) { }  // Ignore
+                Thread.interrupted();
+            }
+        }
+
+        private int runCommand(String[] argv) {
+            long start = System.currentTimeMillis();
+            String cmdLine = "";
+            ArrayList args;
+            try {
+                // A single argument is a whole command line
+                if (argv.length == 1) {
+                    cmdLine = argv[0];
+                } else {
+                    StringBuilder sb = new StringBuilder();
+                    for (int i = 0; i < argv.length; i++) {
+                        if (i > 0) sb.append(' ');
+                        sb.append(CommandLine.quote(argv[i]));
+                    }
+                    cmdLine = sb.toString();
+                }
+                args = jbofh.cLine.splitCommand(cmdLine);
+            } catch (ParseException e) {
+                jbofh.showMessage("Error parsing command: "+e.getMessage(), true);
+                return USAGE;
+            }
+            if (args.isEmpty()) {
+                jbofh.showMessage("Usage: call command [args ...]", true);
+                return USAGE;
+            }
+            try {
+                return jbofh.runNonInteractive(args);
+            } finally {
+                JBofh.logger.debug("agent ran "+cmdLine+" in "+
+                    (System.currentTimeMillis() - start)+" ms");
+            }
+        }
+
+        synchronized void write(String msg, boolean crlf) {
+            if (broken) return;
+            try {
+                byte[] b = (crlf ? msg+"\n" : msg).getBytes(StandardCharsets.UTF_8);
+                out.writeByte(OUTPUT);
+                out.writeInt(b.length);
+                out.write(b);
+                dirty = true;
+            } catch (IOException e) {
+                clientGone(e);
+            }
+        }
+
+        /**
+         * Run by <code>flusher</code> every <code>FLUSH_INTERVAL</code>
+         * while the command runs.
+         */
+        synchronized void flushOutput() {
+            if (! dirty || broken || done) return;
+            try {
+                out.flush();
+                dirty = false;
+            } catch (IOException e) {
+                clientGone(e);
+            }
+        }
+
+        /**
+         * The client is gone, so stop the command.
+         */
+        private void clientGone(IOException e) {
+            broken = true;
+            JBofh.logger.debug("agent client went away: "+e.getMessage());
+            thread.interrupt();
+            jbofh.bc.abort(thread);
+        }
+
+        private synchronized void exit(int status) throws IOException {
+            if (broken) return;
+            out.writeByte(EXIT);
+            out.writeInt(status);
+            out.flush();
+        }
+    }
+
+    /**
+     * @param jbofh a logged in jbofh
+     * @param path the socket, or null for the default
+     */
+    Agent(JBofh jbofh, Path path) {
+        this.jbofh = jbofh;
+        this.path = path != null ? path : defaultPath();
+        final AtomicInteger threadNo = new AtomicInteger();
+        executor = Executors.newCachedThreadPool((Runnable r) -> {
+            Thread t = new Thread(r, "jbofh-agent-"+threadNo.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        flusher = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+            Thread t = new Thread(r, "jbofh-agent-flush");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    static Path defaultPath() {
+        return Paths.get(System.getProperty("user.home"), ".jbofh", "agent.sock");
+    }
+
+    /**
+     * Called by <code>JBofh.showMessage</code>.  Output from a thread
+     * that runs a client command goes to that client.
+     *
+     * @return true if the message was taken care of
+     */
+    boolean captureMessage(String msg, boolean crlf) {
+        Session s = (Session) current.get();
+        if (s == null) return false;
+        s.write(msg, crlf);
+        return true;
+    }
+
+    /**
+     * Serve clients until the program is stopped.
+     *
+     * @exception IOException if the socket can not be set up
+     */
+    void serve() throws IOException {
+        Path dir = path.toAbsolutePath().getParent();
+        boolean posix = FileSystems.getDefault().supportedFileAttributeViews()
+            .contains("posix");
+        if (dir != null && ! Files.isDirectory(dir)) {
+            if (posix) {
+                Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rwx------")));
+            } else {
+                Files.createDirectories(dir);
+            }
+        }
+        if (Files.exists(path)) {
+            if (isListening(path))
+                throw new IOException("An agent is already running at "+path);
+            // Left behind by an agent that did not stop cleanly
+            Files.delete(path);
+        }
+        // Bind in a directory only we may enter, and move the socket in
+        // place once it is private, so no one can connect before that
+        FileAttribute[] attrs = posix ? new FileAttribute[] {
+            PosixFilePermissions.asFileAttribute(
+                PosixFilePermissions.fromString("rwx------")) }
+            : new FileAttribute[0];
+        Path tmp = Files.createTempDirectory(dir, ".agent", attrs);
+        Path bound = tmp.resolve("agent.sock");
+        ServerSocketChannel server =
+            ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            server.bind(UnixDomainSocketAddress.of(bound));
+            if (posix) Files.setPosixFilePermissions(bound,
+                PosixFilePermissions.fromString("rw-------"));
+            Files.move(bound, path, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        } finally {
+            Files.deleteIfExists(bound);
+            Files.delete(tmp);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                Files.deleteIfExists(path);
+                jbofh.bc.logout();
+            } catch (IOException | BofhdException e) { }  // Ignore
+        }, "jbofh-agent-stop"));
+        jbofh.showMessage("Agent listening on "+path, true);
+        String user = System.getProperty("user.name");
+        while (true) {
+            SocketChannel client = server.accept();
+            if (! isOwner(client, user)) {
+                JBofh.logger.warn("agent refused a client that is not "+user);
+                client.close();
+                continue;
+            }
+            executor.execute(new Session(client));
+        }
+    }
+
+    private static boolean isListening(Path path) {
+        try {
+            SocketChannel.open(UnixDomainSocketAddress.of(path)).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if <code>client</code> runs as <code>user</code>,
+     * and false if the platform can not tell
+     */
+    private boolean isOwner(SocketChannel client, String user) {
+        if (! client.supportedOptions().contains(ExtendedSocketOptions.SO_PEERCRED))
+            return false;
+        try {
+            UnixDomainPrincipal p = (UnixDomainPrincipal)
+                client.getOption(ExtendedSocketOptions.SO_PEERCRED);
+            return p.user().getName().equals(user);
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Run a command in the agent at <code>path</code>, copying its
+     * output to <code>out</code>.
+     *
+     * @return the exit status
+     * @exception IOException if there is no agent, or it went away
+     */
+    static int call(Path path, String[] argv, int from, PrintStream out)
+                                                        throws IOException {
+        try (SocketChannel channel = SocketChannel.open(
+                UnixDomainSocketAddress.of(path))) {
+            DataOutputStream req = new DataOutputStream(new BufferedOutputStream(
+                Channels.newOutputStream(channel)));
+            req.writeInt(argv.length - from);
+            for (int i = from; i < argv.length; i++) req.writeUTF(argv[i]);
+            req.flush();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(channel), 65536));
+            byte[] buf = new byte[8192];
+            while (true) {
+                byte type = in.readByte();
+                if (type == EXIT) {
+                    out.flush();
+                    return in.readInt();
+                }
+                if (type != OUTPUT) throw new IOException("Bad frame "+type);
+                int n = in.readInt();
+                if (n > buf.length) buf = new byte[Math.max(n, buf.length * 2)];
+                in.readFully(buf, 0, n);
+                out.write(buf, 0, n);
+            }
+        } catch (EOFException e) {
+            throw new IOException("The agent went away", e);
+        }
+    }
+
+    /**
+     * The thin client: <code>[--socket path] command [args ...]</code>.
+     */
+    public static void main(String[] args) {
+        Path path = defaultPath();
+        int from = 0;
+        if (args.length > 1 && args[0].equals("--socket")) {
+            path = Paths.get(args[1]);
+            from = 2;
+        }
+        if (from >= args.length) {
+            System.err.println("Usage: call [--socket path] command [args ...]");
+            System.exit(USAGE);
+        }
+        try {
+            System.exit(call(path, args, from, System.out));
+        } catch (IOException e) {
+            System.err.println("No jbofh agent at "+path+" ("+e.getMessage()+
+                               "), start one with jbofh --agent");
+            System.exit(FAILED);
+        }
+    }
+}
+
+// arch-tag: 3e7b0c58-a2d4-4f19-86e5-c9f1d7a4b03e
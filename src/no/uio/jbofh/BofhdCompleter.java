@@ -27,10 +27,14 @@
 package no.uio.jbofh;
 
 import java.text.ParseException;
-import java.util.TreeMap;
-import java.util.Iterator;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
 
 import org.apache.log4j.Category;
 import jline.Completor;
@@ -40,22 +44,106 @@ import jline.Completor;
  * Tab-completion utility for use with readline.  Also supports translation 
  * of short-form of unique commands to full-form.
  *
+ * The command words are kept in a trie where each node holds its words
+ * in a sorted array, so the words that start with what has been typed
+ * are a range found by binary search.  Completion works at any depth:
+ * once the words name a command, the arguments are completed from the
+ * values given for parameters of the same type earlier in the session.
+ * Words and values are listed with the most used first.
+ *
  * @author  runefro
  */
 
 class BofhdCompleter implements Completor {
+    /** Most values remembered for each parameter type */
+    static final int MAX_VALUES = 1000;
     JBofh jbofh;
     ArrayList possible;
     Iterator iter;
     Category logger;
-    TreeMap complete;
+    Node complete;
+    /** The <code>get_commands</code> map this was built from */
+    HashMap source;
     private boolean enabled;
+    /** protocol command -> times used */
+    private final HashMap commandUses = new HashMap();
+    /** parameter type -> TreeMap of value -> times used */
+    private final HashMap valueUses = new HashMap();
+
+    /**
+     * One level of the trie.  <code>values</code> holds the next
+     * <code>Node</code> or, for the last word of a command, the
+     * protocol command; <code>uses</code> counts the commands run
+     * through each word.
+     */
+    static final class Node {
+        String[] words = new String[4];
+        Object[] values = new Object[4];
+        int[] uses = new int[4];
+        int size = 0;
+
+        /**
+         * @return the index of the first word that starts with
+         * <code>prefix</code>, or where it would be
+         */
+        int from(String prefix) {
+            int i = Arrays.binarySearch(words, 0, size, prefix);
+            return i < 0 ? -i - 1 : i;
+        }
+
+        /**
+         * @return the index after the last word that starts with
+         * <code>prefix</code>
+         */
+        int to(String prefix, int from) {
+            int i = Arrays.binarySearch(words, from, size,
+                                        prefix+Character.MAX_VALUE);
+            return i < 0 ? -i - 1 : i + 1;
+        }
+
+        Object get(String word) {
+            int i = Arrays.binarySearch(words, 0, size, word);
+            return i < 0 ? null : values[i];
+        }
+
+        void put(String word, Object value) {
+            int i = Arrays.binarySearch(words, 0, size, word);
+            if (i >= 0) {
+                values[i] = value;
+                return;
+            }
+            i = -i - 1;
+            if (size == words.length) {
+                words = Arrays.copyOf(words, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+                uses = Arrays.copyOf(uses, size * 2);
+            }
+            System.arraycopy(words, i, words, i + 1, size - i);
+            System.arraycopy(values, i, values, i + 1, size - i);
+            System.arraycopy(uses, i, uses, i + 1, size - i);
+            words[i] = word;
+            values[i] = value;
+            uses[i] = 0;
+            size++;
+        }
+
+        /**
+         * @return the index of <code>word</code>, or of the only word
+         * it is a prefix of, or -1
+         */
+        int resolve(String word) {
+            int from = from(word);
+            int to = to(word, from);
+            if (from < to && words[from].equals(word)) return from;
+            return to - from == 1 ? from : -1;
+        }
+    }
 
     BofhdCompleter(JBofh jbofh, Category logger) {
         this.jbofh = jbofh;
         this.logger = logger;
         this.enabled = false;
-        complete = new TreeMap();
+        complete = new Node();
         //buildCompletionHash();
     }
     
@@ -66,27 +154,26 @@ class BofhdCompleter implements Completor {
     /**
      * {   'access': {   'disk': 'access_disk', ... } }
      */
-    @SuppressWarnings("unchecked")
-    public void addCompletion(ArrayList cmd_parts, String target) 
+    public void addCompletion(List cmd_parts, String target) 
         throws BofhdException{
-        TreeMap parent = complete;
+        Node parent = complete;
         for(Iterator e = (cmd_parts).iterator(); e.hasNext(); ) {
             String protoCmd = (String) e.next();
             Object tmp = parent.get(protoCmd);
             if(tmp == null) {
                 if(e.hasNext()) {
-                    parent.put(protoCmd, tmp = new TreeMap());
-                    parent = (TreeMap) tmp;
+                    parent.put(protoCmd, tmp = new Node());
+                    parent = (Node) tmp;
                 } else {
                     parent.put(protoCmd, target);
                 }
             } else {
-                if(tmp instanceof TreeMap) {
+                if(tmp instanceof Node) {
                     if(! e.hasNext()) {
                         throw new BofhdException(
                             "Existing map target for"+cmd_parts);
                     }
-                    parent = (TreeMap) tmp;
+                    parent = (Node) tmp;
                 } else {
                     if(e.hasNext()) {
                         throw new BofhdException(
@@ -121,28 +208,23 @@ class BofhdCompleter implements Completor {
     @SuppressWarnings("unchecked")
     public ArrayList analyzeCommand(ArrayList cmd, int expat)
             throws AnalyzeCommandException { 
-        TreeMap parent = complete;
+        Node parent = complete;
         ArrayList cmdStack = new ArrayList();
         int lvl = 0;
 
         while(expat < 0 || lvl <= expat) {
             String this_cmd = null;
             if (lvl < cmd.size()) this_cmd = (String) cmd.get(lvl);
-            ArrayList thisLevel = new ArrayList();
-
-            for(Iterator enumCompleter = parent.keySet().iterator(); 
-                enumCompleter.hasNext(); ) {
-                String this_key = (String) enumCompleter.next();
-                if(this_cmd == null || this_key.startsWith(this_cmd)) {
-                    thisLevel.add(this_key);
-                    if(this_key.equals(this_cmd) && expat < 1) {
-                        // expanding, and one command matched exactly
-                        thisLevel.clear();
-                        thisLevel.add(this_key);
-                        break;
-                    }
-                }
+            int from = 0, to = parent.size;
+            if (this_cmd != null) {
+                from = parent.from(this_cmd);
+                to = parent.to(this_cmd, from);
+                // expanding, and one command matched exactly
+                if (expat < 1 && from < to && parent.words[from].equals(this_cmd))
+                    to = from + 1;
             }
+            ArrayList thisLevel = new ArrayList(to - from);
+            for (int i = from; i < to; i++) thisLevel.add(parent.words[i]);
             if (lvl == expat)
                 return thisLevel;
             if(thisLevel.size() != 1 || 
@@ -155,22 +237,143 @@ class BofhdCompleter implements Completor {
                 }
                 throw new AnalyzeCommandException(cmd+" -> "+thisLevel+","+lvl);
             }
-            String cmdPart = (String) thisLevel.get(0);
-            cmdStack.add(cmdPart);
-            Object tmp = parent.get(cmdPart);
-            if(!(tmp instanceof TreeMap)) {
+            cmdStack.add(parent.words[from]);
+            Object tmp = parent.values[from];
+            if(!(tmp instanceof Node)) {
                 if(expat < 0){
                     cmdStack.add(tmp);
                     return cmdStack;
                 }
                 return new ArrayList();  // No completions
             }
-            parent = (TreeMap) tmp;
+            parent = (Node) tmp;
             lvl++;
         }
         logger.error("oops: analyzeCommand "+parent+", "+lvl+", "+expat);
         throw new RuntimeException("Internal error");  // Not reached
     }
+
+    /**
+     * Count a command that is run, for the order of completions.
+     *
+     * @param translated what <code>analyzeCommand</code> returned for it
+     * @param args its arguments, whose values are remembered for
+     * completing parameters of the same type; passwords are not
+     */
+    @SuppressWarnings("unchecked")
+    synchronized void recordUse(List translated, List args) {
+        String protoCmd = (String) translated.get(translated.size() - 1);
+        List words = translated.subList(0, translated.size() - 1);
+        if (! countWords(words, 1)) return;
+        Integer n = (Integer) commandUses.get(protoCmd);
+        commandUses.put(protoCmd, n == null ? 1 : n + 1);
+        CommandTable table = jbofh == null ? null : jbofh.bc.commands;
+        CommandTable.Command c = table == null ? null : table.get(protoCmd);
+        if (c == null || args == null) return;
+        for (int i = 0; i < args.size() && i < c.params.length; i++) {
+            CommandTable.Param param = c.params[i];
+            if (param.password || param.type == null) continue;
+            Object arg = args.get(i);
+            if (arg instanceof String) {
+                countValue(param.type, (String) arg, 1);
+            } else if (arg instanceof List) {
+                // (a b c) runs the command once for each
+                for (Iterator e = ((List) arg).iterator(); e.hasNext(); ) {
+                    Object v = e.next();
+                    if (v instanceof String) countValue(param.type, (String) v, 1);
+                }
+            }
+        }
+    }
+
+    private boolean countWords(List words, int n) {
+        Node node = complete;
+        int[] path = new int[words.size()];
+        for (int lvl = 0; lvl < words.size(); lvl++) {
+            int i = node == null ? -1 :
+                Arrays.binarySearch(node.words, 0, node.size, words.get(lvl));
+            if (i < 0) return false;
+            path[lvl] = i;
+            node = lvl + 1 < words.size() ? (Node) node.values[i] : null;
+        }
+        node = complete;
+        for (int lvl = 0; lvl < path.length; lvl++) {
+            node.uses[path[lvl]] += n;
+            if (lvl + 1 < path.length) node = (Node) node.values[path[lvl]];
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void countValue(String type, String value, int n) {
+        if (value.length() == 0) return;
+        TreeMap values = (TreeMap) valueUses.get(type);
+        if (values == null) valueUses.put(type, values = new TreeMap());
+        Integer old = (Integer) values.get(value);
+        if (old == null && values.size() >= MAX_VALUES) return;
+        values.put(value, old == null ? n : old + n);
+    }
+
+    /**
+     * Keep what was used with the completer that this one replaces.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized void takeUses(BofhdCompleter old) {
+        synchronized (old) {
+            CommandTable table = jbofh == null ? null : jbofh.bc.commands;
+            for (Iterator e = old.commandUses.entrySet().iterator(); e.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) e.next();
+                String protoCmd = (String) entry.getKey();
+                CommandTable.Command c = table == null ? null : table.get(protoCmd);
+                if (c != null && countWords(c.words, (Integer) entry.getValue()))
+                    commandUses.put(protoCmd, entry.getValue());
+            }
+            for (Iterator e = old.valueUses.entrySet().iterator(); e.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) e.next();
+                valueUses.put(entry.getKey(), new TreeMap((TreeMap) entry.getValue()));
+            }
+        }
+    }
+
+    /**
+     * @return the words of <code>node</code> from index
+     * <code>from</code> to <code>to</code>, the most used first
+     */
+    @SuppressWarnings("unchecked")
+    private ArrayList ranked(final Node node, int from, int to) {
+        Integer[] order = new Integer[to - from];
+        for (int i = 0; i < order.length; i++) order[i] = from + i;
+        // Stable, so words used equally often stay in order
+        Arrays.sort(order, (a, b) -> node.uses[b] - node.uses[a]);
+        ArrayList ret = new ArrayList(order.length);
+        for (int i = 0; i < order.length; i++) ret.add(node.words[order[i]]);
+        return ret;
+    }
+
+    /**
+     * @return the values used before for argument number
+     * <code>argNo</code> of <code>protoCmd</code> that start with
+     * <code>prefix</code>, the most used first
+     */
+    @SuppressWarnings("unchecked")
+    private ArrayList completeArg(String protoCmd, int argNo, String prefix) {
+        ArrayList ret = new ArrayList();
+        CommandTable table = jbofh.bc.commands;
+        CommandTable.Command c = table == null ? null : table.get(protoCmd);
+        if (c == null || argNo >= c.params.length) return ret;
+        CommandTable.Param param = c.params[argNo];
+        if (param.password || param.type == null) return ret;
+        final TreeMap values = (TreeMap) valueUses.get(param.type);
+        if (values == null) return ret;
+        ret.addAll(values.subMap(prefix, prefix+Character.MAX_VALUE).keySet());
+        ret.sort((a, b) -> (Integer) values.get(b) - (Integer) values.get(a));
+        return ret;
+    }
+
+    /**
+     * Complete the word at the cursor: a command word at any level, or
+     * an argument of the command the words before it name.
+     */
     @SuppressWarnings("unchecked")
     public int complete(String str, int cursor, List clist) {
         String cmdLineText;
@@ -187,21 +390,162 @@ class BofhdCompleter implements Completor {
         int len = args.size();
         if(! cmdLineText.endsWith(" ")) len--;
         if(len < 0) len = 0;
-        if(len >= 2) {
+        Object token = len < args.size() ? args.get(len) : "";
+        if (! (token instanceof String)) {
+            // A (group) of values, nothing to complete
             iter = null;
             return 0;
         }
-        try {
-            possible = analyzeCommand(args, len);
-            iter = possible.iterator();
-        } catch (AnalyzeCommandException e) {
-            logger.debug("Caught: ", e);
-            iter = null;
+        String prefix = (String) token;
+        possible = null;
+        synchronized (this) {
+            Node node = complete;
+            for (int lvl = 0; lvl < len && node != null; lvl++) {
+                if (! (args.get(lvl) instanceof String)) {
+                    node = null;
+                    break;
+                }
+                int i = node.resolve((String) args.get(lvl));
+                Object v = i < 0 ? null : node.values[i];
+                node = null;
+                if (v instanceof Node) {
+                    node = (Node) v;
+                } else if (v != null) {
+                    // The words name a command, the rest are arguments
+                    possible = completeArg((String) v, len - lvl - 1, prefix);
+                    break;
+                }
+            }
+            if (node != null) {
+                int from = node.from(prefix);
+                possible = ranked(node, from, node.to(prefix, from));
+            }
+        }
+        iter = possible == null ? null : possible.iterator();
+        while (iter != null && iter.hasNext()) {
+            String s = (String) iter.next();
+            try {
+                clist.add(CommandLine.quote(s) + ' ');
+            } catch (ParseException e) {
+                // Can not be typed, so it is no use offering it
+            }
         }
-        while (iter != null && iter.hasNext()) 
-            clist.add((String)iter.next() + ' ');
         return str.lastIndexOf(" ", cursor) + 1;
     }
+
+
+    /**
+     * <code>analyzeCommand</code> as it was done on nested TreeMaps,
+     * scanning every word of a level, for the benchmark.
+     */
+    @SuppressWarnings("unchecked")
+    private static ArrayList treeMapAnalyze(TreeMap parent, ArrayList cmd,
+                                            int expat) {
+        ArrayList cmdStack = new ArrayList();
+        for (int lvl = 0; expat < 0 || lvl <= expat; lvl++) {
+            String this_cmd = lvl < cmd.size() ? (String) cmd.get(lvl) : null;
+            ArrayList thisLevel = new ArrayList();
+            for (Iterator e = parent.keySet().iterator(); e.hasNext(); ) {
+                String this_key = (String) e.next();
+                if(this_cmd == null || this_key.startsWith(this_cmd)) {
+                    thisLevel.add(this_key);
+                    if(this_key.equals(this_cmd) && expat < 1) {
+                        thisLevel.clear();
+                        thisLevel.add(this_key);
+                        break;
+                    }
+                }
+            }
+            if (lvl == expat) return thisLevel;
+            if (thisLevel.size() != 1 ||
+                    (expat < 0 && cmdStack.size() >= cmd.size()))
+                return null;
+            cmdStack.add(thisLevel.get(0));
+            Object tmp = parent.get(thisLevel.get(0));
+            if (! (tmp instanceof TreeMap)) {
+                cmdStack.add(tmp);
+                return cmdStack;
+            }
+            parent = (TreeMap) tmp;
+        }
+        return null;
+    }
+
+    /**
+     * Time completion and translation of commands on a synthetic
+     * command set, against the nested TreeMaps used before:
+     * <code>java -cp JBofh.jar no.uio.jbofh.BofhdCompleter [groups
+     * [commands per group]]</code>
+     */
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args) throws Exception {
+        int groups = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int perGroup = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+        String[] verbs = { "add", "info", "list", "remove", "set", "show" };
+        BofhdCompleter trie = new BofhdCompleter(null,
+            org.apache.log4j.Logger.getLogger(BofhdCompleter.class));
+        TreeMap tree = new TreeMap();
+        ArrayList all = new ArrayList();
+        for (int g = 0; g < groups; g++) {
+            String group = "grp"+Integer.toString(g * 7919 % 100000, 36);
+            TreeMap sub = new TreeMap();
+            tree.put(group, sub);
+            for (int c = 0; c < perGroup; c++) {
+                String verb = verbs[c % verbs.length]+(c / verbs.length);
+                ArrayList words = new ArrayList(Arrays.asList(group, verb));
+                trie.addCompletion(words, group+"_"+verb);
+                sub.put(verb, group+"_"+verb);
+                all.add(words);
+            }
+        }
+        // Prefixes of the first and second word, and whole commands
+        Random random = new Random(42);
+        int queries = 200000;
+        ArrayList[] query = new ArrayList[queries];
+        int[] expat = new int[queries];
+        for (int i = 0; i < queries; i++) {
+            ArrayList words = (ArrayList) all.get(random.nextInt(all.size()));
+            String w0 = (String) words.get(0), w1 = (String) words.get(1);
+            switch (i % 3) {
+                case 0:
+                    query[i] = new ArrayList(Arrays.asList(
+                        w0.substring(0, 1 + random.nextInt(w0.length()))));
+                    expat[i] = 0;
+                    break;
+                case 1:
+                    query[i] = new ArrayList(Arrays.asList(
+                        w0, w1.substring(0, 1 + random.nextInt(w1.length()))));
+                    expat[i] = 1;
+                    break;
+                default:
+                    query[i] = new ArrayList(Arrays.asList(w0, w1, "arg"));
+                    expat[i] = -1;
+            }
+        }
+        System.out.println(groups * perGroup+" commands in "+groups+
+                           " groups, "+queries+" queries");
+        for (int round = 0; round < 3; round++) {
+            long found = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                ArrayList r = treeMapAnalyze(tree, query[i], expat[i]);
+                if (r != null) found += r.size();
+            }
+            long treeNs = System.nanoTime() - start;
+            long foundTrie = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                try {
+                    foundTrie += trie.analyzeCommand(query[i], expat[i]).size();
+                } catch (AnalyzeCommandException e) { }  // Counted as none
+            }
+            long trieNs = System.nanoTime() - start;
+            System.out.println("TreeMap "+treeNs / queries+" ns/query, trie "+
+                trieNs / queries+" ns/query"+
+                (found == foundTrie ? "" : " (results differ: "+found+" vs "+
+                 foundTrie+")"));
+        }
+    }
 }
 
 // arch-tag: d0af466d-fc21-44cf-9677-ce75a0a9e1ef
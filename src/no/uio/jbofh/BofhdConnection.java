@@ -25,11 +25,27 @@
  */
 
 package no.uio.jbofh;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.URLConnection;
 import java.util.Iterator;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
@@ -39,7 +55,14 @@ import javax.net.ssl.TrustManager;
 import org.apache.log4j.Category;
 import org.apache.xmlrpc.client.XmlRpcClient;
 import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.XmlRpcRequest;
 import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
+import org.apache.xmlrpc.client.XmlRpcHttpTransportException;
+import org.apache.xmlrpc.client.XmlRpcSunHttpTransport;
+import org.apache.xmlrpc.client.XmlRpcSunHttpTransportFactory;
+import org.apache.xmlrpc.client.XmlRpcTransport;
+import org.apache.xmlrpc.common.XmlRpcStreamRequestConfig;
+import org.xml.sax.SAXException;
 import java.net.URL;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
@@ -58,8 +81,44 @@ public class BofhdConnection {
     XmlRpcClientConfigImpl config = new XmlRpcClientConfigImpl();
     XmlRpcClient xmlrpc = new XmlRpcClient();
     String sessid;
-    HashMap commands;
+    volatile CommandTable commands;
     JBofh jbofh;
+    SSLContext sslContext;
+    ConnectionPool pool;
+    Http2TransportFactory http2;
+    GzipPolicy gzip;
+    ResponseBudget budget;
+    /** Responses to read-only commands, or null if not cached */
+    ResultCache resultCache;
+    /** Decodes responses, or null to use the SAX parser of the transport */
+    ResponseReader responseReader;
+    /** Connected to once by <code>verifyServer</code>, or null */
+    private URL verifyURL;
+    StreamingTypeFactory typeFactory;
+    private Boolean multicall;
+    /** How to abort the request each thread is waiting for */
+    private final ConcurrentHashMap inFlight = new ConcurrentHashMap();
+    /** Retry policy for requests that fail in transport */
+    int maxRetries;
+    long retryDelay, retryMaxDelay;
+    Pattern retryCommands;
+    /** Protocol methods that only read, and are safe to send again */
+    static final List READ_ONLY_METHODS = Arrays.asList(new String[] {
+        "get_commands", "get_format_suggestion", "get_default_param",
+        "call_prompt_func", "get_motd", "help" });
+
+    /**
+     * Decodes an XML-RPC response.
+     */
+    interface ResponseReader {
+        /**
+         * @return the value of the response
+         * @exception XmlRpcException for a fault, or if the response
+         * could not be read
+         */
+        Object read(XmlRpcStreamRequestConfig pConfig, InputStream in)
+            throws XmlRpcException;
+    }
 
     /** Creates a new instance of BofdConnection
      * @param log
@@ -67,8 +126,22 @@ public class BofhdConnection {
     public BofhdConnection(Category log, JBofh jbofh) {
         this.logger = log;
         this.jbofh = jbofh;
+        typeFactory = new StreamingTypeFactory(xmlrpc);
+        xmlrpc.setTypeFactory(typeFactory);
         // The xmlrpc-1.1 driver doesn't handle character encoding correctly
         System.setProperty("sax.driver", "com.jclark.xml.sax.Driver");
+        // HttpURLConnection sends a POST again if the reply is cut off,
+        // which would run a command that bofhd has already run twice
+        System.setProperty("sun.net.http.retryPost", "false");
+    }
+
+    /**
+     * @return the setting <code>transport.response.name</code>, in MB,
+     * as bytes
+     */
+    private long megabytes(String name) {
+        return Long.parseLong(jbofh.props.getProperty(
+            "transport.response."+name, "0")) << 20;
     }
 
     void connect(String host_url, boolean use_int_trust, String cafile)
@@ -90,6 +163,61 @@ public class BofhdConnection {
             e.printStackTrace();
             }
         */
+        String transport = jbofh.props.getProperty("transport.type", "default");
+        boolean pooled = transport.equals("pool");
+        try {
+            config.setConnectionTimeout(1000 * Integer.parseInt(
+                jbofh.props.getProperty("transport.connectTimeout", "0")));
+            config.setReplyTimeout(1000 * Integer.parseInt(
+                jbofh.props.getProperty("transport.replyTimeout", "0")));
+            maxRetries = Integer.parseInt(
+                jbofh.props.getProperty("transport.retry.max", "0"));
+            retryDelay = Long.parseLong(
+                jbofh.props.getProperty("transport.retry.delay", "500"));
+            retryMaxDelay = Long.parseLong(
+                jbofh.props.getProperty("transport.retry.maxDelay", "8000"));
+            retryCommands = Pattern.compile(
+                jbofh.props.getProperty("transport.retry.commands", ""));
+            String mode = jbofh.props.getProperty("transport.gzip", "false");
+            int threshold = Integer.parseInt(
+                jbofh.props.getProperty("transport.gzip.threshold", "4096"));
+            config.setGzipRequesting(! mode.equals("false"));
+            gzip = new GzipPolicy(logger, mode.equals("false") ?
+                                  Integer.MAX_VALUE : threshold,
+                                  mode.equals("adaptive"));
+            String spillDir = jbofh.props.getProperty(
+                "transport.response.spillDir", "");
+            budget = new ResponseBudget(megabytes("warnSize"),
+                megabytes("maxSize"), megabytes("spillSize"),
+                spillDir.equals("") ? null : new File(spillDir));
+            long ttl = Long.parseLong(
+                jbofh.props.getProperty("cache.results.ttl", "0"));
+            if (ttl > 0) {
+                resultCache = new ResultCache(1000 * ttl, Integer.parseInt(
+                    jbofh.props.getProperty("cache.results.size", "500")),
+                    Pattern.compile(jbofh.props.getProperty(
+                        "cache.results.commands", "")));
+            }
+            String decoder = jbofh.props.getProperty("transport.decoder",
+                                                      "sax");
+            if (decoder.equals("direct")) {
+                responseReader = new DirectResponseReader(typeFactory);
+            } else if (! decoder.equals("sax")) {
+                System.out.println("Unknown transport.decoder '"+decoder+"', "
+                                   + "check your property file");
+                System.exit(1);
+            }
+        } catch (IllegalArgumentException e) {
+            // Also thrown for a bad pattern or a too large maxSize
+            System.out.println("Configure error, transport.connectTimeout, "
+                + "transport.replyTimeout, transport.gzip.threshold, "
+                + "transport.response.*Size, transport.retry.* and "
+                + "cache.results.* must be numbers, except "
+                + "transport.retry.commands and cache.results.commands "
+                + "which are regular expressions; "
+                + "transport.response.maxSize must be below 2048");
+            System.exit(1);
+        }
         if(host_url.startsWith("https:")) {
             try {
                 SSLContext sc = SSLContext.getInstance("SSL");  // TLS?
@@ -109,17 +237,91 @@ public class BofhdConnection {
                 }
                 SSLSocketFactory sf1 = sc.getSocketFactory();
                 HttpsURLConnection.setDefaultSSLSocketFactory(sf1);
-                URL url = new URL(host_url);
-                HttpsURLConnection con =
-                                       (HttpsURLConnection)url.openConnection();
-                con.connect();
-                con.disconnect();
+                sslContext = sc;
+                if (transport.equals("default")) {
+                    // The other transports verify the certificate on
+                    // the first request, and keep that connection open.
+                    verifyURL = new URL(host_url);
+                }
             } catch (IOException | CertificateException |
                     NoSuchAlgorithmException | KeyManagementException e) {
                 System.out.println("Error setting up SSL cert handling: "+e);
-                System.exit(0);
+                System.exit(jbofh.batch ? JBofh.EXIT_INIT : 0);
             }
         }
+        if (pooled) {
+            try {
+                int maxConnections = Integer.parseInt(
+                    jbofh.props.getProperty("transport.pool.maxConnections", "4"));
+                int idleTimeout = Integer.parseInt(
+                    jbofh.props.getProperty("transport.pool.idleTimeout", "300"));
+                pool = new ConnectionPool(logger, sslContext, maxConnections,
+                                          idleTimeout);
+                pool.install(xmlrpc, this);
+            } catch (NumberFormatException e) {
+                System.out.println("Configure error, transport.pool.* must be "
+                                   + "a number");
+                System.exit(1);
+            }
+        } else if (transport.equals("http2")) {
+            http2 = new Http2TransportFactory(xmlrpc, this, sslContext,
+                                              config.getConnectionTimeout());
+            xmlrpc.setTransportFactory(http2);
+        } else if (transport.equals("default")) {
+            xmlrpc.setTransportFactory(new XmlRpcSunHttpTransportFactory(xmlrpc) {
+                @Override
+                public XmlRpcTransport getTransport() {
+                    return new XmlRpcSunHttpTransport(xmlrpc) {
+                        final GzipPolicy.Exchange exchange = gzip.newExchange();
+
+                        @Override
+                        protected URLConnection newURLConnection(URL pURL)
+                                                        throws IOException {
+                            final URLConnection con = super.newURLConnection(pURL);
+                            // This transport ignores the config timeouts
+                            con.setConnectTimeout(config.getConnectionTimeout());
+                            con.setReadTimeout(config.getReplyTimeout());
+                            if (con instanceof HttpURLConnection)
+                                setAbort(((HttpURLConnection) con)::disconnect);
+                            return con;
+                        }
+
+                        @Override
+                        protected ReqWriter newReqWriter(XmlRpcRequest pRequest)
+                            throws XmlRpcException, IOException, SAXException {
+                            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                            super.newReqWriter(pRequest).write(baos);
+                            final byte[] data = gzip.encodeRequest(exchange,
+                                                          baos.toByteArray());
+                            if (exchange.compressed)
+                                setRequestHeader("Content-Encoding", "gzip");
+                            return (OutputStream out) -> {
+                                out.write(data);
+                                out.close();
+                            };
+                        }
+
+                        @Override
+                        protected InputStream getInputStream()
+                                                    throws XmlRpcException {
+                            return gzip.wire(exchange, super.getInputStream());
+                        }
+
+                        @Override
+                        protected Object readResponse(
+                                XmlRpcStreamRequestConfig pConfig,
+                                InputStream pStream) throws XmlRpcException {
+                            return BofhdConnection.this.readResponse(exchange,
+                                pConfig, pStream, super::readResponse);
+                        }
+                    };
+                }
+            });
+        } else {
+            System.out.println("Unknown transport.type '"+transport+"', "
+                               + "check your property file");
+            System.exit(1);
+        }
         try {
             config.setServerURL(new URL(host_url));
             xmlrpc.setConfig(config);
@@ -131,6 +333,22 @@ public class BofhdConnection {
             System.exit(0);
         }
     }
+    /**
+     * Check the certificate of the server with a TLS handshake, for
+     * the default transport.  JBofh runs this while the user types the
+     * password.
+     *
+     * @exception IOException if the handshake fails
+     */
+    void verifyServer() throws IOException {
+        if (verifyURL == null) return;
+        HttpsURLConnection con = (HttpsURLConnection) verifyURL.openConnection();
+        con.setConnectTimeout(config.getConnectionTimeout());
+        con.setReadTimeout(config.getReplyTimeout());
+        con.connect();
+        con.disconnect();
+    }
+
     @SuppressWarnings("unchecked")
     String login(String uname, String password) throws BofhdException {
         ArrayList args = new ArrayList();
@@ -139,6 +357,8 @@ public class BofhdConnection {
         String newsessid = (String) sendRawCommand("login", args, -1);
         logger.debug("Login ret: "+newsessid);
         this.sessid = newsessid;
+        // Another user may see other results
+        if (resultCache != null) resultCache.clear();
         return newsessid;
     }
     @SuppressWarnings("unchecked")
@@ -153,27 +373,87 @@ public class BofhdConnection {
     String logout() throws BofhdException {
         ArrayList args = new ArrayList();
         args.add(sessid);
-        return (String) sendRawCommand("logout", args, 0);
+        try {
+            return (String) sendRawCommand("logout", args, 0);
+        } finally {
+            if (pool != null) pool.shutdown();
+        }
     }
     @SuppressWarnings("unchecked")
     void updateCommands() throws BofhdException {
         ArrayList args = new ArrayList();
         args.add(sessid);
-        commands = (HashMap) sendRawCommand("get_commands", args, 0);
+        commands = new CommandTable(
+            (HashMap) sendRawCommand("get_commands", args, 0));
     }
     @SuppressWarnings("unchecked")
     String getHelp(ArrayList args) throws BofhdException {
         args.add(0, sessid);
         return (String) sendRawCommand("help", args, 0);
     }
-    @SuppressWarnings("unchecked")
+    /**
+     * Run a bofhd command.  The response to a read-only command may
+     * come from <code>resultCache</code>, and other commands drop the
+     * cached responses they may have changed.
+     */
     Object sendCommand(String cmd, ArrayList args) throws BofhdException {
-        args.add(0, sessid);
-        args.add(1, cmd);
-        return sendRawCommand("run_command", args, 0);
+        return sendCommand(cmd, args, null);
+    }
+
+    /**
+     * Like <code>sendCommand</code>, but if the response is an array,
+     * its elements are given to <code>handler</code> while the
+     * response is being read, and an empty list is returned.  A
+     * cached response is returned as it is, without the handler.
+     */
+    @SuppressWarnings("unchecked")
+    Object sendCommand(String cmd, ArrayList args,
+                       StreamingTypeFactory.RowHandler handler)
+                                                        throws BofhdException {
+        ResultCache cache = resultCache;
+        ArrayList plain = cache == null ? null : new ArrayList(args);
+        boolean cacheable = cache != null && cache.isCacheable(cmd, plain);
+        boolean mutates = cache != null && ! cache.readOnly.matcher(cmd).matches();
+        long since = 0;
+        if (cacheable) {
+            Object r = cache.get(cmd, plain);
+            if (r != null) {
+                logger.debug("cached response to "+cmd+"; "+cache.getStats());
+                return r;
+            }
+            since = cache.generation();
+        }
+        // Dropped before and after, as a read may run meanwhile; a
+        // read sent before the second drop is not kept by put
+        if (mutates) cache.invalidate(cmd, plain);
+        if (handler != null) typeFactory.setHandler(handler);
+        try {
+            args.add(0, sessid);
+            args.add(1, cmd);
+            Object r = sendRawCommand("run_command", args, 0);
+            // Streamed lists are gone, and large ones are not kept
+            if (cacheable && (handler == null || ! (r instanceof List)) &&
+                    (budget.spillSize == 0 ||
+                     budget.lastSize() <= budget.spillSize)) {
+                cache.put(cmd, plain, r, since);
+                logger.debug(cache.getStats());
+            }
+            return r;
+        } finally {
+            if (handler != null) typeFactory.setHandler(null);
+            if (mutates) cache.invalidate(cmd, plain);
+        }
+    }
+
+    /**
+     * @return a spool for the rows of a list response, or null if
+     * responses are not to be spooled
+     */
+    ResponseSpool newSpool() {
+        return budget.spillSize > 0 ? new ResponseSpool(this, budget) : null;
     }
 
-    private String washSingleObject(String str) {
+    private static String washSingleObject(String str) {
         if(str.startsWith(":")) {
             str = str.substring(1);
             if(str.equals("None")) return "<not set>";
@@ -188,37 +468,66 @@ public class BofhdConnection {
      * We have extended XML-rpc by allowing NULL values to be
      * returned.  <code>washResponse</code> handles this.
      *
+     * Lists and maps are washed in place, and only the strings that
+     * are escaped are replaced, so a response without escapes is
+     * returned as it is.  Arrays are turned into an
+     * <code>ArrayList</code>, but <code>StreamingTypeFactory</code>
+     * already parses them as such.
+     *
      * @param o the object to wash
      * @return the washed object
      */
     @SuppressWarnings("unchecked")
     Object washResponse(Object o) {
-        if(o instanceof ArrayList || o instanceof Object[]) {
-            ArrayList ret = new ArrayList();
-            Object[] o_arr = (Object[]) o;
-            ArrayList o_arr_list = new ArrayList(Arrays.asList(o_arr));
-            for (Iterator e = o_arr_list.iterator() ; e.hasNext() ;) {
-                ret.add(washResponse(e.next()));
-            }
-            return ret;
-        } else if(o instanceof String) {
+        if(o instanceof String) {
             return washSingleObject((String) o);
-        } else if(o instanceof Integer) {
-            return o;
-        } else if(o instanceof HashMap) {
-            HashMap ret = new HashMap();
-            for (Iterator e =
-                    (((HashMap) o).keySet().iterator());
+        } else if(o instanceof ArrayList) {
+            ArrayList l = (ArrayList) o;
+            for (int i = 0; i < l.size(); i++) {
+                Object v = l.get(i);
+                Object w = washResponse(v);
+                if (w != v) l.set(i, w);
+            }
+            return l;
+        } else if(o instanceof Map) {
+            for (Iterator e = ((Map) o).entrySet().iterator();
                     e.hasNext(); ) {
-                Object key = e.next();
-                ret.put(key, washResponse(((HashMap) o).get(key)));
+                Map.Entry entry = (Map.Entry) e.next();
+                Object v = entry.getValue();
+                Object w = washResponse(v);
+                if (w != v) entry.setValue(w);
             }
-            return ret;
+            return o;
+        } else if(o instanceof Object[]) {
+            return washResponse(new ArrayList(Arrays.asList((Object[]) o)));
         } else {
             return o;
         }
     }
 
+    /**
+     * Called by the transport when it opens a request, with a way to
+     * abort it from another thread.
+     */
+    @SuppressWarnings("unchecked")
+    void setAbort(Runnable abort) {
+        inFlight.put(Thread.currentThread(), abort);
+    }
+
+    /**
+     * Abort the request <code>t</code> is waiting for, which then
+     * fails with an I/O error.
+     *
+     * @return true if there was a request to abort
+     */
+    boolean abort(Thread t) {
+        Runnable abort = (Runnable) inFlight.remove(t);
+        if (abort == null) return false;
+        logger.debug("aborting request of "+t.getName());
+        abort.run();
+        return true;
+    }
+
     Object sendRawCommand(String cmd, ArrayList args, int sessid_loc)
                                                         throws BofhdException {
         return sendRawCommand(cmd, args, false, sessid_loc);
@@ -267,6 +576,24 @@ public class BofhdConnection {
         }
     }
 
+    /**
+     * Log in again after the session has expired.  When several
+     * commands are in flight (source --parallel), only the first one
+     * to notice prompts for the password, the others reuse the new
+     * session.  The agent has no one to prompt, so it gives up.
+     *
+     * @param expired the session id that was rejected, or null
+     */
+    private synchronized void reauthenticate(Object expired)
+                                                        throws BofhdException {
+        if (expired != null && ! expired.equals(sessid)) return;
+        if (jbofh.agent != null)
+            throw new BofhdException(
+                "Error: the agent's session expired, restart the agent");
+        jbofh.showMessage("Session expired, you must re-authenticate", true);
+        jbofh.login(jbofh.uname, null);
+    }
+
     /**
      * Sends a raw command to the server.
      *
@@ -281,43 +608,18 @@ public class BofhdConnection {
     Object sendRawCommand(String cmd, ArrayList args, boolean gotRestart,
         int sessid_loc) throws BofhdException {
         try {
-            switch (cmd) {
-                case "login":
-                    logger.debug("sendCommand("+cmd+", ********");
-                    break;
-                case "run_command":
-                ArrayList cmdDef = (ArrayList) commands.get(args.get(1));
-                if(cmdDef.size() == 1 ||
-                                     (! (cmdDef.get(1) instanceof ArrayList))) {
-                    logger.debug("sendCommand("+cmd+", "+args);
-                    } else {
-                    ArrayList protoArgs = (ArrayList) cmdDef.get(1);
-                    ArrayList logArgs = new ArrayList();
-                    logArgs.add(args.get(0));
-                    logArgs.add(args.get(1));
-                    int i = 2;
-                    for (Iterator e = protoArgs.iterator() ; e.hasNext() ;) {
-                        if(i >= args.size()) break;
-                        HashMap h = (HashMap) e.next();
-                            String type = (String) h.get("type");
-                            if (type != null && type.equals("accountPassword")) {
-                                logArgs.add("********");
-                            } else {
-                                logArgs.add(args.get(i));
-                            }
-                            i++;
-                        }
-                        logger.debug("sendCommand("+cmd+", "+logArgs);
-                    }   break;
-                default:
-                    logger.debug("sendCommand("+cmd+", "+args);
-                    break;
-            }
+            logCommand(cmd, args);
             washCommandArgs(args);
-            Object r = washResponse(xmlrpc.execute(cmd, args));
+            Object r = execute(cmd, args);
+            inFlight.remove(Thread.currentThread());
+            r = washResponse(r);
             logger.debug("<-"+r);
+            if (pool != null) logger.debug(pool.getStats());
+            if (http2 != null) logger.debug(http2.getStats());
+            logger.debug(gzip.getStats());
             return r;
         } catch (XmlRpcException e) {
+            inFlight.remove(Thread.currentThread());
             logger.debug("exception-message: "+e.getMessage());
             String match = "Cerebrum.modules.bofhd.errors.";
             if(! gotRestart && 
@@ -325,14 +627,11 @@ public class BofhdConnection {
                 jbofh.initCommands();
                 return sendRawCommand(cmd, args, true, sessid_loc);
             } else if (e.getMessage().startsWith(match+"SessionExpiredError")) {
-                jbofh.showMessage("Session expired, you must re-authenticate", true);
-                jbofh.login(jbofh.uname, null);
+                reauthenticate(sessid_loc == -1 ? null : args.get(sessid_loc));
                 if (sessid_loc != -1) args.set(sessid_loc, sessid);
                 return sendRawCommand(cmd, args, true, sessid_loc);
             } else if(e.getMessage().startsWith(match)) {
-                String msg = e.getMessage().substring(e.getMessage().indexOf(":")+1);
-                if(msg.startsWith("CerebrumError: ")) msg = msg.substring(msg.indexOf(":")+2);
-                throw new BofhdException("Error: "+msg);
+                throw faultToException(e.getMessage());
             } else {
                 logger.debug("err: code="+e.code, e);
                 throw new BofhdException("Error: "+e.getMessage());
@@ -340,6 +639,469 @@ public class BofhdConnection {
         }
     }
 
+    /**
+     * Called by the transports to decode a response with
+     * <code>responseReader</code>, or <code>sax</code> if it is not
+     * set.  The response is counted against <code>budget</code>.
+     */
+    Object readResponse(GzipPolicy.Exchange exchange,
+                        XmlRpcStreamRequestConfig pConfig, InputStream in,
+                        ResponseReader sax) throws XmlRpcException {
+        in = budget.meter(gzip.decoded(exchange, in), jbofh);
+        typeFactory.newResponse();
+        Object r;
+        try {
+            r = (responseReader != null ? responseReader : sax)
+                .read(pConfig, in);
+        } catch (XmlRpcException e) {
+            XmlRpcException cut = budget.finish(e);
+            // Drop the connection, with the rest of the response
+            if (cut != e) abort(Thread.currentThread());
+            throw cut;
+        }
+        budget.finish(null);
+        gzip.finish(exchange);
+        return r;
+    }
+
+    /**
+     * @return true if the command only reads, so that it can be sent
+     * again if the request fails
+     */
+    boolean isRetryable(String cmd, ArrayList args) {
+        if (cmd.equals("run_command"))
+            return isReadOnly((String) args.get(1));
+        return READ_ONLY_METHODS.contains(cmd);
+    }
+
+    /**
+     * @return true if the bofhd command <code>protoCmd</code> only
+     * reads, by <code>transport.retry.commands</code>
+     */
+    boolean isReadOnly(String protoCmd) {
+        return retryCommands.matcher(protoCmd).matches();
+    }
+
+    /**
+     * @return true if the request failed on the way to or from the
+     * server, rather than in bofhd
+     */
+    static boolean isTransportError(XmlRpcException e) {
+        if (e instanceof XmlRpcHttpTransportException)
+            return ((XmlRpcHttpTransportException) e).getStatusCode() >= 500;
+        for (Throwable t = e.getCause(); t != null; t = t.getCause()) {
+            if (t instanceof IOException) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the request can not have reached bofhd: the
+     * connection could not be made, or the server does not have the
+     * method
+     */
+    static boolean neverSent(XmlRpcException e) {
+        String msg = String.valueOf(e.getMessage());
+        if (e.code == -32601 || (msg.contains("system.multicall") &&
+                (msg.contains("not supported") || msg.contains("not found"))))
+            return true;
+        for (Throwable t = e.getCause(); t != null; t = t.getCause()) {
+            if (t instanceof ConnectException ||
+                    t instanceof UnknownHostException ||
+                    t instanceof NoRouteToHostException ||
+                    t instanceof HttpConnectTimeoutException)
+                return true;
+            if (t instanceof SocketTimeoutException &&
+                    String.valueOf(t.getMessage()).contains("connect"))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Send one request.  Read-only commands that fail with a transport
+     * error (a timeout, a dropped connection or an HTTP 5xx) are sent
+     * again, up to <code>maxRetries</code> times, after an exponential
+     * backoff with full jitter.  Cancelled commands and streamed
+     * responses that have already shown rows are not retried.
+     */
+    private Object execute(String cmd, ArrayList args) throws XmlRpcException {
+        String name = cmd.equals("run_command") ? (String) args.get(1) : cmd;
+        boolean retryable = maxRetries > 0 && isRetryable(cmd, args);
+        for (int attempt = 0; ; attempt++) {
+            long start = System.currentTimeMillis();
+            try {
+                if (cmd.equals("run_command")) typeFactory.arm();
+                Object r = xmlrpc.execute(cmd, args);
+                logger.debug(name+" took "+(System.currentTimeMillis()-start)+
+                             " ms"+(attempt > 0 ? " after "+attempt+
+                                    " retries" : ""));
+                return r;
+            } catch (XmlRpcException e) {
+                inFlight.remove(Thread.currentThread());
+                if (gzip.isRejection(e)) {
+                    // Send it again uncompressed; not counted as a retry
+                    attempt--;
+                    continue;
+                }
+                long elapsed = System.currentTimeMillis() - start;
+                if (! retryable || attempt >= maxRetries ||
+                        ! isTransportError(e) || typeFactory.hasStreamed() ||
+                        Thread.currentThread().isInterrupted()) {
+                    if (attempt > 0)
+                        logger.debug(name+" failed after "+attempt+" retries");
+                    throw e;
+                }
+                long delay = Math.min(retryMaxDelay, retryDelay << attempt);
+                delay = ThreadLocalRandom.current().nextLong(delay + 1);
+                logger.debug(name+" failed after "+elapsed+" ms (attempt "+
+                             (attempt+1)+" of "+(maxRetries+1)+"): "+
+                             e.getMessage()+"; retrying in "+delay+" ms");
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the command to the debug log, hiding passwords.
+     */
+    @SuppressWarnings("unchecked")
+    private void logCommand(String cmd, ArrayList args) {
+        if (! logger.isDebugEnabled()) return;
+        switch (cmd) {
+            case "login":
+                logger.debug("sendCommand("+cmd+", ********");
+                break;
+            case "run_command":
+                CommandTable table = commands;
+                CommandTable.Command c = table == null ? null :
+                    table.get((String) args.get(1));
+                logger.debug("sendCommand("+cmd+", "+
+                             (c == null ? args : c.maskPasswords(args, 2)));
+                break;
+            default:
+                logger.debug("sendCommand("+cmd+", "+args);
+                break;
+        }
+    }
+
+    /**
+     * Translate a <code>Cerebrum.modules.bofhd.errors</code> fault
+     * into the message shown to the user.
+     */
+    private BofhdException faultToException(String fault) {
+        String msg = fault.substring(fault.indexOf(":")+1);
+        if(msg.startsWith("CerebrumError: ")) msg = msg.substring(msg.indexOf(":")+2);
+        return new BofhdException("Error: "+msg);
+    }
+
+    /**
+     * Check whether commands may be batched with
+     * <code>system.multicall</code>.  This must be enabled with
+     * <code>transport.multicall</code>, and the server must list
+     * <code>system.multicall</code> in <code>system.listMethods</code>.
+     * The answer is only looked up once.
+     *
+     * @return true if multicall batching can be used
+     */
+    synchronized boolean useMulticall() {
+        if (multicall == null) {
+            multicall = Boolean.FALSE;
+            if (jbofh.props.getProperty("transport.multicall", "false")
+                    .equals("true")) {
+                try {
+                    Object methods = xmlrpc.execute("system.listMethods",
+                                                    new ArrayList());
+                    if (methods instanceof List &&
+                            ((List) methods).contains("system.multicall")) {
+                        multicall = Boolean.TRUE;
+                    }
+                } catch (XmlRpcException e) {
+                    logger.debug("system.listMethods failed: "+e.getMessage());
+                }
+                logger.debug("multicall supported: "+multicall);
+            }
+        }
+        return multicall.booleanValue();
+    }
+
+    /**
+     * Send several bofhd commands in one <code>system.multicall</code>
+     * request.  Commands that fail because the session expired or the
+     * server restarted are sent again one by one with
+     * <code>sendCommand</code>, which knows how to recover from that.
+     * If the multicall request itself fails before it reaches bofhd,
+     * all commands are sent one by one.  If it fails later, bofhd may
+     * have run the batch, so only the read-only commands (see
+     * <code>isReadOnly</code>) are sent again, and the others fail.
+     *
+     * @param cmds a <code>ArrayList</code> where each element is an
+     * <code>ArrayList</code> holding the command name followed by its
+     * arguments
+     * @return a <code>ArrayList</code> with the washed response for
+     * each command, or the <code>BofhdException</code> it failed with
+     */
+    @SuppressWarnings("unchecked")
+    ArrayList sendMulticall(ArrayList cmds) {
+        ArrayList calls = new ArrayList();
+        ArrayList ret = new ArrayList();
+        String match = "Cerebrum.modules.bofhd.errors.";
+        List resp = null;
+        Exception failure = null;
+        long since = 0;
+        try {
+            for (Iterator e = cmds.iterator(); e.hasNext(); ) {
+                ArrayList args = new ArrayList((ArrayList) e.next());
+                if (resultCache != null &&
+                        ! resultCache.readOnly.matcher((String) args.get(0)).matches())
+                    resultCache.invalidate((String) args.get(0),
+                                           args.subList(1, args.size()));
+                args.add(0, sessid);
+                logCommand("run_command", args);
+                washCommandArgs(args);
+                HashMap call = new HashMap();
+                call.put("methodName", "run_command");
+                call.put("params", args);
+                calls.add(call);
+            }
+            if (resultCache != null) since = resultCache.generation();
+            ArrayList params = new ArrayList();
+            params.add(calls);
+            logger.debug("system.multicall of "+calls.size()+" commands");
+            resp = (List) xmlrpc.execute("system.multicall", params);
+            if (pool != null) logger.debug(pool.getStats());
+            if (http2 != null) logger.debug(http2.getStats());
+            logger.debug(gzip.getStats());
+        } catch (BofhdException e) {
+            // Before anything was sent
+            logger.debug("multicall failed, sending one by one: "+e);
+        } catch (XmlRpcException e) {
+            if (neverSent(e)) {
+                logger.debug("multicall failed, sending one by one: "+e);
+            } else {
+                logger.debug("multicall failed, may have been run: "+e);
+                failure = e;
+            }
+        } catch (ClassCastException e) {
+            logger.debug("multicall failed, may have been run: "+e);
+            failure = e;
+        } finally {
+            inFlight.remove(Thread.currentThread());
+        }
+        if (failure == null && resp != null && resp.size() < cmds.size())
+            failure = new XmlRpcException("short multicall response");
+        for (int i = 0; i < cmds.size(); i++) {
+            ArrayList cmd = (ArrayList) cmds.get(i);
+            Object r = resp == null || i >= resp.size() ? null : resp.get(i);
+            if (r == null && failure != null &&
+                    ! isReadOnly((String) cmd.get(0))) {
+                ret.add(new BofhdException("Error: the multicall request "+
+                    "failed ("+failure.getMessage()+"), so "+cmd.get(0)+
+                    " may or may not have been run"));
+                continue;
+            }
+            if (r instanceof List && ((List) r).size() == 1) {
+                r = washResponse(((List) r).get(0));
+                logger.debug("<-"+r);
+                ret.add(r);
+                cached(cmd, r, since);
+                continue;
+            }
+            String fault = r instanceof Map ?
+                String.valueOf(((Map) r).get("faultString")) : null;
+            if (fault != null && fault.startsWith(match) &&
+                    ! fault.startsWith(match+"ServerRestartedError") &&
+                    ! fault.startsWith(match+"SessionExpiredError")) {
+                logger.debug("exception-message: "+fault);
+                ret.add(faultToException(fault));
+                continue;
+            } else if (fault != null && ! fault.startsWith(match)) {
+                logger.debug("exception-message: "+fault);
+                ret.add(new BofhdException("Error: "+fault));
+                continue;
+            }
+            try {
+                ArrayList args = new ArrayList(cmd.subList(1, cmd.size()));
+                ret.add(sendCommand((String) cmd.get(0), args));
+            } catch (BofhdException be) {
+                ret.add(be);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Call a session-less bofhd method, like
+     * <code>get_format_suggestion</code>, once for each argument list,
+     * in one <code>system.multicall</code> request.
+     *
+     * @param method the XML-RPC method
+     * @param argLists a <code>List</code> of argument <code>List</code>s
+     * @return a <code>ArrayList</code> with the washed response for
+     * each call, or the <code>BofhdException</code> it failed with
+     * @exception BofhdException if the multicall request itself fails
+     */
+    @SuppressWarnings("unchecked")
+    ArrayList multicallMethod(String method, List argLists) throws BofhdException {
+        ArrayList calls = new ArrayList();
+        List resp;
+        try {
+            for (Iterator e = argLists.iterator(); e.hasNext(); ) {
+                ArrayList args = new ArrayList((List) e.next());
+                washCommandArgs(args);
+                HashMap call = new HashMap();
+                call.put("methodName", method);
+                call.put("params", args);
+                calls.add(call);
+            }
+            ArrayList params = new ArrayList();
+            params.add(calls);
+            logger.debug("system.multicall of "+calls.size()+" "+method);
+            resp = (List) xmlrpc.execute("system.multicall", params);
+        } catch (XmlRpcException | ClassCastException e) {
+            throw new BofhdException("multicall of "+method+" failed: "+e);
+        } finally {
+            inFlight.remove(Thread.currentThread());
+        }
+        if (resp == null || resp.size() != calls.size())
+            throw new BofhdException("multicall of "+method+
+                                     ": bad number of responses");
+        ArrayList ret = new ArrayList();
+        for (Iterator e = resp.iterator(); e.hasNext(); ) {
+            Object r = e.next();
+            if (r instanceof List && ((List) r).size() == 1) {
+                ret.add(washResponse(((List) r).get(0)));
+            } else {
+                String fault = r instanceof Map ?
+                    String.valueOf(((Map) r).get("faultString")) : String.valueOf(r);
+                logger.debug("exception-message: "+fault);
+                ret.add(new BofhdException("Error: "+fault));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Keep the response to one command of a multicall, or drop what
+     * it may have changed.
+     *
+     * @param cmd the command name followed by its arguments
+     * @param since the generation of the cache when the multicall
+     * was sent
+     */
+    @SuppressWarnings("unchecked")
+    private void cached(ArrayList cmd, Object r, long since) {
+        ResultCache cache = resultCache;
+        if (cache == null) return;
+        String name = (String) cmd.get(0);
+        List args = cmd.subList(1, cmd.size());
+        if (cache.isCacheable(name, args)) {
+            cache.put(name, new ArrayList(args), r, since);
+        } else if (! cache.readOnly.matcher(name).matches()) {
+            cache.invalidate(name, args);
+        }
+    }
+
+    /**
+     * <code>washResponse</code> as it was before it washed in place:
+     * every array and struct is copied.  Only used by <code>main</code>.
+     */
+    @SuppressWarnings("unchecked")
+    private static Object washResponseByCopy(Object o) {
+        if(o instanceof Object[]) {
+            ArrayList ret = new ArrayList();
+            ArrayList o_arr_list = new ArrayList(Arrays.asList((Object[]) o));
+            for (Iterator e = o_arr_list.iterator() ; e.hasNext() ;) {
+                ret.add(washResponseByCopy(e.next()));
+            }
+            return ret;
+        } else if(o instanceof String) {
+            return washSingleObject((String) o);
+        } else if(o instanceof HashMap) {
+            HashMap ret = new HashMap();
+            for (Iterator e = ((HashMap) o).keySet().iterator();
+                    e.hasNext(); ) {
+                Object key = e.next();
+                ret.put(key, washResponseByCopy(((HashMap) o).get(key)));
+            }
+            return ret;
+        } else {
+            return o;
+        }
+    }
+
+    /**
+     * @return a listing of four-field rows, every fourth of them with
+     * an unset field if <code>escapes</code> is true
+     */
+    @SuppressWarnings("unchecked")
+    private static ArrayList listing(int rows, boolean escapes) {
+        ArrayList l = new ArrayList(rows);
+        for (int i = 0; i < rows; i++) {
+            HashMap row = new HashMap();
+            row.put("name", "user"+i);
+            row.put("entity_id", i);
+            row.put("owner", "group"+(i % 100));
+            row.put("expire_date", escapes && i % 4 == 0 ? ":None" :
+                    "2026-12-31");
+            l.add(row);
+        }
+        return l;
+    }
+
+    /**
+     * Compares washing a large listing by copying it, as the stock
+     * parser's arrays were washed, with washing it in place, with and
+     * without escaped values.  Checks that the results are equal.
+     *
+     * Usage: BofhdConnection [rows [iterations]]
+     */
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        BofhdConnection bc = new BofhdConnection(
+            Category.getInstance(BofhdConnection.class), null);
+        System.out.println("Washing "+rows+" four-field rows, "+iterations+
+                           " iterations after warmup");
+        for (int round = 0; round < 2; round++) {
+            for (int e = 0; e < 2; e++) {
+                boolean escapes = e == 1;
+                Object[] stock = listing(rows, escapes).toArray();
+                long copyBytes = 0, copyBest = Long.MAX_VALUE;
+                long inPlaceBytes = 0, inPlaceBest = Long.MAX_VALUE;
+                boolean equal = true;
+                for (int i = 0; i < iterations; i++) {
+                    long b0 = StreamingTypeFactory.allocatedBytes();
+                    long t0 = System.nanoTime();
+                    Object copied = washResponseByCopy(stock);
+                    copyBest = Math.min(copyBest, System.nanoTime() - t0);
+                    copyBytes += StreamingTypeFactory.allocatedBytes() - b0;
+
+                    // Washing in place changes it, so wash a new one
+                    ArrayList l = listing(rows, escapes);
+                    b0 = StreamingTypeFactory.allocatedBytes();
+                    t0 = System.nanoTime();
+                    Object washed = bc.washResponse(l);
+                    inPlaceBest = Math.min(inPlaceBest, System.nanoTime() - t0);
+                    inPlaceBytes += StreamingTypeFactory.allocatedBytes() - b0;
+                    equal &= copied.equals(washed);
+                }
+                if (round == 0) continue;
+                System.out.println(String.format(
+                    "%-10s copied %6.1f ms, %5.1f MB allocated; "+
+                    "in place %6.1f ms, %5.1f MB allocated%s",
+                    escapes ? "25% None" : "no escapes",
+                    copyBest / 1e6, copyBytes / 1e6 / iterations,
+                    inPlaceBest / 1e6, inPlaceBytes / 1e6 / iterations,
+                    equal ? "" : "; results differ"));
+            }
+        }
+    }
 }
 
 // arch-tag: e689905d-cdab-4978-9ea4-28e1647b512e
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2026 University of Oslo, Norway
+ *
+ * This file is part of Cerebrum.
+ *
+ * Cerebrum is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerebrum is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerebrum; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package no.uio.jbofh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The training run for the class data sharing archive made by
+ * <code>ant cds</code>.  The JVM writes the classes loaded by the run
+ * to the archive when it exits, so later runs can map them instead of
+ * loading and verifying them from the jar.
+ *
+ * The run does what a session does, against a small XML-RPC server in
+ * the same JVM that answers like bofhd: it starts the console, logs in,
+ * gets the commands, runs a command with a struct response and one with
+ * a list response, through a pipeline, and logs out.  The server talks
+ * plain HTTP, so the TLS classes are loaded by setting up a handshake
+ * as far as the ClientHello.  Nothing is read from or written to
+ * <code>~/.jbofh</code>.
+ *
+ * <code>StartupBenchmark</code> uses the same server.
+ */
+class CdsTraining {
+    static final String USER = "training";
+    private static final Pattern METHOD = Pattern.compile(
+        "<methodName>([^<]*)</methodName>");
+    private static final Pattern PARAM = Pattern.compile(
+        "<param>\\s*<value>\\s*(?:<string>)?([^<]*)");
+
+    /**
+     * Start the server on a free port of the loopback interface.
+     *
+     * @return the server, which answers at
+     * <code>http://127.0.0.1:port/</code>
+     */
+    static HttpServer startServer() throws IOException {
+        HttpServer server = HttpServer.create(
+            new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", CdsTraining::handle);
+        server.start();
+        return server;
+    }
+
+    static String getURL(HttpServer server) {
+        return "http://127.0.0.1:"+server.getAddress().getPort()+"/";
+    }
+
+    private static void handle(HttpExchange ex) throws IOException {
+        InputStream in = ex.getRequestBody();
+        if ("gzip".equals(ex.getRequestHeaders().getFirst("Content-Encoding")))
+            in = new GZIPInputStream(in);
+        String request = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        Matcher m = METHOD.matcher(request);
+        String method = m.find() ? m.group(1) : "";
+        ArrayList params = new ArrayList();
+        params(request, params);
+        byte[] body = response(method, params).getBytes(StandardCharsets.UTF_8);
+        String accept = ex.getRequestHeaders().getFirst("Accept-Encoding");
+        ex.getResponseHeaders().set("Content-Type", "text/xml");
+        if (accept != null && accept.contains("gzip")) {
+            ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+            try (GZIPOutputStream gz = new GZIPOutputStream(zipped)) {
+                gz.write(body);
+            }
+            body = zipped.toByteArray();
+            ex.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        ex.sendResponseHeaders(200, body.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void params(String request, ArrayList params) {
+        Matcher m = PARAM.matcher(request);
+        while (m.find()) params.add(m.group(1));
+    }
+
+    /**
+     * @return a bofhd-like answer to <code>method</code>
+     */
+    private static String response(String method, List params) {
+        Object value;
+        switch (method) {
+            case "login":
+                value = "training-session";
+                break;
+            case "get_commands":
+                value = map(
+                    "user_info", list(list("user", "info"), list(map(
+                        "type", "accountName", "prompt", "Account name"))),
+                    "group_list", list(list("group", "list"), list(map(
+                        "type", "groupName", "prompt", "Group"))));
+                break;
+            case "get_format_suggestion":
+                value = "user_info".equals(params.get(0)) ? map(
+                    "str_vars", list(
+                        list("Username:      %s\nOwner:         %s",
+                             list("username", "owner")),
+                        list("Expire:        %s",
+                             list("expire:date:yyyy-MM-dd")))) : map(
+                    "hdr", "Name       Expire",
+                    "str_vars", list(
+                        list("%-10s %s", list("name", "expire:date:yyyy-MM-dd"))));
+                break;
+            case "run_command":
+                value = "user_info".equals(params.get(1)) ? map(
+                    "username", USER, "owner", ":None", "expire", new Date()) :
+                    rows(200);
+                break;
+            case "help":
+                value = "There is no help in training";
+                break;
+            default:
+                value = "";
+        }
+        StringBuilder sb = new StringBuilder(
+            "<?xml version='1.0'?>\n<methodResponse><params><param>");
+        encode(value, sb);
+        return sb.append("</param></params></methodResponse>\n").toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayList rows(int n) {
+        ArrayList rows = new ArrayList(n);
+        for (int i = 0; i < n; i++) {
+            rows.add(map("name", String.format("g%05d", i), "expire",
+                          i % 4 == 0 ? ":None" : new Date(i * 86400000L)));
+        }
+        return rows;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static LinkedHashMap map(Object... kv) {
+        LinkedHashMap m = new LinkedHashMap();
+        for (int i = 0; i < kv.length; i += 2) m.put(kv[i], kv[i + 1]);
+        return m;
+    }
+
+    private static List list(Object... values) {
+        return Arrays.asList(values);
+    }
+
+    private static void encode(Object v, StringBuilder sb) {
+        sb.append("<value>");
+        if (v instanceof Map) {
+            sb.append("<struct>");
+            for (Iterator e = ((Map) v).entrySet().iterator(); e.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) e.next();
+                sb.append("<member><name>").append(entry.getKey())
+                    .append("</name>");
+                encode(entry.getValue(), sb);
+                sb.append("</member>");
+            }
+            sb.append("</struct>");
+        } else if (v instanceof List) {
+            sb.append("<array><data>");
+            for (Iterator e = ((List) v).iterator(); e.hasNext(); )
+                encode(e.next(), sb);
+            sb.append("</data></array>");
+        } else if (v instanceof Date) {
+            sb.append("<dateTime.iso8601>")
+                .append(new SimpleDateFormat("yyyyMMdd'T'HH:mm:ss").format((Date) v))
+                .append("</dateTime.iso8601>");
+        } else {
+            sb.append("<string>").append(v.toString().replace("&", "&amp;")
+                .replace("<", "&lt;")).append("</string>");
+        }
+        sb.append("</value>");
+    }
+
+    /**
+     * Load the TLS classes of a client handshake, up to the
+     * ClientHello.
+     */
+    private static void helloTLS() throws Exception {
+        SSLContext sc = SSLContext.getInstance("TLS");
+        sc.init(null, null, null);
+        SSLEngine engine = sc.createSSLEngine("bofhd.example.org", 443);
+        engine.setUseClientMode(true);
+        engine.beginHandshake();
+        java.nio.ByteBuffer net = java.nio.ByteBuffer.allocate(
+            engine.getSession().getPacketBufferSize());
+        engine.wrap(java.nio.ByteBuffer.allocate(0), net);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args) throws Exception {
+        HttpServer server = startServer();
+        HashMap props = new HashMap();
+        props.put("cache.commands.enable", "false");
+        JBofh jb = new JBofh(false, false, "/log4j_normal.properties",
+                             getURL(server), props, null, new StartupTimings());
+        jb.initialLogin(USER, USER);
+        String[] commands = { "user info "+USER, "group list "+USER,
+            "group list "+USER+" | sort expire | head 5", "help user info" };
+        for (String command : commands) {
+            try {
+                jb.runNonInteractive(jb.cLine.splitCommand(command));
+            } catch (ParseException e) {
+                throw new IllegalStateException(command, e);
+            }
+        }
+        helloTLS();
+        jb.bc.logout();
+        server.stop(0);
+        System.exit(0);
+    }
+}
+
+// arch-tag: 5f8e2b47-a19c-4d63-8e07-b4c2d6a9f1e3
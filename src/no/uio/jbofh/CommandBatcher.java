@@ -0,0 +1,145 @@
+/*
+ * Copyright 2026 University of Oslo, Norway
+ *
+ * This file is part of Cerebrum.
+ *
+ * Cerebrum is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerebrum is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerebrum; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package no.uio.jbofh;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects bofhd commands and sends them to the server in
+ * <code>system.multicall</code> requests.  A batch is sent when it
+ * holds <code>maxSize</code> commands, or when the first command in it
+ * has waited <code>window</code> milliseconds.  Each command gets its
+ * own future, completed with the same response (or
+ * <code>BofhdException</code>) that <code>sendCommand</code> would
+ * have given.
+ *
+ * <code>ant check</code> checks batching with
+ * <code>CommandBatcherCheck</code>.
+ */
+class CommandBatcher {
+    BofhdConnection bc;
+    int maxSize;
+    long window;
+    ScheduledExecutorService executor;
+    private ArrayList pending = new ArrayList();
+    private ArrayList pendingResults = new ArrayList();
+    private ScheduledFuture windowTimer;
+    private long batches = 0;
+
+    /**
+     * @param bc
+     * @param maxSize maximum number of commands in one request
+     * @param window milliseconds to wait for more commands
+     * @param senders number of batches that may be in flight at once
+     */
+    CommandBatcher(BofhdConnection bc, int maxSize, long window,
+                   int senders) {
+        this.bc = bc;
+        this.maxSize = maxSize;
+        this.window = window;
+        final AtomicInteger threadNo = new AtomicInteger();
+        executor = Executors.newScheduledThreadPool(senders,
+            (Runnable r) -> {
+                Thread t = new Thread(r, "jbofh-multicall-"+
+                                      threadNo.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+    }
+
+    /**
+     * Queue a command for the next batch.
+     *
+     * @param cmd the bofhd command name
+     * @param args the arguments of the command
+     * @return a future for the response of the command
+     */
+    @SuppressWarnings("unchecked")
+    synchronized CompletableFuture submit(String cmd, ArrayList args) {
+        ArrayList call = new ArrayList(args);
+        call.add(0, cmd);
+        CompletableFuture result = new CompletableFuture();
+        pending.add(call);
+        pendingResults.add(result);
+        if (pending.size() >= maxSize) {
+            flush();
+        } else if (pending.size() == 1) {
+            windowTimer = executor.schedule(this::flush, window,
+                                            TimeUnit.MILLISECONDS);
+        }
+        return result;
+    }
+
+    /**
+     * Send the queued commands now.
+     */
+    synchronized void flush() {
+        if (windowTimer != null) {
+            windowTimer.cancel(false);
+            windowTimer = null;
+        }
+        if (pending.isEmpty()) return;
+        final ArrayList calls = pending;
+        final ArrayList results = pendingResults;
+        pending = new ArrayList();
+        pendingResults = new ArrayList();
+        batches++;
+        executor.execute(() -> send(calls, results));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void send(ArrayList calls, ArrayList results) {
+        ArrayList resp;
+        try {
+            resp = bc.sendMulticall(calls);
+        } catch (RuntimeException e) {
+            for (int i = 0; i < results.size(); i++)
+                ((CompletableFuture) results.get(i)).completeExceptionally(e);
+            return;
+        }
+        for (int i = 0; i < results.size(); i++) {
+            CompletableFuture result = (CompletableFuture) results.get(i);
+            Object r = resp.get(i);
+            if (r instanceof BofhdException) {
+                result.completeExceptionally((BofhdException) r);
+            } else {
+                result.complete(r);
+            }
+        }
+    }
+
+    synchronized long getBatches() {
+        return batches;
+    }
+
+    void shutdown() {
+        flush();
+        executor.shutdown();
+    }
+}
+
+// arch-tag: 3e8b5d14-7a2c-4f69-8c1e-b04d9a6f2e73
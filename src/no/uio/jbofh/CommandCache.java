@@ -0,0 +1,161 @@
+/*
+ * Copyright 2026 University of Oslo, Norway
+ *
+ * This file is part of Cerebrum.
+ *
+ * Cerebrum is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerebrum is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerebrum; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package no.uio.jbofh;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Category;
+
+/**
+ * On-disk cache of the <code>get_commands</code> map and the format
+ * suggestions for one user on one bofhd server.  The cache lets
+ * <code>JBofh.initialLogin</code> set up command completion without
+ * waiting for <code>get_commands</code>, and saves the
+ * <code>get_format_suggestion</code> round trip on the first use of a
+ * command.
+ *
+ * bofhd has no version number or ETag, so the command map itself is
+ * used as one: the cache is revalidated in the background after
+ * login, and if the commands have changed, the server has probably
+ * been upgraded and the cached formats are dropped as well.
+ */
+class CommandCache {
+    /** Bump when the layout of the cache file changes */
+    static final int FORMAT_VERSION = 1;
+
+    Category logger;
+    File file;
+    String clientVersion;
+    private HashMap savedFormats;
+
+    /**
+     * @param logger
+     * @param dir the cache directory
+     * @param url the bofhd URL
+     * @param uname the user that is logged in, since the command
+     * list depends on the user's privileges
+     * @param clientVersion the jbofh version
+     */
+    CommandCache(Category logger, File dir, String url, String uname,
+                 String clientVersion) {
+        this.logger = logger;
+        this.clientVersion = clientVersion;
+        file = new File(dir, digest(url+"\0"+uname)+".cache");
+    }
+
+    private static String digest(String s) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest(s.getBytes(StandardCharsets.UTF_8)))
+                sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // SHA-256 is always there
+        }
+    }
+
+    /**
+     * Read the cache file.
+     *
+     * @return a <code>HashMap</code> with the keys
+     * <code>commands</code> and <code>formats</code>, or null if there
+     * is no usable cache
+     */
+    HashMap load() {
+        if (! file.exists()) return null;
+        try (ObjectInputStream in =
+                new ObjectInputStream(new FileInputStream(file))) {
+            // Only the collection and value types bofhd can return
+            in.setObjectInputFilter(ObjectInputFilter.Config.createFilter(
+                "java.util.HashMap;java.util.Map$Entry;java.util.ArrayList;" +
+                "java.util.Date;java.lang.*;maxdepth=20;!*"));
+            HashMap data = (HashMap) in.readObject();
+            if (! Integer.valueOf(FORMAT_VERSION).equals(data.get("version")) ||
+                    ! clientVersion.equals(data.get("client"))) {
+                logger.debug("ignoring command cache from other version");
+                return null;
+            }
+            savedFormats = (HashMap) data.get("formats");
+            logger.debug("loaded command cache "+file);
+            return data;
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            logger.debug("unusable command cache "+file+": "+e);
+            return null;
+        }
+    }
+
+    /**
+     * Write the cache file, unless it already holds the same data.
+     * The file is written to a temporary name and renamed, so that a
+     * crash or a concurrent jbofh never leaves half a file behind.
+     *
+     * @param commands the command list
+     * @param formats the known format suggestions
+     * @param force write even if the formats have not changed
+     */
+    @SuppressWarnings("unchecked")
+    synchronized void save(CommandTable commands, Map formats, boolean force) {
+        if (commands == null) return;
+        HashMap copy = new HashMap(formats);
+        if (! force && copy.equals(savedFormats)) return;
+        HashMap data = new HashMap();
+        data.put("version", FORMAT_VERSION);
+        data.put("client", clientVersion);
+        data.put("commands", commands.raw);
+        data.put("formats", copy);
+        File dir = file.getParentFile();
+        File tmp = new File(dir, file.getName()+".tmp");
+        try {
+            if (! dir.isDirectory() && dir.mkdirs()) {
+                dir.setReadable(false, false);
+                dir.setReadable(true, true);
+                dir.setExecutable(false, false);
+                dir.setExecutable(true, true);
+            }
+            try (ObjectOutputStream out =
+                    new ObjectOutputStream(new FileOutputStream(tmp))) {
+                out.writeObject(data);
+            }
+            tmp.setReadable(false, false);
+            tmp.setReadable(true, true);
+            if (! tmp.renameTo(file)) throw new IOException("rename failed");
+            savedFormats = copy;
+            logger.debug("saved command cache "+file);
+        } catch (IOException e) {
+            logger.debug("could not save command cache "+file+": "+e);
+            tmp.delete();
+        }
+    }
+}
+
+// arch-tag: 6d1f0a83-2b5e-4c97-a8d4-95e3c7b10f26
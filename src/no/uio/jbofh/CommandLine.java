@@ -41,11 +41,36 @@ import org.apache.log4j.Logger;
  * @author  runefro, hamar
  */
 public class CommandLine {
+    /**
+     * A token of <code>splitCommand</code> that separates parts of the
+     * command line instead of being an argument.  Arguments are always
+     * <code>String</code>s (or groups of them), so a quoted separator
+     * can never be taken for one.
+     */
+    static final class Separator {
+        private final String text;
+
+        private Separator(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    /**
+     * The token for an unquoted <code>|</code>, which separates a
+     * command from the stages of its <code>Pipeline</code>.
+     */
+    static final Separator PIPE = new Separator("|");
     Logger logger;
     JBofh jbofh;
     Timer timer;
     IdleTerminatorTask terminatorTask;
     ConsoleReader consolereader;
+    private jline.Completor completer;
 
     /**
      * <code>IdleTerminatorTask</code> is used to terminate the
@@ -97,6 +122,11 @@ public class CommandLine {
      * @param terminateDelay */
     public CommandLine(Logger logger, JBofh jbofh, int warnDelay, int terminateDelay) {
         this.jbofh = jbofh;
+        this.logger = logger;
+        if (jbofh != null && jbofh.batch) {
+            // Nothing is read from the console, so there is nothing to time out
+            return;
+        }
         terminatorTask = new IdleTerminatorTask(60*1000, warnDelay, terminateDelay);
         timer = new Timer(false);
         timer.schedule(terminatorTask, 1000, 60*1000);
@@ -109,7 +139,6 @@ public class CommandLine {
                 System.err.println("Could not open jLine library: " + e);
                 System.exit(1);
             }
-            this.logger = logger;
             /*Runtime.getRuntime().addShutdownHook(new Thread() {
                     public void run() {
                         //Readline.cleanup();
@@ -122,7 +151,8 @@ public class CommandLine {
      * Split string into tokens, using whitespace as delimiter.
      * Matching '/" pairs can be used to include whitespace in the
      * tokens.  Sub-groups marked by matching parenthesis are returned
-     * as sub-ArrayLists. Sub-sub groups are not allowed.
+     * as sub-ArrayLists. Sub-sub groups are not allowed.  An unquoted
+     * | is returned as <code>PIPE</code>.
      *
      * @param str
      * @return an ArrayList of parsed tokens.
@@ -150,7 +180,7 @@ public class CommandLine {
                     pstart = i+1;
                     quote = chars[i];
                 } else if(chars[i] == ' ' || chars[i] == '\t' || chars[i] == '('
-                                                           || chars[i] == ')') {
+                                    || chars[i] == ')' || chars[i] == '|') {
                     if(i > pstart) {
                             curApp.add(new String(trim.substring(pstart, i)));
                         }
@@ -166,6 +196,10 @@ public class CommandLine {
                             throw new ParseException("nested paranthesis detected", i);
                         subCmd = new ArrayList();
                         curApp = subCmd;
+                    } else if(chars[i] == '|') {
+                        if(subCmd != null)
+                            throw new ParseException("| inside paranthesis", i);
+                        ret.add(PIPE);
                     }
                 }
             }
@@ -178,10 +212,29 @@ public class CommandLine {
         return ret;
     }
 
+    /**
+     * Quote <code>arg</code> for <code>CommandLine.splitCommand</code>,
+     * unless it is a plain word or a lone <code>|</code>.
+     *
+     * @exception ParseException if <code>arg</code> has both kinds of
+     * quotes, which the command line has no way to write
+     */
+    static String quote(String arg) throws ParseException {
+        if (arg.equals("|") ||
+            (arg.length() > 0 && arg.matches("[^\\s\"'()|]+"))) return arg;
+        if (arg.indexOf('"') == -1) return "\""+arg+"\"";
+        if (arg.indexOf('\'') == -1) return "'"+arg+"'";
+        throw new ParseException("an argument can not have both ' and \": "+
+                                 arg, 0);
+    }
+
     String promptArg(String prompt, boolean addHist) throws IOException {
         if(jbofh.guiEnabled) {
             return jbofh.mainFrame.promptArg(prompt, addHist);
         }
+        if(jbofh.batch) {
+            throw new IOException("Can not prompt for \""+prompt+"\" in batch mode");
+        }
         while (true) {
             // A readline thingy where methods were non-static would have helped a lot.
             terminatorTask.startWaiting();
@@ -204,8 +257,10 @@ public class CommandLine {
      * @param c
      */
     public void setCompleter(jline.Completor c) {
-        if (!jbofh.guiEnabled)  {
+        if (consolereader != null)  {
+            if (completer != null) consolereader.removeCompletor(completer);
             consolereader.addCompletor(c);
+            completer = c;
         }
     }
 
@@ -222,7 +277,8 @@ public class CommandLine {
             "mer(test hei)du morn ",
             "en liten (test av) dette) her",
             "mer (enn du(skulle tro))",
-            "test empty \"\" quote"
+            "test empty \"\" quote",
+            "group list x|sort name | where 'a|b'"
         };
         CommandLine cLine;
         cLine = new CommandLine(Logger.getLogger(CommandLine.class),
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2026 University of Oslo, Norway
+ *
+ * This file is part of Cerebrum.
+ *
+ * Cerebrum is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerebrum is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerebrum; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package no.uio.jbofh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The command list from <code>get_commands</code>, compiled once into
+ * a descriptor per command, so that running, prompting for and
+ * logging a command looks nothing up in the raw structure:
+ * <pre>
+ * { 'user_info': [ ['user', 'info'],
+ *                  [ {'type': 'accountName', 'prompt': 'Account name',
+ *                     'optional': 1, 'default': ..., 'help_ref': ...},
+ *                    ... ] or 'prompt_func' ],
+ *   ... }
+ * </pre>
+ * The descriptors are never changed after they are made, so a table
+ * may be shared by all threads.  A command whose parameter spec can
+ * not be understood gets an error, which is thrown when it is run, as
+ * before; a table that is not shaped like the above is refused.
+ */
+final class CommandTable {
+    /** The <code>get_commands</code> map, for the cache and to compare */
+    final HashMap raw;
+    private final HashMap byName;
+    private final List commands;
+
+    /**
+     * One parameter of a command.
+     */
+    static final class Param {
+        final String type, prompt;
+        final Object helpRef;
+        /** true if the parameter is not prompted for unless others are */
+        final boolean optional;
+        /** true if the spec has "optional" at all; may then be left empty */
+        final boolean mayBeEmpty;
+        /** The default, or null */
+        final String defaultValue;
+        /** true if the default must be asked for with get_default_param */
+        final boolean serverDefault;
+        final boolean password;
+
+        Param(Map spec) {
+            type = (String) spec.get("type");
+            prompt = (String) spec.get("prompt");
+            helpRef = spec.get("help_ref");
+            Object opt = spec.get("optional");
+            optional = (opt instanceof Boolean && ((Boolean) opt)) ||
+                (opt instanceof Integer && ((Integer) opt) == 1);
+            mayBeEmpty = opt != null;
+            Object def = spec.get("default");
+            defaultValue = def instanceof String ? (String) def : null;
+            serverDefault = def != null && defaultValue == null;
+            password = "accountPassword".equals(type);
+        }
+
+        @Override
+        public String toString() {
+            return "{type="+type+", prompt="+prompt+", optional="+optional+
+                (defaultValue != null ? ", default="+defaultValue : "")+
+                (serverDefault ? ", default from server" : "")+
+                ", help_ref="+helpRef+"}";
+        }
+    }
+
+    /**
+     * One command.
+     */
+    static final class Command {
+        /** The protocol name, like <code>user_info</code> */
+        final String name;
+        /** The words typed for it, like <code>[user, info]</code> */
+        final List words;
+        final Param[] params;
+        /** true if the server prompts for the arguments */
+        final boolean promptFunc;
+        /** Why the parameter spec is not usable, or null */
+        final String specError;
+        /** true if one of the parameters is a password */
+        final boolean hasPassword;
+
+        @SuppressWarnings("unchecked")
+        Command(String name, List def) {
+            this.name = name;
+            ArrayList w = new ArrayList((List) def.get(0));
+            for (Iterator e = w.iterator(); e.hasNext(); ) {
+                if (! (e.next() instanceof String))
+                    throw new ClassCastException("command word of "+name);
+            }
+            words = Collections.unmodifiableList(w);
+            Object spec = def.size() > 1 ? def.get(1) : null;
+            Param[] p = new Param[0];
+            String err = null;
+            boolean pw = false;
+            if (spec instanceof List) {
+                List l = (List) spec;
+                p = new Param[l.size()];
+                for (int i = 0; i < p.length; i++) {
+                    p[i] = new Param((Map) l.get(i));
+                    pw |= p[i].password;
+                }
+            } else if (spec != null && ! "prompt_func".equals(spec)) {
+                err = "Bad param spec";
+            }
+            params = p;
+            promptFunc = "prompt_func".equals(spec);
+            specError = err;
+            hasPassword = pw;
+        }
+
+        /**
+         * @param args the arguments of a <code>run_command</code>
+         * request, after <code>offset</code> other values
+         * @return <code>args</code> with the passwords hidden, for the
+         * debug log
+         */
+        @SuppressWarnings("unchecked")
+        List maskPasswords(List args, int offset) {
+            if (! hasPassword) return args;
+            ArrayList ret = new ArrayList(args);
+            for (int i = 0; i < params.length && offset + i < ret.size(); i++) {
+                if (params[i].password) ret.set(offset + i, "********");
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * @param raw the <code>get_commands</code> map
+     * @exception BofhdException if it is not a command list
+     */
+    @SuppressWarnings("unchecked")
+    CommandTable(HashMap raw) throws BofhdException {
+        if (raw == null) throw new BofhdException("No command list");
+        this.raw = raw;
+        byName = new HashMap(raw.size() * 2);
+        ArrayList all = new ArrayList(raw.size());
+        for (Iterator e = raw.entrySet().iterator(); e.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) e.next();
+            Command c;
+            try {
+                c = new Command((String) entry.getKey(), (List) entry.getValue());
+            } catch (ClassCastException | IndexOutOfBoundsException |
+                     NullPointerException ex) {
+                throw new BofhdException("Bad command list from server: "+
+                                         entry.getKey()+": "+ex);
+            }
+            byName.put(c.name, c);
+            all.add(c);
+        }
+        commands = Collections.unmodifiableList(all);
+    }
+
+    /**
+     * @return the command with the protocol name <code>name</code>, or
+     * null
+     */
+    Command get(String name) {
+        return (Command) byName.get(name);
+    }
+
+    /**
+     * @return all commands, in no particular order
+     */
+    List getCommands() {
+        return commands;
+    }
+
+    /**
+     * Time looking up and masking a command in the old way, walking
+     * the raw map, and in the compiled table:
+     * <code>java -cp JBofh.jar no.uio.jbofh.CommandTable [commands]</code>
+     */
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        HashMap raw = new HashMap();
+        for (int i = 0; i < n; i++) {
+            ArrayList params = new ArrayList();
+            for (int j = 0; j < 3; j++) {
+                HashMap p = new HashMap();
+                p.put("type", j == 1 ? "accountPassword" : "accountName");
+                p.put("prompt", "Argument "+j);
+                p.put("optional", j == 2 ? Boolean.TRUE : Boolean.FALSE);
+                p.put("help_ref", "arg_"+j);
+                params.add(p);
+            }
+            raw.put("cmd_"+i, new ArrayList(Arrays.asList(
+                new ArrayList(Arrays.asList("cmd", "c"+i)), params)));
+        }
+        long start = System.nanoTime();
+        CommandTable table = new CommandTable(raw);
+        System.out.println("compiled "+n+" commands in "+
+                           (System.nanoTime() - start) / 1000+" us");
+        String[] names = new String[n];
+        for (int i = 0; i < n; i++) names[i] = "cmd_"+i;
+        ArrayList request = new ArrayList(Arrays.asList(
+            "session", "cmd_7", "foo", "secret", "bar"));
+        for (int round = 0; round < 3; round++) {
+            int masked = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < 1000000; i++) {
+                // As sendRawCommand and checkArgs did it
+                ArrayList def = (ArrayList) raw.get(names[i % n]);
+                ArrayList protoArgs = (ArrayList) def.get(1);
+                for (int j = 2; j < request.size(); j++) {
+                    Map h = (Map) protoArgs.get(j - 2);
+                    if ("accountPassword".equals(h.get("type"))) masked++;
+                    Object opt = h.get("optional");
+                    if (opt instanceof Boolean && ((Boolean) opt)) masked--;
+                }
+            }
+            long raw_ns = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < 1000000; i++) {
+                Command c = table.get(names[i % n]);
+                for (int j = 0; j < c.params.length; j++) {
+                    if (c.params[j].password) masked++;
+                    if (c.params[j].optional) masked--;
+                }
+            }
+            long table_ns = System.nanoTime() - start;
+            System.out.println("1000000 lookups: raw map "+raw_ns / 1000000+
+                               " ms, compiled "+table_ns / 1000000+" ms ("+
+                               masked+")");
+        }
+        System.out.println(table.get("cmd_7").maskPasswords(request, 2));
+    }
+}
+
+// arch-tag: 6b1d9f24-8e3a-4c57-a0f2-d7e5b3c91a48
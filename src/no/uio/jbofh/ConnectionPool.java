@@ -0,0 +1,268 @@
+/*
+ * Copyright 2026 University of Oslo, Norway
+ *
+ * This file is part of Cerebrum.
+ *
+ * Cerebrum is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerebrum is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerebrum; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package no.uio.jbofh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.apache.commons.httpclient.DefaultHttpMethodRetryHandler;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+import org.apache.commons.httpclient.params.HttpMethodParams;
+import org.apache.commons.httpclient.protocol.Protocol;
+import org.apache.commons.httpclient.protocol.SecureProtocolSocketFactory;
+import org.apache.log4j.Category;
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.XmlRpcRequest;
+import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcCommonsTransport;
+import org.apache.xmlrpc.client.XmlRpcCommonsTransportFactory;
+import org.apache.xmlrpc.client.XmlRpcHttpClientConfig;
+import org.apache.xmlrpc.client.XmlRpcTransport;
+import org.apache.xmlrpc.common.XmlRpcStreamRequestConfig;
+import org.xml.sax.SAXException;
+
+/**
+ * A pool of persistent (keep-alive) HTTP connections to bofhd.  The
+ * pool is installed as the transport of an <code>XmlRpcClient</code>,
+ * so that consecutive commands reuse an already established TLS
+ * connection instead of doing a new handshake for each request.
+ * Connections that have been idle longer than the configured timeout
+ * are closed by a background timer.
+ */
+class ConnectionPool {
+    Category logger;
+    MultiThreadedHttpConnectionManager manager;
+    HttpClient httpClient;
+    TLSSocketFactory socketFactory;
+    Timer evictionTimer;
+    private long requests = 0;
+
+    /**
+     * Socket factory used by commons-httpclient for https.  Sockets are
+     * created from the <code>SSLContext</code> set up by
+     * <code>BofhdConnection.connect</code>, and the server hostname is
+     * verified just like <code>HttpsURLConnection</code> would do.
+     * Completed handshakes are counted, and handshakes that resumed a
+     * cached TLS session are counted separately.
+     */
+    static class TLSSocketFactory implements SecureProtocolSocketFactory {
+        SSLSocketFactory sf;
+        private long handshakes = 0, resumed = 0;
+
+        TLSSocketFactory(SSLSocketFactory sf) {
+            this.sf = sf;
+        }
+
+        private Socket wrap(Socket plain, String host, int port)
+                throws IOException {
+            final long created = System.currentTimeMillis();
+            SSLSocket s = (SSLSocket) sf.createSocket(plain, host, port, true);
+            SSLParameters params = s.getSSLParameters();
+            params.setEndpointIdentificationAlgorithm("HTTPS");
+            s.setSSLParameters(params);
+            s.addHandshakeCompletedListener((HandshakeCompletedEvent e) -> {
+                SSLSession session = e.getSession();
+                synchronized (TLSSocketFactory.this) {
+                    handshakes++;
+                    // A resumed session keeps the creation time of the
+                    // session it was resumed from.
+                    if (session.getCreationTime() < created) resumed++;
+                }
+            });
+            s.startHandshake();
+            return s;
+        }
+
+        public Socket createSocket(String host, int port,
+                InetAddress localAddress, int localPort,
+                HttpConnectionParams params) throws IOException {
+            Socket plain = new Socket();
+            if (localAddress != null) {
+                plain.bind(new InetSocketAddress(localAddress, localPort));
+            }
+            int timeout = params == null ? 0 : params.getConnectionTimeout();
+            plain.connect(new InetSocketAddress(host, port), timeout);
+            // Also bounds the TLS handshake
+            if (params != null) plain.setSoTimeout(params.getSoTimeout());
+            return wrap(plain, host, port);
+        }
+
+        public Socket createSocket(String host, int port,
+                InetAddress localAddress, int localPort) throws IOException {
+            return createSocket(host, port, localAddress, localPort, null);
+        }
+
+        public Socket createSocket(String host, int port) throws IOException {
+            return createSocket(host, port, null, 0, null);
+        }
+
+        public Socket createSocket(Socket socket, String host, int port,
+                boolean autoClose) throws IOException {
+            return wrap(socket, host, port);
+        }
+
+        synchronized long getHandshakes() { return handshakes; }
+        synchronized long getResumed() { return resumed; }
+    }
+
+    /**
+     * @param logger
+     * @param sc the SSL context used for https connections, may be
+     * null if bofhd is not accessed over https
+     * @param maxConnections maximum number of simultaneous connections
+     * @param idleTimeout seconds a connection may stay idle in the
+     * pool before it is closed, or 0 to keep it until the server
+     * closes it
+     */
+    ConnectionPool(Category logger, SSLContext sc, int maxConnections,
+                   int idleTimeout) {
+        this.logger = logger;
+        Log4jLogFactory.install();
+        manager = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams params = manager.getParams();
+        params.setDefaultMaxConnectionsPerHost(maxConnections);
+        params.setMaxTotalConnections(maxConnections);
+        params.setStaleCheckingEnabled(true);
+        httpClient = new HttpClient(manager);
+        if (sc != null) {
+            socketFactory = new TLSSocketFactory(sc.getSocketFactory());
+            Protocol.registerProtocol("https",
+                                      new Protocol("https", socketFactory, 443));
+        }
+        if (idleTimeout > 0) {
+            final long idleMillis = idleTimeout * 1000L;
+            evictionTimer = new Timer("jbofh-pool-eviction", true);
+            evictionTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    manager.closeIdleConnections(idleMillis);
+                }
+            }, idleMillis, Math.max(idleMillis / 2, 1000));
+        }
+    }
+
+    /**
+     * Make <code>xmlrpc</code> send its requests through this pool.
+     *
+     * @param xmlrpc the client to install the pool in
+     * @param bc told how to abort each request
+     */
+    void install(XmlRpcClient xmlrpc, final BofhdConnection bc) {
+        XmlRpcCommonsTransportFactory factory =
+                new XmlRpcCommonsTransportFactory(xmlrpc) {
+            @Override
+            public XmlRpcTransport getTransport() {
+                // One transport is created for each request
+                synchronized (ConnectionPool.this) {
+                    requests++;
+                }
+                return new XmlRpcCommonsTransport(this) {
+                    final GzipPolicy.Exchange exchange = bc.gzip.newExchange();
+
+                    @Override
+                    protected PostMethod newPostMethod(
+                                            XmlRpcHttpClientConfig pConfig) {
+                        PostMethod m = super.newPostMethod(pConfig);
+                        // Never send a request again by itself: bofhd
+                        // may already have run it
+                        m.getParams().setParameter(
+                            HttpMethodParams.RETRY_HANDLER,
+                            new DefaultHttpMethodRetryHandler(0, false));
+                        bc.setAbort(m::abort);
+                        return m;
+                    }
+
+                    @Override
+                    protected ReqWriter newReqWriter(XmlRpcRequest pRequest)
+                            throws XmlRpcException, IOException, SAXException {
+                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                        super.newReqWriter(pRequest).write(baos);
+                        final byte[] data = bc.gzip.encodeRequest(exchange,
+                                                          baos.toByteArray());
+                        if (exchange.compressed)
+                            setRequestHeader("Content-Encoding", "gzip");
+                        setContentLength(data.length);
+                        return (OutputStream out) -> {
+                            out.write(data);
+                            out.close();
+                        };
+                    }
+
+                    @Override
+                    protected InputStream getInputStream()
+                                                    throws XmlRpcException {
+                        return bc.gzip.wire(exchange, super.getInputStream());
+                    }
+
+                    @Override
+                    protected Object readResponse(
+                            XmlRpcStreamRequestConfig pConfig,
+                            InputStream pStream) throws XmlRpcException {
+                        return bc.readResponse(exchange, pConfig, pStream,
+                                               super::readResponse);
+                    }
+                };
+            }
+        };
+        factory.setHttpClient(httpClient);
+        xmlrpc.setTransportFactory(factory);
+    }
+
+    /**
+     * @return a one-line summary of connection reuse
+     */
+    synchronized String getStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("connection pool: ").append(requests).append(" requests, ");
+        sb.append(manager.getConnectionsInPool()).append(" open connections");
+        if (socketFactory != null) {
+            sb.append(", ").append(socketFactory.getHandshakes());
+            sb.append(" TLS handshakes (").append(socketFactory.getResumed());
+            sb.append(" resumed sessions)");
+        }
+        return sb.toString();
+    }
+
+    void shutdown() {
+        if (evictionTimer != null) evictionTimer.cancel();
+        manager.shutdown();
+    }
+}
+
+// arch-tag: 5b0e6c1d-3f7a-4e42-9a0e-7d2f8c1b6a41
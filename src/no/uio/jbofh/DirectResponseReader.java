@@ -0,0 +1,848 @@
+/*
+ * Copyright 2026 University of Oslo, Norway
+ *
+ * This file is part of Cerebrum.
+ *
+ * Cerebrum is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerebrum is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerebrum; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package no.uio.jbofh;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+import com.jclark.xml.tok.ContentToken;
+import com.jclark.xml.tok.EmptyTokenException;
+import com.jclark.xml.tok.Encoding;
+import com.jclark.xml.tok.ExtensibleTokenException;
+import com.jclark.xml.tok.InvalidTokenException;
+import com.jclark.xml.tok.PartialTokenException;
+import com.jclark.xml.tok.StringConversionCache;
+import com.jclark.xml.tok.XmlDecl;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
+import org.apache.xmlrpc.client.XmlRpcClientException;
+import org.apache.xmlrpc.common.XmlRpcStreamRequestConfig;
+import org.apache.xmlrpc.parser.XmlRpcResponseParser;
+import org.apache.xmlrpc.util.SAXParsers;
+import org.apache.xmlrpc.util.XmlRpcDateTimeDateFormat;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Decodes XML-RPC responses straight from the bytes read, with James
+ * Clark's tokenizer, instead of through a JAXP SAX parser and the
+ * type parsers of the type factory.  The values are the same as those
+ * <code>StreamingTypeFactory</code> gives, and streamed responses are
+ * handed to its <code>RowHandler</code> in the same way.  Only the
+ * types of the XML-RPC specification are known, like in the type
+ * factory without extensions.
+ *
+ * Member names of structs are converted through a
+ * <code>StringConversionCache</code>, so each name is one
+ * <code>String</code> for the whole response.  Structs inside other
+ * values are <code>SharedKeyMap</code>s, as the type factory makes
+ * them.
+ */
+class DirectResponseReader implements BofhdConnection.ResponseReader {
+    static final String[] TAGS = {
+        "methodResponse", "params", "param", "fault", "value", "struct",
+        "member", "name", "array", "data", "string", "i4", "int",
+        "boolean", "double", "dateTime.iso8601", "base64" };
+    static final int METHOD_RESPONSE = 0, PARAMS = 1, PARAM = 2, FAULT = 3,
+        VALUE = 4, STRUCT = 5, MEMBER = 6, NAME = 7, ARRAY = 8, DATA = 9,
+        STRING = 10, I4 = 11, INT = 12, BOOLEAN = 13, DOUBLE = 14,
+        DATETIME = 15, BASE64 = 16, UNKNOWN = -1;
+    static final int EOF = 0, START = 1, END = 2;
+    /** The tag names in ASCII, which UTF-8 and ISO-8859-1 agree with */
+    static final byte[][] TAG_BYTES = new byte[TAGS.length][];
+    static {
+        for (int i = 0; i < TAGS.length; i++)
+            TAG_BYTES[i] = TAGS[i].getBytes(StandardCharsets.US_ASCII);
+    }
+
+    StreamingTypeFactory typeFactory;
+
+    DirectResponseReader(StreamingTypeFactory typeFactory) {
+        this.typeFactory = typeFactory;
+    }
+
+    @Override
+    public Object read(XmlRpcStreamRequestConfig pConfig, InputStream in)
+                                                    throws XmlRpcException {
+        return new Decoder(in, pConfig.getTimeZone()).response();
+    }
+
+    /**
+     * The state of decoding one response.
+     */
+    class Decoder {
+        final InputStream in;
+        final TimeZone timeZone;
+        final ContentToken token = new ContentToken();
+        Encoding enc;
+        int minBPC;
+        StringConversionCache names;
+        byte[] buf = new byte[16384];
+        /** The unread bytes are buf[pos..end], and pos is byte
+         * <code>consumed + pos</code> of the response */
+        int pos = 0, end = 0, tokEnd;
+        long consumed = 0;
+        boolean eof = false, cdata = false, pendingEnd = false;
+        /** The element of the last START or END */
+        int tag;
+        String tagName;
+        char[] nameBuf = new char[32];
+        /** Character data since it was last cleared */
+        char[] text = new char[256];
+        int textLen = 0;
+        /** Set while reading a member name, see <code>next</code> */
+        boolean intern;
+        String interned;
+        XmlRpcDateTimeDateFormat dateFormat;
+        /** The number of structs and arrays being decoded */
+        int depth = 0;
+        final SharedKeyMap.Schema root = new SharedKeyMap.Schema();
+        SharedKeyMap.Builder[] builders = new SharedKeyMap.Builder[8];
+
+        Decoder(InputStream in, TimeZone timeZone) {
+            this.in = in;
+            this.timeZone = timeZone;
+        }
+
+        Object response() throws XmlRpcException {
+            try {
+                start();
+                expect(nextTag(), START, METHOD_RESPONSE);
+                int ev = nextTag();
+                boolean isFault = ev == START && tag == FAULT;
+                if (! isFault && (ev != START || tag != PARAMS)) {
+                    throw error("Expected params or fault element, got "+
+                                describe(ev));
+                }
+                if (! isFault) expect(nextTag(), START, PARAM);
+                expect(nextTag(), START, VALUE);
+                Object ret = topValue();
+                if (! isFault) expect(nextTag(), END, PARAM);
+                expect(nextTag(), END, isFault ? FAULT : PARAMS);
+                expect(nextTag(), END, METHOD_RESPONSE);
+                if (nextTag() != EOF) throw error("Junk after document element");
+                if (isFault) throw fault(ret);
+                return ret;
+            } catch (IOException e) {
+                throw new XmlRpcClientException("Failed to read server's "+
+                                                "response: "+e.getMessage(), e);
+            }
+        }
+
+        private XmlRpcException fault(Object value) throws XmlRpcException {
+            if (! (value instanceof Map))
+                throw error("Fault is not a struct");
+            Map map = (Map) value;
+            Object faultCode = map.get("faultCode");
+            if (! (faultCode instanceof Integer))
+                throw error("Missing faultCode");
+            return new XmlRpcException(((Integer) faultCode).intValue(),
+                                       (String) map.get("faultString"));
+        }
+
+        private XmlRpcClientException error(String msg) {
+            return new XmlRpcClientException("Failed to parse server's "+
+                "response: "+msg+" (at byte "+(consumed + pos)+")", null);
+        }
+
+        /**
+         * Find the encoding, from a byte order mark or else UTF-8.  The
+         * XML declaration may change it in <code>next</code>.
+         */
+        private void start() throws IOException, XmlRpcException {
+            while (end < 4 && fill()) ;
+            enc = Encoding.getInitialEncoding(buf, 0, end, token);
+            if (enc == null) throw error("Unknown encoding");
+            pos = token.getTokenEnd();
+            minBPC = enc.getMinBytesPerChar();
+        }
+
+        private boolean fill() throws IOException {
+            if (eof) return false;
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, end - pos);
+                consumed += pos;
+                end -= pos;
+                pos = 0;
+            }
+            if (end == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+            int n = in.read(buf, end, buf.length - end);
+            if (n < 0) {
+                eof = true;
+                return false;
+            }
+            end += n;
+            return true;
+        }
+
+        /**
+         * @return the next token, reading more of the response as
+         * needed, or -1 at the end of the response
+         */
+        private int tokenize() throws IOException, XmlRpcException {
+            for (;;) {
+                try {
+                    int tok = cdata ?
+                        enc.tokenizeCdataSection(buf, pos, end, token) :
+                        enc.tokenizeContent(buf, pos, end, token);
+                    tokEnd = token.getTokenEnd();
+                    return tok;
+                } catch (EmptyTokenException e) {
+                    if (! fill()) return -1;
+                } catch (PartialTokenException e) {
+                    if (! fill()) throw error("Unexpected end of response");
+                } catch (ExtensibleTokenException e) {
+                    if (! fill()) {
+                        tokEnd = end;
+                        return e.getTokenType();
+                    }
+                } catch (InvalidTokenException e) {
+                    pos = e.getOffset();
+                    throw error("Not well-formed");
+                }
+            }
+        }
+
+        /**
+         * Read up to the next tag, adding any character data to
+         * <code>text</code>.
+         *
+         * @return START, END or EOF, with the element in
+         * <code>tag</code>
+         */
+        private int next() throws IOException, XmlRpcException {
+            if (pendingEnd) {
+                pendingEnd = false;
+                return END;
+            }
+            for (;;) {
+                int tok = tokenize();
+                switch (tok) {
+                    case -1:
+                        if (cdata) throw error("Unexpected end of response");
+                        return EOF;
+                    case Encoding.TOK_START_TAG_NO_ATTS:
+                    case Encoding.TOK_START_TAG_WITH_ATTS:
+                        setTag(pos + minBPC, token.getNameEnd());
+                        pos = tokEnd;
+                        return START;
+                    case Encoding.TOK_EMPTY_ELEMENT_NO_ATTS:
+                    case Encoding.TOK_EMPTY_ELEMENT_WITH_ATTS:
+                        setTag(pos + minBPC, token.getNameEnd());
+                        pos = tokEnd;
+                        pendingEnd = true;
+                        return START;
+                    case Encoding.TOK_END_TAG:
+                        setTag(pos + 2 * minBPC, token.getNameEnd());
+                        pos = tokEnd;
+                        return END;
+                    case Encoding.TOK_DATA_CHARS:
+                        if (intern) {
+                            interned = textLen == 0 ?
+                                names.convert(buf, pos, tokEnd, true) : null;
+                        }
+                        appendText(pos, tokEnd);
+                        break;
+                    case Encoding.TOK_DATA_NEWLINE:
+                        appendChar('\n');
+                        break;
+                    case Encoding.TOK_MAGIC_ENTITY_REF:
+                    case Encoding.TOK_CHAR_REF:
+                        appendChar(token.getRefChar());
+                        break;
+                    case Encoding.TOK_CHAR_PAIR_REF:
+                        ensureText(2);
+                        token.getRefCharPair(text, textLen);
+                        textLen += 2;
+                        interned = null;
+                        break;
+                    case Encoding.TOK_CDATA_SECT_OPEN:
+                        cdata = true;
+                        break;
+                    case Encoding.TOK_CDATA_SECT_CLOSE:
+                        cdata = false;
+                        break;
+                    case Encoding.TOK_XML_DECL:
+                        xmlDecl();
+                        break;
+                    case Encoding.TOK_PI:
+                    case Encoding.TOK_COMMENT:
+                        break;
+                    case Encoding.TOK_ENTITY_REF:
+                        throw error("Undefined entity");
+                    default:
+                        throw error("Unexpected markup");
+                }
+                pos = tokEnd;
+            }
+        }
+
+        private void xmlDecl() throws XmlRpcException {
+            if (consumed + pos > 3)
+                throw error("Misplaced XML declaration");
+            try {
+                String name = new XmlDecl(enc, buf, pos, tokEnd).getEncoding();
+                if (name == null) return;
+                Encoding declared = enc.getEncoding(name);
+                if (declared == null)
+                    throw error("Unsupported encoding "+name);
+                if (declared.getMinBytesPerChar() != minBPC)
+                    throw error("Encoding "+name+" does not match the "+
+                                "byte order mark");
+                enc = declared;
+            } catch (InvalidTokenException e) {
+                throw error("Bad XML declaration");
+            }
+        }
+
+        private void setTag(int start, int nameEnd) {
+            if (minBPC == 1) {
+                // Compare the bytes, without converting them
+                int n = nameEnd - start;
+                for (tag = 0; tag < TAGS.length; tag++) {
+                    byte[] t = TAG_BYTES[tag];
+                    if (t.length != n) continue;
+                    int i = 0;
+                    while (i < n && t[i] == buf[start + i]) i++;
+                    if (i == n) {
+                        tagName = TAGS[tag];
+                        return;
+                    }
+                }
+            }
+            int len = (nameEnd - start) / minBPC;
+            if (len > nameBuf.length) nameBuf = new char[len];
+            int n = enc.convert(buf, start, nameEnd, nameBuf, 0);
+            for (tag = 0; tag < TAGS.length; tag++) {
+                String t = TAGS[tag];
+                if (t.length() != n) continue;
+                int i = 0;
+                while (i < n && t.charAt(i) == nameBuf[i]) i++;
+                if (i == n) {
+                    tagName = t;
+                    return;
+                }
+            }
+            tag = UNKNOWN;
+            tagName = new String(nameBuf, 0, n);
+        }
+
+        private void ensureText(int more) {
+            if (textLen + more > text.length) {
+                text = Arrays.copyOf(text,
+                                     Math.max(text.length * 2, textLen + more));
+            }
+        }
+
+        private void appendText(int start, int stop) {
+            ensureText((stop - start) / minBPC);
+            textLen += enc.convert(buf, start, stop, text, textLen);
+        }
+
+        private void appendChar(char c) {
+            ensureText(1);
+            text[textLen++] = c;
+            interned = null;
+        }
+
+        private String describe(int ev) {
+            if (ev == EOF) return "end of response";
+            return (ev == END ? "/" : "")+tagName;
+        }
+
+        /**
+         * @return the next tag, after checking that there is only
+         * whitespace before it
+         */
+        private int nextTag() throws IOException, XmlRpcException {
+            textLen = 0;
+            int ev = next();
+            checkWhitespace();
+            return ev;
+        }
+
+        private void checkWhitespace() throws XmlRpcException {
+            for (int i = 0; i < textLen; i++) {
+                if (! Character.isWhitespace(text[i]))
+                    throw error("Unexpected non-whitespace characters");
+            }
+        }
+
+        private void expect(int ev, int what, int t) throws XmlRpcException {
+            if (ev != what || tag != t) {
+                throw error("Expected "+(what == END ? "/" : "")+TAGS[t]+
+                            " element, got "+describe(ev));
+            }
+        }
+
+        /**
+         * Decode the value of the params or the fault, which is
+         * streamed if it is an array and the type factory says so.
+         */
+        private Object topValue() throws IOException, XmlRpcException {
+            textLen = 0;
+            int ev = next();
+            if (ev == END && tag == VALUE) return new String(text, 0, textLen);
+            if (ev != START) throw error("Expected a type, got "+describe(ev));
+            checkWhitespace();
+            StreamingTypeFactory.RowHandler rowHandler =
+                typeFactory.startTopLevel(tag == ARRAY);
+            Object ret;
+            if (rowHandler != null) {
+                rowHandler.start();
+                ret = array(rowHandler);
+            } else {
+                ret = typed();
+            }
+            expect(nextTag(), END, VALUE);
+            return ret;
+        }
+
+        /**
+         * Decode a value, after its start tag.
+         */
+        private Object value() throws IOException, XmlRpcException {
+            textLen = 0;
+            int ev = next();
+            if (ev == END && tag == VALUE) return new String(text, 0, textLen);
+            if (ev != START) throw error("Expected a type, got "+describe(ev));
+            checkWhitespace();
+            Object ret = typed();
+            expect(nextTag(), END, VALUE);
+            return ret;
+        }
+
+        /**
+         * Decode the typed value that starts with <code>tag</code>.
+         */
+        private Object typed() throws IOException, XmlRpcException {
+            int t = tag;
+            switch (t) {
+                case STRUCT:
+                    return struct();
+                case ARRAY:
+                    return array(null);
+                case STRING:
+                case I4:
+                case INT:
+                case BOOLEAN:
+                case DOUBLE:
+                case DATETIME:
+                case BASE64:
+                    break;
+                default:
+                    throw error("Unknown type: "+tagName);
+            }
+            String s = atomic(t);
+            switch (t) {
+                case I4:
+                case INT:
+                    try {
+                        return Integer.valueOf(s.trim());
+                    } catch (NumberFormatException e) {
+                        throw error("Failed to parse integer value: "+s);
+                    }
+                case BOOLEAN:
+                    String b = s.trim();
+                    if (b.equals("1")) return Boolean.TRUE;
+                    if (b.equals("0")) return Boolean.FALSE;
+                    throw error("Failed to parse boolean value: "+s);
+                case DOUBLE:
+                    try {
+                        return Double.valueOf(s);
+                    } catch (NumberFormatException e) {
+                        throw error("Failed to parse double value: "+s);
+                    }
+                case DATETIME:
+                    if (s.trim().length() == 0) return null;
+                    try {
+                        return dateFormat().parseObject(s.trim());
+                    } catch (ParseException e) {
+                        throw error("Failed to parse date value: "+s);
+                    }
+                case BASE64:
+                    try {
+                        return Base64.getMimeDecoder().decode(s);
+                    } catch (IllegalArgumentException e) {
+                        throw error("Failed to parse base64 value");
+                    }
+                default:
+                    return s;
+            }
+        }
+
+        private XmlRpcDateTimeDateFormat dateFormat() {
+            if (dateFormat == null) {
+                dateFormat = new XmlRpcDateTimeDateFormat() {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected TimeZone getTimeZone() {
+                        return timeZone;
+                    }
+                };
+            }
+            return dateFormat;
+        }
+
+        /**
+         * @return the character data up to the end tag of
+         * <code>t</code>
+         */
+        private String atomic(int t) throws IOException, XmlRpcException {
+            textLen = 0;
+            int ev = next();
+            if (ev != END || tag != t) {
+                throw error("Unexpected "+describe(ev)+" in atomic element "+
+                            TAGS[t]);
+            }
+            return new String(text, 0, textLen);
+        }
+
+        /**
+         * Decode a struct, into a <code>HashMap</code> if it is the
+         * whole response and else into a <code>SharedKeyMap</code>.
+         */
+        @SuppressWarnings("unchecked")
+        private Map struct() throws IOException, XmlRpcException {
+            HashMap map = null;
+            SharedKeyMap.Builder builder = null;
+            if (depth == 0 || ! typeFactory.sharedKeys) {
+                map = new HashMap();
+            } else {
+                if (depth >= builders.length)
+                    builders = Arrays.copyOf(builders, builders.length * 2);
+                if (builders[depth] == null)
+                    builders[depth] = new SharedKeyMap.Builder();
+                builder = builders[depth];
+                builder.start(root);
+            }
+            if (names == null) names = new StringConversionCache(enc, 251);
+            depth++;
+            for (;;) {
+                int ev = nextTag();
+                if (ev == END && tag == STRUCT) break;
+                expect(ev, START, MEMBER);
+                expect(nextTag(), START, NAME);
+                textLen = 0;
+                interned = null;
+                intern = true;
+                try {
+                    ev = next();
+                } finally {
+                    intern = false;
+                }
+                expect(ev, END, NAME);
+                String name = interned != null ? interned :
+                    new String(text, 0, textLen);
+                expect(nextTag(), START, VALUE);
+                Object v = value();
+                if (map != null ? map.put(name, v) != null :
+                        ! builder.add(name, v))
+                    throw error("Duplicate name: "+name);
+                expect(nextTag(), END, MEMBER);
+            }
+            depth--;
+            return map != null ? map : builder.build();
+        }
+
+        /**
+         * Decode an array, giving the elements to
+         * <code>rowHandler</code> if it is not null.
+         */
+        @SuppressWarnings("unchecked")
+        private ArrayList array(StreamingTypeFactory.RowHandler rowHandler)
+                                        throws IOException, XmlRpcException {
+            ArrayList list = new ArrayList();
+            depth++;
+            expect(nextTag(), START, DATA);
+            for (;;) {
+                int ev = nextTag();
+                if (ev == END && tag == DATA) break;
+                expect(ev, START, VALUE);
+                Object v = value();
+                if (rowHandler != null) {
+                    rowHandler.handleRow(v);
+                } else {
+                    list.add(v);
+                }
+            }
+            expect(nextTag(), END, ARRAY);
+            depth--;
+            return list;
+        }
+    }
+
+    /**
+     * Reads a byte array a few bytes at a time, so that tokens are
+     * split across reads.
+     */
+    static class TrickleInputStream extends ByteArrayInputStream {
+        int n = 0;
+
+        TrickleInputStream(byte[] b) {
+            super(b);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1 + (n++ % 7)));
+        }
+    }
+
+    static Object readSax(XmlRpcStreamRequestConfig config,
+                          StreamingTypeFactory typeFactory, InputStream in)
+                                                    throws Exception {
+        XMLReader xr = SAXParsers.newXMLReader();
+        XmlRpcResponseParser xp = new XmlRpcResponseParser(config, typeFactory);
+        xr.setContentHandler(xp);
+        xr.setErrorHandler(new DefaultHandler());
+        xr.parse(new InputSource(in));
+        if (xp.isSuccess()) return xp.getResult();
+        throw new XmlRpcException(xp.getErrorCode(), xp.getErrorMessage());
+    }
+
+    static String show(Object o) {
+        if (o instanceof byte[]) return "bytes"+Arrays.toString((byte[]) o);
+        if (o instanceof java.util.Date)
+            return "date "+((java.util.Date) o).getTime();
+        return o == null ? "null" : o.getClass().getSimpleName()+" "+o;
+    }
+
+    static String result(XmlRpcStreamRequestConfig config,
+                         StreamingTypeFactory typeFactory,
+                         DirectResponseReader direct, byte[] doc,
+                         boolean useDirect, boolean trickle) {
+        InputStream in = trickle ? new TrickleInputStream(doc) :
+            new ByteArrayInputStream(doc);
+        try {
+            return show(useDirect ? direct.read(config, in) :
+                            readSax(config, typeFactory, in));
+        } catch (XmlRpcException e) {
+            if (e.getMessage() != null &&
+                    e.getMessage().startsWith("Failed to parse")) return "error";
+            return "fault "+e.code+" "+e.getMessage();
+        } catch (Exception e) {
+            return "error";
+        }
+    }
+
+    static String row(int i) {
+        return "<value><struct>"+
+            "<member><name>name</name><value><string>user"+i+
+            "</string></value></member>"+
+            "<member><name>owner_id</name><value><int>"+(100000 + i)+
+            "</int></value></member>"+
+            "<member><name>expire</name><value><dateTime.iso8601>2026"+
+            String.format("%02d%02d", 1 + i % 12, 1 + i % 28)+
+            "T12:00:00</dateTime.iso8601></value></member>"+
+            "<member><name>spread</name><value><string>:None</string>"+
+            "</value></member>"+
+            "<member><name>description</name><value><string>Gruppe for "+
+            "&#230;&#248;&#229; &amp; co, rom "+i+"</string></value>"+
+            "</member></struct></value>\n";
+    }
+
+    /**
+     * Checks that both decoders give the same results and errors for a
+     * set of responses, and times them on a large listing.
+     *
+     * Usage: DirectResponseReader [rows [iterations]]
+     */
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        XmlRpcClient client = new XmlRpcClient();
+        XmlRpcClientConfigImpl config = new XmlRpcClientConfigImpl();
+        client.setConfig(config);
+        StreamingTypeFactory typeFactory = new StreamingTypeFactory(client);
+        client.setTypeFactory(typeFactory);
+        DirectResponseReader direct = new DirectResponseReader(typeFactory);
+
+        String head = "<?xml version='1.0'?>\n<methodResponse>\n<params>\n"+
+            "<param>\n";
+        String tail = "</param>\n</params>\n</methodResponse>\n";
+        String[] values = {
+            "<value><string>plain</string></value>",
+            "<value>untyped &lt;text&gt;</value>",
+            "<value></value>",
+            "<value><string/></value>",
+            "<value>  <string> x </string>\n</value>",
+            "<value>a<string>x</string></value>",
+            "<value><i4> 42 </i4></value>",
+            "<value><int>-7</int></value>",
+            "<value><int>4x</int></value>",
+            "<value><boolean>1</boolean></value>",
+            "<value><boolean>2</boolean></value>",
+            "<value><double>2.5</double></value>",
+            "<value><double>-1e10</double></value>",
+            "<value><dateTime.iso8601>20260102T03:04:05</dateTime.iso8601></value>",
+            "<value><dateTime.iso8601>bad</dateTime.iso8601></value>",
+            "<value><dateTime.iso8601> </dateTime.iso8601></value>",
+            "<value><base64>aGVs\nbG8=</base64></value>",
+            "<value><string>&#233;&#x1F600;&quot;&apos;</string></value>",
+            "<value><string>æøå 中文 😀</string></value>",
+            "<value><string>a\r\nb\rc</string></value>",
+            "<value><string><![CDATA[<raw> & ]]></string></value>",
+            "<value><string>a]b]]c</string></value>",
+            "<value><string>a<!-- c -->b</string></value>",
+            "<value><string>a&foo;</string></value>",
+            "<value><string>a<b/></string></value>",
+            "<value><nil/></value>",
+            "<value><array><data></data></array></value>",
+            "<value><array><data/></array></value>",
+            "<value><array><data><value>1</value><value><int>2</int></value>"+
+                "<value><array><data><value>x</value></data></array></value>"+
+                "</data></array></value>",
+            "<value><struct></struct></value>",
+            "<value><struct><member><name>a</name><value>1</value></member>"+
+                "<member><name>b&amp;c</name><value><struct><member>"+
+                "<name>d</name><value><int>1</int></value></member>"+
+                "</struct></value></member></struct></value>",
+            "<value><struct><member><name>a</name><value>1</value></member>"+
+                "<member><name>a</name><value>2</value></member>"+
+                "</struct></value>",
+            "<value><struct><member><value>1</value></member></struct></value>",
+            "<value><array><data><value>1</value></data></value>",
+            "<value><string>unterminated",
+        };
+        ArrayList docs = new ArrayList();
+        for (int i = 0; i < values.length; i++) docs.add(head+values[i]+tail);
+        docs.add("<?xml version='1.0'?><methodResponse><fault><value><struct>"+
+                 "<member><name>faultCode</name><value><int>1</int></value>"+
+                 "</member><member><name>faultString</name><value><string>"+
+                 "Cerebrum.modules.bofhd.errors.CerebrumError:No such user"+
+                 "</string></value></member></struct></value></fault>"+
+                 "</methodResponse>");
+        docs.add("<methodResponse><fault><value><struct><member><name>"+
+                 "faultString</name><value>x</value></member></struct>"+
+                 "</value></fault></methodResponse>");
+        docs.add("<?xml version='1.0' encoding='ISO-8859-1'?><methodResponse>"+
+                 "<params><param><value>æøå</value></param>"+
+                 "</params></methodResponse>");
+        docs.add("<methodResponse><params><param><value>x</value></param>"+
+                 "</params></methodResponse><junk/>");
+        docs.add("<methodResponse><foo/></methodResponse>");
+        docs.add("");
+
+        int mismatches = 0, checked = 0;
+        for (int i = 0; i < docs.size(); i++) {
+            String doc = (String) docs.get(i);
+            byte[] bytes = doc.getBytes(doc.contains("ISO-8859-1") ?
+                                        StandardCharsets.ISO_8859_1 :
+                                        StandardCharsets.UTF_8);
+            String expected = result(config, typeFactory, direct, bytes,
+                                     false, false);
+            for (int trickle = 0; trickle < 2; trickle++) {
+                String got = result(config, typeFactory, direct, bytes, true,
+                                    trickle == 1);
+                checked++;
+                if (! got.equals(expected)) {
+                    mismatches++;
+                    System.out.println("Mismatch for "+doc+"\n  sax:    "+
+                                       expected+"\n  direct: "+got);
+                }
+            }
+        }
+
+        // Streaming: rows must reach the handler, and the result is empty
+        final int[] streamed = new int[1];
+        typeFactory.setHandler(new StreamingTypeFactory.RowHandler() {
+            @Override
+            public void start() { }
+
+            @Override
+            public void handleRow(Object row) {
+                streamed[0]++;
+            }
+        });
+        String list = head+"<value><array><data>"+row(1)+row(2)+row(3)+
+            "</data></array></value>"+tail;
+        for (int i = 0; i < 2; i++) {
+            typeFactory.arm();
+            String got = result(config, typeFactory, direct,
+                                list.getBytes(StandardCharsets.UTF_8),
+                                i == 1, false);
+            checked++;
+            if (! got.equals("ArrayList []") || ! typeFactory.hasStreamed()) {
+                mismatches++;
+                System.out.println("Streaming failed: "+got);
+            }
+        }
+        typeFactory.setHandler(null);
+        if (streamed[0] != 6) {
+            mismatches++;
+            System.out.println("Streamed "+streamed[0]+" rows, expected 6");
+        }
+        System.out.println(checked+" checked, "+mismatches+" mismatches");
+
+        StringBuilder sb = new StringBuilder(head);
+        sb.append("<value><array><data>\n");
+        for (int i = 0; i < rows; i++) sb.append(row(i));
+        sb.append("</data></array></value>\n").append(tail);
+        byte[] big = sb.toString().getBytes(StandardCharsets.UTF_8);
+        if (! result(config, typeFactory, direct, big, true, false).equals(
+                result(config, typeFactory, direct, big, false, false))) {
+            System.out.println("Mismatch for the benchmark response");
+        }
+        System.out.println("Decoding "+rows+" rows, "+big.length/1024+
+                           " KB, "+iterations+" iterations after warmup");
+        for (int round = 0; round < 2; round++) {
+            boolean measure = round == 1;
+            for (int d = 0; d < 2; d++) {
+                long best = Long.MAX_VALUE, total = 0;
+                for (int i = 0; i < iterations; i++) {
+                    long t0 = System.nanoTime();
+                    if (d == 0) {
+                        readSax(config, typeFactory, new ByteArrayInputStream(big));
+                    } else {
+                        direct.read(config, new ByteArrayInputStream(big));
+                    }
+                    long t = System.nanoTime() - t0;
+                    best = Math.min(best, t);
+                    total += t;
+                }
+                if (measure) {
+                    System.out.println(String.format(
+                        "%-7s best %7.2f ms, mean %7.2f ms, %6.1f MB/s",
+                        d == 0 ? "jaxp" : "direct", best / 1e6,
+                        total / 1e6 / iterations,
+                        big.length / (best / 1e9) / 1e6));
+                }
+            }
+        }
+    }
+}
+
+// arch-tag: 4e8a1c53-9b27-4d6f-a0e3-7c5b2f91d8a6
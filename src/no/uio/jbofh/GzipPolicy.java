@@ -0,0 +1,245 @@
+/*
+ * Copyright 2026 University of Oslo, Norway
+ *
+ * This file is part of Cerebrum.
+ *
+ * Cerebrum is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerebrum is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerebrum; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package no.uio.jbofh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Category;
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.client.XmlRpcHttpTransportException;
+
+/**
+ * Decides which requests to gzip, and keeps count of what compression
+ * saves.  Responses are always asked for gzipped (the server decides
+ * whether to compress them); requests are compressed when they are
+ * larger than a threshold.
+ *
+ * In adaptive mode the threshold follows a simple cost model:
+ * compressing <i>n</i> bytes costs <i>n * c</i> CPU time plus a fixed
+ * setup cost, and saves <i>n * (1 - r) / b</i> transfer time, where
+ * <i>c</i> is the measured compression time per byte, <i>r</i> the
+ * measured compression ratio and <i>b</i> the link throughput.  The
+ * throughput is estimated from large responses, taking the fastest
+ * request seen as the round-trip time.  Time bofhd spends on a large
+ * command counts as transfer time, so the estimate errs on the side of
+ * compressing.  When compressing does not pay on the link, no requests
+ * are compressed.
+ */
+class GzipPolicy {
+    /** Estimated setup cost of one gzip stream, in nanoseconds */
+    static final double SETUP_NS = 20000;
+    static final int MIN_THRESHOLD = 256;
+    /** Weight of new samples in the running averages */
+    static final double ALPHA = 0.2;
+
+    Category logger;
+    final boolean adaptive;
+    private boolean requestsEnabled = true;
+    /** Whether the last request sent by each thread was compressed */
+    private final ThreadLocal lastCompressed = new ThreadLocal();
+    private int threshold;
+    private double ratio = 0.25, nsPerByte = 10, bytesPerNs = Double.NaN;
+    private long minLatency = Long.MAX_VALUE;
+    private long requests, compressedRequests, requestRaw, requestSent;
+    private long responses, gzippedResponses, responseWire, responseDecoded;
+
+    /**
+     * The state of one request.
+     */
+    static class Exchange {
+        long start;
+        boolean compressed;
+        CountingInputStream wire, decoded;
+    }
+
+    static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+            if (c != -1) count++;
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+    }
+
+    /**
+     * @param logger
+     * @param threshold requests larger than this are compressed
+     * @param adaptive tune the threshold from measurements
+     */
+    GzipPolicy(Category logger, int threshold, boolean adaptive) {
+        this.logger = logger;
+        this.threshold = threshold;
+        this.adaptive = adaptive;
+    }
+
+    Exchange newExchange() {
+        return new Exchange();
+    }
+
+    /**
+     * Called with the serialized request before it is sent.
+     *
+     * @return the bytes to send, compressed if
+     * <code>x.compressed</code> is set
+     */
+    @SuppressWarnings("unchecked")
+    byte[] encodeRequest(Exchange x, byte[] body) throws IOException {
+        x.start = System.nanoTime();
+        boolean compress;
+        synchronized (this) {
+            compress = requestsEnabled && body.length > threshold;
+        }
+        byte[] sent = body;
+        if (compress) {
+            long t0 = System.nanoTime();
+            ByteArrayOutputStream baos =
+                new ByteArrayOutputStream(body.length / 4 + 32);
+            try (GZIPOutputStream gz = new GZIPOutputStream(baos)) {
+                gz.write(body);
+            }
+            long spent = System.nanoTime() - t0;
+            if (baos.size() < body.length) {
+                sent = baos.toByteArray();
+                x.compressed = true;
+            }
+            synchronized (this) {
+                nsPerByte += ALPHA * ((double) spent / body.length - nsPerByte);
+                ratio += ALPHA * ((double) baos.size() / body.length - ratio);
+            }
+        }
+        lastCompressed.set(x.compressed);
+        synchronized (this) {
+            requests++;
+            requestRaw += body.length;
+            requestSent += sent.length;
+            if (x.compressed) compressedRequests++;
+        }
+        return sent;
+    }
+
+    /**
+     * Count the response bytes as read from the connection.
+     */
+    InputStream wire(Exchange x, InputStream in) {
+        x.wire = new CountingInputStream(in);
+        return x.wire;
+    }
+
+    /**
+     * Count the response bytes after gunzipping.
+     */
+    InputStream decoded(Exchange x, InputStream in) {
+        x.decoded = new CountingInputStream(in);
+        return x.decoded;
+    }
+
+    /**
+     * Called when the response has been read.
+     */
+    synchronized void finish(Exchange x) {
+        if (x.wire == null || x.decoded == null) return;
+        long latency = System.nanoTime() - x.start;
+        long wire = x.wire.count, decoded = x.decoded.count;
+        responses++;
+        responseWire += wire;
+        responseDecoded += decoded;
+        if (wire < decoded) {
+            gzippedResponses++;
+            ratio += ALPHA * ((double) wire / decoded - ratio);
+        }
+        minLatency = Math.min(minLatency, latency);
+        long transfer = latency - minLatency;
+        if (wire >= 16384 && transfer > 1000000) {
+            double sample = (double) wire / transfer;
+            bytesPerNs = Double.isNaN(bytesPerNs) ? sample :
+                bytesPerNs + ALPHA * (sample - bytesPerNs);
+        }
+        if (adaptive) retune();
+    }
+
+    private void retune() {
+        if (Double.isNaN(bytesPerNs)) return;
+        int old = threshold;
+        double gain = (1 - ratio) / bytesPerNs - nsPerByte;
+        if (gain <= 0) {
+            threshold = Integer.MAX_VALUE;
+        } else {
+            threshold = (int) Math.max(MIN_THRESHOLD,
+                                       Math.min(Integer.MAX_VALUE / 2,
+                                                SETUP_NS / gain));
+        }
+        if (threshold != old)
+            logger.debug("gzip threshold "+old+" -> "+threshold+" bytes");
+    }
+
+    /**
+     * Check whether the request this thread just sent failed because
+     * the server does not accept compressed requests.  If so, stop
+     * compressing requests, so that it can be sent again.
+     */
+    boolean isRejection(XmlRpcException e) {
+        if (lastCompressed.get() != Boolean.TRUE ||
+                ! (e instanceof XmlRpcHttpTransportException)) return false;
+        int status = ((XmlRpcHttpTransportException) e).getStatusCode();
+        if (status != 415 && status != 501) return false;
+        synchronized (this) {
+            if (requestsEnabled)
+                logger.debug("server rejected a gzipped request (HTTP "+
+                             status+"), no longer compressing requests");
+            requestsEnabled = false;
+        }
+        lastCompressed.remove();
+        return true;
+    }
+
+    /**
+     * @return a one-line summary of what compression has saved
+     */
+    synchronized String getStats() {
+        long saved = (requestRaw - requestSent) +
+            (responseDecoded - responseWire);
+        return "gzip: threshold "+(requestsEnabled ? threshold == Integer.MAX_VALUE ?
+            "off" : threshold+" bytes" : "off (rejected)")+
+            ", requests "+compressedRequests+"/"+requests+" compressed ("+
+            requestRaw+" -> "+requestSent+" bytes), responses "+
+            gzippedResponses+"/"+responses+" compressed ("+responseDecoded+
+            " -> "+responseWire+" bytes), "+saved+" bytes saved";
+    }
+}
+
+// arch-tag: 7b2d0e94-3c6f-4a1b-9e58-c4f17a2d6b03
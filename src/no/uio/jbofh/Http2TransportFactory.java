@@ -0,0 +1,373 @@
+/*
+ * Copyright 2026 University of Oslo, Norway
+ *
+ * This file is part of Cerebrum.
+ *
+ * Cerebrum is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerebrum is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerebrum; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package no.uio.jbofh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.XmlRpcRequest;
+import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcHttpClientConfig;
+import org.apache.xmlrpc.client.XmlRpcHttpTransport;
+import org.apache.xmlrpc.client.XmlRpcHttpTransportException;
+import org.apache.xmlrpc.client.XmlRpcTransport;
+import org.apache.xmlrpc.client.XmlRpcTransportFactoryImpl;
+import org.apache.xmlrpc.common.XmlRpcStreamRequestConfig;
+import org.apache.xmlrpc.util.HttpUtil;
+import org.xml.sax.SAXException;
+
+/**
+ * Transport factory that sends requests with
+ * <code>java.net.http.HttpClient</code>.  The client speaks HTTP/2
+ * when bofhd (or a proxy in front of it) offers it through ALPN, so
+ * that all requests in flight share one TLS connection, each on its
+ * own stream.  Servers that only speak HTTP/1.1 get that instead, with
+ * the client keeping a pool of persistent connections.
+ *
+ * The reply timeout bounds the wait for the response headers, and,
+ * like the socket read timeout of the other transports, each wait for
+ * more of the body.  Redirects are not followed, as the request would
+ * be sent to a server that was not asked for.
+ */
+class Http2TransportFactory extends XmlRpcTransportFactoryImpl {
+    static final String USER_AGENT =
+        XmlRpcHttpTransport.USER_AGENT + " (java.net.http Transport)";
+    BofhdConnection bc;
+    HttpClient httpClient;
+    private long requests = 0, http2Responses = 0;
+
+    /**
+     * The body of a response, read as it arrives.  A read that waits
+     * longer than the reply timeout fails, like a socket read does
+     * with the other transports, and closing the stream wakes up a
+     * waiting read, which neither closing nor interrupting does for
+     * <code>BodyHandlers.ofInputStream</code>.
+     */
+    static class BodyStream extends InputStream
+            implements HttpResponse.BodySubscriber<InputStream> {
+        private static final Object END = new Object();
+        private final LinkedBlockingQueue queue = new LinkedBlockingQueue();
+        private final long timeout;
+        private Flow.Subscription subscription;
+        private Iterator buffers = Collections.emptyIterator();
+        private ByteBuffer current = null;
+        private boolean ended = false;
+        private volatile boolean closed = false;
+
+        /**
+         * @param timeout milliseconds, or 0 to wait forever
+         */
+        BodyStream(long timeout) {
+            this.timeout = timeout;
+        }
+
+        @Override
+        public CompletionStage<InputStream> getBody() {
+            // The response is there as soon as the headers are
+            return CompletableFuture.completedFuture(this);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription s) {
+            synchronized (this) {
+                subscription = s;
+            }
+            if (closed) {
+                s.cancel();
+            } else {
+                s.request(1);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void onNext(List<ByteBuffer> item) {
+            queue.add(item);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void onError(Throwable t) {
+            queue.add(t instanceof IOException ? t : new IOException(t));
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void onComplete() {
+            queue.add(END);
+        }
+
+        /**
+         * @return the buffer to read from, or null at the end
+         */
+        private ByteBuffer current() throws IOException {
+            while (current == null || ! current.hasRemaining()) {
+                if (closed) throw new IOException("Stream closed");
+                if (ended) return null;
+                if (buffers.hasNext()) {
+                    current = (ByteBuffer) buffers.next();
+                    continue;
+                }
+                Object item;
+                try {
+                    item = timeout > 0 ?
+                        queue.poll(timeout, TimeUnit.MILLISECONDS) :
+                        queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                if (item == null)
+                    throw new SocketTimeoutException("Read timed out");
+                if (item == END) {
+                    ended = true;
+                } else if (item instanceof IOException) {
+                    throw (IOException) item;
+                } else {
+                    buffers = ((List) item).iterator();
+                    Flow.Subscription s;
+                    synchronized (this) {
+                        s = subscription;
+                    }
+                    s.request(1);
+                }
+            }
+            return current;
+        }
+
+        @Override
+        public int read() throws IOException {
+            ByteBuffer b = current();
+            return b == null ? -1 : b.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            ByteBuffer buf = current();
+            if (buf == null) return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            ByteBuffer b = current;
+            return b == null ? 0 : b.remaining();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void close() {
+            if (closed) return;
+            closed = true;
+            Flow.Subscription s;
+            synchronized (this) {
+                s = subscription;
+            }
+            if (s != null) s.cancel();
+            // Wakes up a waiting read
+            queue.add(END);
+        }
+    }
+
+    /**
+     * Sends one request.
+     */
+    class Transport extends XmlRpcHttpTransport {
+        private final HashMap headers = new HashMap();
+        private XmlRpcHttpClientConfig config;
+        private byte[] body;
+        private HttpResponse response;
+        private volatile BodyStream in;
+        private final GzipPolicy.Exchange exchange = bc.gzip.newExchange();
+
+        Transport() {
+            super(Http2TransportFactory.this.getClient(), USER_AGENT);
+        }
+
+        @Override
+        public Object sendRequest(XmlRpcRequest pRequest)
+                                                    throws XmlRpcException {
+            config = (XmlRpcHttpClientConfig) pRequest.getConfig();
+            return super.sendRequest(pRequest);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void setRequestHeader(String pHeader, String pValue) {
+            // HttpClient sets the length itself
+            if (pHeader.equalsIgnoreCase("Content-Length")) return;
+            headers.put(pHeader, pValue);
+        }
+
+        @Override
+        protected ReqWriter newReqWriter(XmlRpcRequest pRequest)
+                throws XmlRpcException, IOException, SAXException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            super.newReqWriter(pRequest).write(baos);
+            final byte[] data = bc.gzip.encodeRequest(exchange,
+                                                      baos.toByteArray());
+            if (exchange.compressed) setRequestHeader("Content-Encoding", "gzip");
+            return (OutputStream out) -> { out.write(data); out.close(); };
+        }
+
+        @Override
+        protected void writeRequest(ReqWriter pWriter) throws XmlRpcException,
+                    IOException, SAXException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            pWriter.write(baos);
+            body = baos.toByteArray();
+        }
+
+        @Override
+        protected InputStream getInputStream() throws XmlRpcException {
+            HttpRequest.Builder rb;
+            try {
+                rb = HttpRequest.newBuilder(config.getServerURL().toURI());
+            } catch (URISyntaxException e) {
+                throw new XmlRpcException("Bad server URL: "+e.getMessage(), e);
+            }
+            rb.POST(HttpRequest.BodyPublishers.ofByteArray(body));
+            if (config.getReplyTimeout() > 0)
+                rb.timeout(Duration.ofMillis(config.getReplyTimeout()));
+            for (Iterator e = headers.entrySet().iterator(); e.hasNext(); ) {
+                Map.Entry h = (Map.Entry) e.next();
+                rb.header((String) h.getKey(), (String) h.getValue());
+            }
+            final BodyStream stream = new BodyStream(config.getReplyTimeout());
+            final CompletableFuture f = httpClient.sendAsync(rb.build(),
+                (HttpResponse.ResponseInfo info) -> stream);
+            bc.setAbort(() -> {
+                f.cancel(true);
+                stream.close();
+            });
+            try {
+                response = (HttpResponse) f.get();
+            } catch (ExecutionException e) {
+                Throwable t = e.getCause();
+                throw new XmlRpcException("Failed to create input stream: "
+                                          + t.getMessage(), t);
+            } catch (CancellationException e) {
+                throw new XmlRpcException("Failed to create input stream: "
+                    + "request aborted", new InterruptedIOException());
+            } catch (InterruptedException e) {
+                f.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new XmlRpcException("Failed to create input stream: "
+                    + "interrupted", new InterruptedIOException());
+            }
+            synchronized (Http2TransportFactory.this) {
+                requests++;
+                if (response.version() == HttpClient.Version.HTTP_2)
+                    http2Responses++;
+            }
+            in = stream;
+            int status = response.statusCode();
+            if (status < 200 || status > 299) {
+                throw new XmlRpcHttpTransportException(status,
+                    "HTTP status "+status);
+            }
+            return bc.gzip.wire(exchange, in);
+        }
+
+        @Override
+        protected Object readResponse(XmlRpcStreamRequestConfig pConfig,
+                                      InputStream pStream)
+                                                    throws XmlRpcException {
+            return bc.readResponse(exchange, pConfig, pStream,
+                                   super::readResponse);
+        }
+
+        @Override
+        protected boolean isResponseGzipCompressed(
+                                        XmlRpcStreamRequestConfig pConfig) {
+            return HttpUtil.isUsingGzipEncoding((String) response.headers()
+                .firstValue("Content-Encoding").orElse(null));
+        }
+
+        @Override
+        protected void close() {
+            BodyStream tmp = in;
+            if (tmp != null) tmp.close();
+        }
+    }
+
+    /**
+     * @param xmlrpc the client to create transports for
+     * @param bc told how to abort each request
+     * @param sc the SSL context for https, may be null
+     * @param connectTimeout milliseconds, or 0 to wait forever
+     */
+    Http2TransportFactory(XmlRpcClient xmlrpc, BofhdConnection bc,
+                          SSLContext sc, int connectTimeout) {
+        super(xmlrpc);
+        this.bc = bc;
+        HttpClient.Builder b = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .followRedirects(HttpClient.Redirect.NEVER);
+        if (sc != null) b.sslContext(sc);
+        if (connectTimeout > 0)
+            b.connectTimeout(Duration.ofMillis(connectTimeout));
+        httpClient = b.build();
+    }
+
+    @Override
+    public XmlRpcTransport getTransport() {
+        return new Transport();
+    }
+
+    /**
+     * @return a one-line summary of the protocol versions used
+     */
+    synchronized String getStats() {
+        return "http2 transport: "+requests+" requests, "+http2Responses+
+            " over HTTP/2, "+(requests - http2Responses)+" over HTTP/1.1";
+    }
+}
+
+// arch-tag: 2c7e9b41-6f3d-4a58-b0e2-91d4a6c3f8e7
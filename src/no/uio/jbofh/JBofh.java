@@ -27,23 +27,31 @@
 package no.uio.jbofh;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.net.URL;
+import java.nio.file.Paths;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Properties;
-import java.util.StringTokenizer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
-import com.sun.java.text.PrintfFormat;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 
@@ -53,17 +61,36 @@ import java.security.NoSuchAlgorithmException;
  * @author  runefro
  */
 public final class JBofh {
+    /** Exit statuses of batch mode, and of agent commands */
+    static final int EXIT_OK = 0, EXIT_FAILED = 1, EXIT_USAGE = 2,
+        EXIT_INIT = 3;
     Properties props;
     CommandLine cLine;
     BofhdConnection bc;
     static Logger logger = Logger.getLogger(JBofh.class);
-    BofhdCompleter bcompleter;
-    HashMap knownFormats;
+    volatile BofhdCompleter bcompleter;
+    volatile ConcurrentHashMap knownFormats;
+    /** Commands that bofhd has no format suggestion for */
+    final Set noFormat = ConcurrentHashMap.newKeySet();
+    /** The formats being prefetched into, or null */
+    private Map prefetching;
+    final HashMap compiledFormats = new HashMap();
     String version = "unknown";
     boolean guiEnabled, hideRepeatedHeaders;
     JBofhFrame mainFrame;
     String uname;
     private FileWriter script_file;
+    private CommandCache commandCache;
+    JobManager jobs;
+    /** Serves local clients, or null if not running as an agent */
+    volatile Agent agent;
+    /** Running commands from -c or stdin, with no one to prompt */
+    final boolean batch;
+    final StartupTimings timings;
+    private boolean commandsUnchecked = false;
+    /** Startup tasks that run while the main thread does other work */
+    private CompletableFuture serverCheck, motd;
+    private BufferedReader stdin;
 
     /** Creates a new instance of JBofh
      * @param gui
@@ -76,11 +103,25 @@ public final class JBofh {
      * @throws java.security.NoSuchAlgorithmException
      * @throws java.io.IOException
      */
-    @SuppressWarnings("unchecked")
     public JBofh(boolean gui, String log4jPropertyFile, String bofhd_url,
         HashMap propsOverride, String cafile) throws BofhdException,
                       KeyStoreException, NoSuchAlgorithmException, IOException {
+        this(gui, false, log4jPropertyFile, bofhd_url, propsOverride, cafile,
+             new StartupTimings());
+    }
+
+    /**
+     * @param batch skip the console, the idle timer and Ctrl-C handling
+     * @param timings where the phases of starting up are marked
+     */
+    @SuppressWarnings("unchecked")
+    JBofh(boolean gui, boolean batch, String log4jPropertyFile,
+          String bofhd_url, HashMap propsOverride, String cafile,
+          StartupTimings timings) throws BofhdException,
+                      KeyStoreException, NoSuchAlgorithmException, IOException {
         guiEnabled = gui;
+        this.batch = batch;
+        this.timings = timings;
         loadPropertyFiles(log4jPropertyFile);
         for (Iterator e = (propsOverride.keySet().iterator()) ;
                 e.hasNext() ;) {
@@ -88,29 +129,38 @@ public final class JBofh {
             String v = (String) propsOverride.get(k);
             props.put(k, v);
         }
-        if(gui){
-            // Load class with reflection to prevent javac from trying
-            // to compile JBofhFrameImpl which requires swing.
-            try {
-                Class c = Class.forName("no.uio.jbofh.JBofhFrameImpl");
-                Object[] args = new Object[] { this };
-                Class[] cargs = new Class[] { this.getClass() };
-                java.lang.reflect.Constructor constr = c.getConstructor(cargs);
-                mainFrame = (JBofhFrame) constr.newInstance(args);
-            } catch (ClassNotFoundException | NoSuchMethodException |
-                        IllegalAccessException | InstantiationException |
-                        java.lang.reflect.InvocationTargetException e) {
-                System.out.println(e);
-            }
-            //mainFrame = (JBofhFrame) new JBofhFrameImpl(this);
-        }
+        readVersion();
+        // The window is built while the connection is set up
+        CompletableFuture frame = gui ? background("gui", this::makeFrame) : null;
 
         bc = new BofhdConnection(logger, this);
+        jobs = new JobManager(this);
         String intTrust = (String) props.get("InternalTrustManager.enable");
         if(bofhd_url == null) bofhd_url = (String) props.get("bofhd_url");
-        showMessage("Bofhd server is at "+bofhd_url, true);
         bc.connect(bofhd_url, (intTrust != null && intTrust.equals("true")),
                     cafile);
+        timings.mark("connect");
+        // The TLS handshake, and the MOTD which needs no session, run
+        // while the user types the password
+        serverCheck = background("tls", () -> {
+            bc.verifyServer();
+            return null;
+        });
+        if (! batch) {
+            motd = background("motd", () -> {
+                serverCheck.join();
+                return bc.getMotd(version);
+            });
+        }
+        if (frame != null) {
+            mainFrame = (JBofhFrame) await(frame);
+            timings.mark("gui");
+        }
+        if (batch) {
+            logger.debug("Bofhd server is at "+bofhd_url);
+        } else {
+            showMessage("Bofhd server is at "+bofhd_url, true);
+        }
         String intHide =  (String) props.get("HideRepeatedReponseHeaders");
         hideRepeatedHeaders = (intHide != null && intHide.equals("true")
                 );
@@ -129,7 +179,134 @@ public final class JBofh {
             System.exit(1);
         }
         cLine = new CommandLine(logger, this, idleWarnDelay, idleTerminateDelay);
-        readVersion();
+        if(! gui && ! batch) installInterruptHandler();
+        timings.mark("console");
+    }
+
+    /**
+     * Load the GUI with reflection to prevent javac from trying to
+     * compile JBofhFrameImpl which requires swing.
+     *
+     * @return the window, or null if it could not be made
+     */
+    @SuppressWarnings("unchecked")
+    private JBofhFrame makeFrame() {
+        try {
+            Class c = Class.forName("no.uio.jbofh.JBofhFrameImpl");
+            Object[] args = new Object[] { this };
+            Class[] cargs = new Class[] { this.getClass() };
+            java.lang.reflect.Constructor constr = c.getConstructor(cargs);
+            return (JBofhFrame) constr.newInstance(args);
+        } catch (ClassNotFoundException | NoSuchMethodException |
+                    IllegalAccessException | InstantiationException |
+                    java.lang.reflect.InvocationTargetException e) {
+            System.out.println(e);
+            return null;
+        }
+        //mainFrame = (JBofhFrame) new JBofhFrameImpl(this);
+    }
+
+    /**
+     * A step of starting up that can run at the same time as others.
+     */
+    interface StartupTask {
+        Object run() throws Exception;
+    }
+
+    /**
+     * Run <code>task</code> on a thread of its own, and note how long
+     * it took in the startup timings.
+     */
+    private CompletableFuture background(final String name,
+                                         final StartupTask task) {
+        return CompletableFuture.supplyAsync(() -> {
+            long start = System.currentTimeMillis();
+            try {
+                return task.run();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            } finally {
+                timings.background(name, start);
+            }
+        }, (Runnable r) -> {
+            Thread t = new Thread(r, "jbofh-startup-"+name);
+            t.setDaemon(true);
+            t.start();
+        });
+    }
+
+    /**
+     * @return the result of a startup task, once it is done
+     * @exception BofhdException if the task failed with one
+     */
+    private static Object await(CompletableFuture task) throws BofhdException {
+        try {
+            return task.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof BofhdException) throw (BofhdException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new BofhdException(String.valueOf(cause));
+        }
+    }
+
+    /**
+     * Wait for the check of the server certificate, and give up if it
+     * failed, as setting up the connection did before.
+     */
+    private void awaitServerCheck() {
+        try {
+            serverCheck.join();
+        } catch (CompletionException e) {
+            System.out.println("Error setting up SSL cert handling: "+
+                               e.getCause());
+            System.exit(batch ? EXIT_INIT : 0);
+        }
+    }
+
+    /**
+     * Make Ctrl-C cancel the running command instead of exiting.  When
+     * no command is running, Ctrl-C works as before.
+     *
+     * sun.misc.Signal is looked up at run time, as it is not a public
+     * API and may be missing.
+     */
+    @SuppressWarnings("unchecked")
+    private void installInterruptHandler() {
+        try {
+            final Class signal = Class.forName("sun.misc.Signal");
+            final Class handler = Class.forName("sun.misc.SignalHandler");
+            final Object dfl = handler.getField("SIG_DFL").get(null);
+            final Object ign = handler.getField("SIG_IGN").get(null);
+            final Method handle = handler.getMethod("handle", signal);
+            final Object[] previous = new Object[1];
+            Object ours = Proxy.newProxyInstance(
+                handler.getClassLoader(), new Class[] { handler },
+                (proxy, method, args) -> {
+                    if(! method.equals(handle)) {
+                        // equals, hashCode and toString
+                        if(method.getName().equals("equals"))
+                            return proxy == args[0];
+                        if(method.getName().equals("hashCode"))
+                            return System.identityHashCode(proxy);
+                        return "JBofh interrupt handler";
+                    }
+                    if(jobs.cancelForeground()) return null;
+                    if(previous[0] == dfl || previous[0] == ign) {
+                        System.exit(130);
+                    }
+                    handle.invoke(previous[0], args[0]);
+                    return null;
+                });
+            Object sigint = signal.getConstructor(String.class)
+                .newInstance("INT");
+            previous[0] = signal.getMethod("handle", signal, handler)
+                .invoke(null, sigint, ours);
+        } catch (ReflectiveOperationException | IllegalArgumentException |
+                 LinkageError e) {
+            logger.debug("Ctrl-C cannot cancel commands: "+e);
+        }
     }
 
     /**
@@ -141,13 +318,18 @@ public final class JBofh {
     public void initialLogin(String uname, String password) 
         throws BofhdException {
         if(! login(uname, password)) {
-            System.exit(0);
+            System.exit(batch ? EXIT_INIT : 0);
         }
-        String msg = bc.getMotd(version);
+        timings.mark("login");
+        if(! loadCommandCache())
+            initCommands();
+        timings.mark("commands");
+        // Only the commands are needed to run a command
+        if (batch) return;
+        String msg = (String) await(motd);
+        timings.mark("motd");
         if(msg.length() > 0)
             showMessage(msg, true);
-
-        initCommands();
         showMessage("Welcome to jbofh, v "+version+", type \"help\" for help", true);
     }
     
@@ -165,6 +347,7 @@ public final class JBofh {
             props = new Properties();
             url = ResourceLocator.getResource(this, "/jbofh.properties");
             props.load(url.openStream());
+            timings.mark("properties");
         } catch(IOException e) {
             showMessage("Error reading property files", true);
             System.exit(1);
@@ -193,6 +376,8 @@ public final class JBofh {
      * @throws BofhdException
      */
     public boolean login(String uname, String password) throws BofhdException {
+        // Do not ask for a password for a server that failed the check
+        if (serverCheck.isCompletedExceptionally()) awaitServerCheck();
         try {
             while(uname == null) {
                 uname = cLine.promptArg("Username: ", false);
@@ -208,12 +393,16 @@ public final class JBofh {
                     } catch (MethodFailedException e) {
                         return false;
                     }
+                } else if (batch) {
+                    password = readBatchPassword(prompt);
                 } else {
                     //password = cp.getPassword(prompt);
                     password = cLine.consolereader.readLine(prompt, '*');
                 }
             }
             if(password == null) return false;
+            timings.mark("password");
+            awaitServerCheck();
             bc.login(uname, password);
             this.uname = uname;
         } catch (IOException io) {
@@ -221,32 +410,236 @@ public final class JBofh {
         }
         return true;
     }
+    /**
+     * In batch mode the password is read from the terminal if there is
+     * one, and otherwise as the first line of stdin.
+     */
+    private String readBatchPassword(String prompt) throws IOException {
+        java.io.Console console = System.console();
+        if (console != null) {
+            char[] pw = console.readPassword("%s", prompt);
+            return pw == null ? null : new String(pw);
+        }
+        return getStdin().readLine();
+    }
+
+    private BufferedReader getStdin() {
+        if (stdin == null)
+            stdin = new BufferedReader(new InputStreamReader(System.in));
+        return stdin;
+    }
+
+    synchronized void initCommands() throws BofhdException {
+        commandsUnchecked = false;
+        bc.updateCommands();
+        buildCompleter();
+        knownFormats = new ConcurrentHashMap();
+        noFormat.clear();
+        if (commandCache != null)
+            commandCache.save(bc.commands, knownFormats, true);
+        prefetchFormats();
+    }
+
+    /**
+     * Set up commands and formats from the on-disk cache, if enabled
+     * with <code>cache.commands.enable</code>.  The cache is checked
+     * against the server in the background.
+     *
+     * @return false if there was no cache to use
+     */
     @SuppressWarnings("unchecked")
-    void initCommands() throws BofhdException {
+    private boolean loadCommandCache() {
+        if (! props.getProperty("cache.commands.enable", "true").equals("true"))
+            return false;
+        String dir = props.getProperty("cache.dir", "");
+        commandCache = new CommandCache(logger, dir.length() == 0 ?
+            new File(System.getProperty("user.home"), ".jbofh") : new File(dir),
+            bc.config.getServerURL().toString(), uname, version);
+        // Remember formats learned during the session
+        Runtime.getRuntime().addShutdownHook(new Thread(() ->
+            commandCache.save(bc.commands, knownFormats, false),
+            "jbofh-cache-save"));
+        HashMap data = commandCache.load();
+        if (data == null) return false;
+        synchronized (this) {
+            try {
+                Map formats = (Map) data.get("formats");
+                if (formats == null) {
+                    logger.debug("bad command cache: no formats");
+                    return false;
+                }
+                bc.commands = new CommandTable((HashMap) data.get("commands"));
+                buildCompleter();
+                knownFormats = new ConcurrentHashMap(formats);
+                noFormat.clear();
+            } catch (BofhdException | ClassCastException ex) {
+                logger.debug("bad command cache", ex);
+                return false;
+            }
+        }
+        if (batch) {
+            // Checked only if a command is not found, see analyzeCommand
+            commandsUnchecked = true;
+            return true;
+        }
+        Thread t = new Thread(() -> {
+            try {
+                revalidateCommandCache();
+            } catch (BofhdException ex) {
+                logger.debug("revalidating command cache failed", ex);
+            }
+        }, "jbofh-cache-revalidate");
+        t.setDaemon(true);
+        t.start();
+        prefetchFormats();
+        return true;
+    }
+
+    /**
+     * Fetch the commands from the server, and start over with fresh
+     * formats if they differ from the cached ones.
+     */
+    private synchronized void revalidateCommandCache() throws BofhdException {
+        commandsUnchecked = false;
+        CommandTable cached = bc.commands;
         bc.updateCommands();
-        bcompleter = new BofhdCompleter(this, logger);
-        for (Iterator e = (bc.commands.keySet().iterator()); e.hasNext(); ) {
-            String protoCmd = (String) e.next();
-            ArrayList cmd =
-                    (ArrayList) ((ArrayList) bc.commands.get(protoCmd)).get(0);
-            bcompleter.addCompletion(cmd, protoCmd);
+        if (bc.commands.raw.equals(cached.raw)) {
+            logger.debug("command cache is up to date");
+            return;
+        }
+        logger.debug("commands have changed, dropping command cache");
+        buildCompleter();
+        knownFormats = new ConcurrentHashMap();
+        noFormat.clear();
+        commandCache.save(bc.commands, knownFormats, true);
+        prefetchFormats();
+    }
+
+    /**
+     * Fetch the format suggestions of all commands that are not known
+     * yet on a background thread, so that the first response to a
+     * command is shown, or streamed, without asking for its format.
+     * bofhd does not tell which commands return structured data, so
+     * all commands are asked for.  The requests are batched with
+     * <code>system.multicall</code> when <code>useMulticall</code>
+     * allows it.  Turned off with <code>formats.prefetch=false</code>,
+     * and not done in batch mode.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized void prefetchFormats() {
+        if (batch || ! "true".equals(props.getProperty("formats.prefetch", "true")))
+            return;
+        final ConcurrentHashMap formats = knownFormats;
+        if (prefetching == formats) return;
+        final ArrayList missing = new ArrayList();
+        for (Iterator e = bc.commands.getCommands().iterator(); e.hasNext(); ) {
+            String cmd = ((CommandTable.Command) e.next()).name;
+            if (! formats.containsKey(cmd) && ! noFormat.contains(cmd))
+                missing.add(cmd);
+        }
+        if (missing.isEmpty()) return;
+        prefetching = formats;
+        Thread t = new Thread(() -> {
+            try {
+                fetchFormats(formats, missing);
+            } finally {
+                synchronized (this) {
+                    if (prefetching == formats) prefetching = null;
+                }
+            }
+        }, "jbofh-format-prefetch");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void fetchFormats(ConcurrentHashMap formats, ArrayList cmds) {
+        long start = System.currentTimeMillis();
+        boolean multicall = bc.useMulticall();
+        int batchSize = Integer.parseInt(props.getProperty(
+            "transport.multicall.batchSize", "20"));
+        int i = 0;
+        while (i < cmds.size()) {
+            if (knownFormats != formats) {
+                logger.debug("commands have changed, format prefetch stopped");
+                return;
+            }
+            List chunk = cmds.subList(i, Math.min(cmds.size(),
+                                                  i + (multicall ? batchSize : 1)));
+            try {
+                if (multicall) {
+                    ArrayList argLists = new ArrayList();
+                    for (Iterator e = chunk.iterator(); e.hasNext(); )
+                        argLists.add(Arrays.asList(e.next()));
+                    ArrayList results = bc.multicallMethod(
+                        "get_format_suggestion", argLists);
+                    for (int j = 0; j < chunk.size(); j++)
+                        storeFormat(formats, (String) chunk.get(j), results.get(j));
+                } else {
+                    ArrayList args = new ArrayList(chunk);
+                    storeFormat(formats, (String) chunk.get(0),
+                        bc.sendRawCommand("get_format_suggestion", args, -1));
+                }
+            } catch (BofhdException e) {
+                if (multicall) {
+                    logger.debug("format prefetch: "+e.getMessage()+
+                                 ", asking one command at a time");
+                    multicall = false;
+                    continue;
+                }
+                // Leave the rest to getFormat
+                logger.debug("format prefetch stopped: "+e.getMessage());
+                return;
+            }
+            i += chunk.size();
+        }
+        logger.debug("prefetched the formats of "+cmds.size()+" commands in "+
+                     (System.currentTimeMillis() - start)+" ms");
+    }
+
+    /**
+     * Keep a prefetched format suggestion, unless the foreground got
+     * it first.
+     */
+    @SuppressWarnings("unchecked")
+    private void storeFormat(ConcurrentHashMap formats, String cmd, Object f) {
+        if (f instanceof Map) {
+            // As a HashMap, like those from getFormat
+            formats.putIfAbsent(cmd, new HashMap((Map) f));
+        } else if ("".equals(f)) {
+            noFormat.add(cmd);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void buildCompleter() throws BofhdException {
+        BofhdCompleter old = bcompleter;
+        // Unchanged after a server restart, or after checking the cache
+        if (old != null && bc.commands.raw.equals(old.source)) return;
+        BofhdCompleter completer = new BofhdCompleter(this, logger);
+        completer.source = bc.commands.raw;
+        for (Iterator e = bc.commands.getCommands().iterator(); e.hasNext(); ) {
+            CommandTable.Command c = (CommandTable.Command) e.next();
+            completer.addCompletion(c.words, c.name);
         }
         ArrayList v = new ArrayList();
         v.add("help");
-        bcompleter.addCompletion(v, "");
+        completer.addCompletion(v, "");
         v.set(0, "source");
-        bcompleter.addCompletion(v, "");
+        completer.addCompletion(v, "");
         v.set(0, "script");
-        bcompleter.addCompletion(v, "");
+        completer.addCompletion(v, "");
         /* We don't want completion for quit
            v.set(0, new String("quit"));
            bcompleter.addCompletion(v, ""); */
+        if (old != null) completer.takeUses(old);
+        bcompleter = completer;
         cLine.setCompleter(bcompleter);
-
-        knownFormats = new HashMap();
     }
 
     void showMessage(String msg, boolean crlf) {
+        if (agent != null && agent.captureMessage(msg, crlf)) return;
+        if (jobs != null && jobs.captureMessage(msg, crlf)) return;
         if (script_file != null) {
             try {
                 script_file.write(msg);
@@ -272,6 +665,7 @@ public final class JBofh {
 
     private boolean processCmdLine() {
         ArrayList args;
+        jobs.reportFinished();
         try {
             bcompleter.setEnabled(true);
             args = cLine.getSplittedCommand();
@@ -304,14 +698,36 @@ public final class JBofh {
         return true;
     }
 
+        /**
+         * @param args a split command line
+         * @return true if the command is handled by jbofh itself
+         */
+        static boolean isNativeCommand(ArrayList args) {
+            if(args.isEmpty() || ! (args.get(0) instanceof String)) return false;
+            switch ((String) args.get(0)) {
+                case "commands":
+                case "quit":
+                case "script":
+                case "source":
+                case "help":
+                case "jobs":
+                case "cancel":
+                case "cache":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
         private boolean handleNativeComands(ArrayList args)
                                                         throws BofhdException {
         switch ((String) args.get(0)) {
             case "commands":
                 // Neat while debugging
-                for (Iterator e = bc.commands.keySet().iterator(); e.hasNext();) {
+                HashMap raw = bc.commands.raw;
+                for (Iterator e = raw.keySet().iterator(); e.hasNext();) {
                     Object key = e.next();
-                    showMessage(key+" -> "+ bc.commands.get(key), true); 
+                    showMessage(key+" -> "+ raw.get(key), true); 
                 }
                 break;
             case "quit":
@@ -342,17 +758,31 @@ public final class JBofh {
                 }
                 break;
             case "source":
-                if(args.size() == 1) {
-                    showMessage("Must specify filename to source", true);
-                } else {
-                    boolean stop_on_error = true;
+                boolean stop_on_error = true;
+                int parallel = 0;
+                String fname = null;
+                for (int i = 1; i < args.size(); i++) {
+                    String arg = (String) args.get(i);
                     // --ignore-errors  from GNU Coding Standards
-                    String fname = (String) args.get(1);
-                    if(args.size() == 3) {
-                        if("--ignore-errors".equals(args.get(1)))
-                            stop_on_error = false;
-                        fname = (String) args.get(2);
+                    if("--ignore-errors".equals(arg)) {
+                        stop_on_error = false;
+                    } else if("--parallel".equals(arg) && i+1 < args.size()) {
+                        try {
+                            parallel = Integer.parseInt((String) args.get(++i));
+                        } catch (NumberFormatException e) {
+                            throw new BofhdException("--parallel must be a number");
+                        }
+                    } else {
+                        fname = arg;
                     }
+                }
+                if(fname == null) {
+                    showMessage("Must specify filename to source", true);
+                } else if(parallel > 1) {
+                    if(guiEnabled) mainFrame.showWait(true);
+                    new ParallelSource(this, parallel, stop_on_error).run(fname);
+                    if(guiEnabled) mainFrame.showWait(false);
+                } else {
                     sourceFile(fname, stop_on_error);
                 }
                 break;
@@ -360,19 +790,205 @@ public final class JBofh {
                 args.remove(0);
                 showMessage(bc.getHelp(args), true);
                 break;
+            case "jobs":
+                jobs.reportFinished();
+                for (Iterator e = jobs.list().iterator(); e.hasNext();)
+                    showMessage((String) e.next(), true);
+                break;
+            case "cancel":
+                if(args.size() != 2)
+                    throw new BofhdException("Usage: cancel <job id>");
+                int id;
+                try {
+                    id = Integer.parseInt(((String) args.get(1)).replace("%", ""));
+                } catch (NumberFormatException e) {
+                    throw new BofhdException("Usage: cancel <job id>");
+                }
+                if(! jobs.cancel(id))
+                    throw new BofhdException("No such job: "+id);
+                break;
+            case "cache":
+                if(bc.resultCache == null)
+                    throw new BofhdException("The result cache is off, "+
+                                             "see cache.results.ttl");
+                if(args.size() == 2 && "clear".equals(args.get(1))) {
+                    bc.resultCache.clear();
+                } else if(args.size() != 1) {
+                    throw new BofhdException("Usage: cache [clear]");
+                }
+                showMessage(bc.resultCache.getStats(), true);
+                break;
             default:
                 return false;
         }
             return true;
         }
+        /**
+         * @return the command line, for job listings
+         */
+        static String joinArgs(ArrayList args) {
+            StringBuilder sb = new StringBuilder();
+            for (Iterator e = args.iterator(); e.hasNext();) {
+                sb.append(e.next());
+                if (e.hasNext()) sb.append(" ");
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Stages after a | work on the response, see Pipeline.
+         *
+         * @param args a split command line, which is left with the
+         * part before the |
+         * @return the stages, or null if there is no |
+         */
+        static Pipeline splitPipeline(ArrayList args) throws BofhdException {
+            int pipe = Pipeline.indexOf(args);
+            if (pipe == -1) return null;
+            Pipeline pipeline = new Pipeline(args.subList(pipe + 1, args.size()));
+            args.subList(pipe, args.size()).clear();
+            if (args.isEmpty())
+                throw new BofhdException(Pipeline.USAGE);
+            if (isNativeCommand(args))
+                throw new BofhdException("Only bofhd commands can be piped");
+            return pipeline;
+        }
+
+        /**
+         * Run a command for a client of the <code>Agent</code>, on the
+         * thread that serves it, or in batch mode.  There is no one to
+         * prompt, so missing arguments are left to bofhd to complain
+         * about.  Errors are shown.
+         *
+         * @param args a split command line, which is not empty
+         * @return <code>EXIT_OK</code>, <code>EXIT_FAILED</code>, or
+         * <code>EXIT_USAGE</code> if the command can not be run
+         */
         @SuppressWarnings("unchecked")
-        private void runCommand(ArrayList args, boolean sourcing) 
+        int runNonInteractive(ArrayList args) {
+            try {
+                Pipeline pipeline;
+                ArrayList lst;
+                try {
+                    pipeline = splitPipeline(args);
+                    if ("help".equals(args.get(0))) {
+                        handleNativeComands(args);
+                        return EXIT_OK;
+                    }
+                    if (isNativeCommand(args))
+                        throw new BofhdException("Only bofhd commands and help "+
+                            "can be run "+(batch ? "in batch mode" : "by the agent"));
+                    lst = analyzeCommand(args);
+                } catch (BofhdException e) {
+                    showMessage(e.getMessage(), true);
+                    return EXIT_USAGE;
+                }
+                String protoCmd = (String) lst.get(lst.size() - 1);
+                execCommand(protoCmd, new ArrayList(
+                    args.subList(lst.size()-1, args.size())), pipeline);
+                return EXIT_OK;
+            } catch (BofhdException e) {
+                showMessage(e.getMessage(), true);
+                return EXIT_FAILED;
+            } catch (RuntimeException e) {
+                showMessage("Unexpected error (bug): "+e, true);
+                logger.error("command failed", e);
+                return EXIT_FAILED;
+            }
+        }
+
+        /**
+         * Translate a command to its protocol command, see
+         * <code>BofhdCompleter.analyzeCommand</code>.  Commands loaded
+         * from the cache in batch mode are fetched again before a
+         * command is taken to be unknown.
+         */
+        private ArrayList analyzeCommand(ArrayList args) throws BofhdException {
+            try {
+                return bcompleter.analyzeCommand(args, -1);
+            } catch (AnalyzeCommandException e) {
+                if (! commandsUnchecked) throw new BofhdException(e.getMessage());
+            }
+            logger.debug("command not in the command cache, checking it");
+            revalidateCommandCache();
+            try {
+                return bcompleter.analyzeCommand(args, -1);
+            } catch (AnalyzeCommandException e) {
+                throw new BofhdException(e.getMessage());
+            }
+        }
+
+        /**
+         * Run <code>command</code>, or the commands on stdin until one
+         * fails, then log out.  Blank lines and lines starting with #
+         * are skipped.
+         *
+         * @param command a command line, or null to read stdin
+         * @param showTimings write the startup timings to stderr
+         * @return the exit status of the last command run
+         */
+        int runBatch(String command, boolean showTimings) {
+            int status = EXIT_OK;
+            try {
+                if (command != null) {
+                    status = runBatchLine(command, showTimings);
+                } else {
+                    String line;
+                    while ((line = getStdin().readLine()) != null) {
+                        line = line.trim();
+                        if (line.startsWith("#") || line.length() == 0)
+                            continue;
+                        status = runBatchLine(line, showTimings);
+                        if (status != EXIT_OK) break;
+                    }
+                }
+            } catch (IOException e) {
+                showMessage("Error reading commands: "+e.getMessage(), true);
+                status = EXIT_FAILED;
+            }
+            timings.report(showTimings);
+            try {
+                bc.logout();
+            } catch (BofhdException ex) { } // Ignore
+            return status;
+        }
+
+        private int runBatchLine(String line, boolean showTimings) {
+            ArrayList args;
+            try {
+                args = cLine.splitCommand(line);
+            } catch (ParseException ex) {
+                showMessage("Error parsing command ("+line+"): "+
+                            ex.getMessage(), true);
+                return EXIT_USAGE;
+            }
+            if (args.isEmpty()) return EXIT_OK;
+            int status = runNonInteractive(args);
+            timings.mark("first command");
+            timings.report(showTimings);
+            return status;
+        }
+
+        @SuppressWarnings("unchecked")
+        void runCommand(ArrayList args, boolean sourcing) 
             throws BofhdException {
-            if (handleNativeComands(args)) return;
+            // A trailing & runs the command in the background
+            boolean background = false;
+            if(! sourcing && args.size() > 1 &&
+                    "&".equals(args.get(args.size()-1))) {
+                args.remove(args.size()-1);
+                background = true;
+            }
+            String cmdLine = joinArgs(args);
+            Pipeline pipeline = splitPipeline(args);
+            if (! background && handleNativeComands(args)) return;
+            if (background && isNativeCommand(args))
+                throw new BofhdException("Only bofhd commands can run in the background");
             String protoCmd;
             ArrayList protoArgs;
+            ArrayList lst;
             try {
-                ArrayList lst = bcompleter.analyzeCommand(args, -1);
+                lst = bcompleter.analyzeCommand(args, -1);
                 protoCmd = (String) lst.get(lst.size() - 1);
                 protoArgs = new ArrayList(
                     args.subList(lst.size()-1, args.size()));
@@ -383,15 +999,21 @@ public final class JBofh {
             if(! sourcing) {
                 protoArgs = checkArgs(protoCmd, protoArgs);
                 if(protoArgs == null) return;
+                bcompleter.recordUse(lst, protoArgs);
+            }
+            final String cmd = protoCmd;
+            final ArrayList cmdArgs = protoArgs;
+            final Pipeline stages = pipeline;
+            if(background) {
+                int id = jobs.runBackground(cmdLine,
+                    () -> execCommand(cmd, cmdArgs, stages));
+                showMessage("["+id+"] "+cmdLine, true);
+                return;
             }
             try {
-                boolean multiple_cmds = false;
-                for (Iterator e = protoArgs.iterator() ; e.hasNext() ;)
-                    if(e.next() instanceof ArrayList)
-                        multiple_cmds = true;
                 if(guiEnabled && ! sourcing) mainFrame.showWait(true);
-                Object resp = bc.sendCommand(protoCmd, protoArgs);
-                if(resp != null) showResponse(protoCmd, resp, multiple_cmds, true);
+                jobs.runForeground(cmdLine,
+                                   () -> execCommand(cmd, cmdArgs, stages));
             } catch (BofhdException ex) {
                 if(sourcing) throw ex;
                 showMessage(ex.getMessage(), true);
@@ -403,6 +1025,96 @@ public final class JBofh {
             }
         }
 
+        /**
+         * Send a bofhd command and show the response.
+         *
+         * @param pipeline run on the response before it is shown, may
+         * be null
+         */
+        void execCommand(String protoCmd, ArrayList protoArgs,
+                         Pipeline pipeline) throws BofhdException {
+            boolean multiple_cmds = false;
+            for (Iterator e = protoArgs.iterator() ; e.hasNext() ;)
+                if(e.next() instanceof ArrayList)
+                    multiple_cmds = true;
+            if(pipeline != null) {
+                runPipeline(protoCmd, protoArgs, multiple_cmds, pipeline);
+                return;
+            }
+            ResponseStreamer streamer = getStreamer(protoCmd, multiple_cmds);
+            // Lists that can not be streamed may go to a file
+            ResponseSpool spool = streamer != null || multiple_cmds ? null :
+                bc.newSpool();
+            try {
+                Object resp;
+                if(streamer != null) {
+                    resp = bc.sendCommand(protoCmd, protoArgs, streamer);
+                    if(streamer.started) {
+                        // An empty list still gets its header
+                        if(streamer.rows == 0) streamer.showHeader();
+                        logger.debug("streamed "+streamer.rows+" rows");
+                        resp = null;
+                    }
+                } else if(spool != null) {
+                    resp = bc.sendCommand(protoCmd, protoArgs, spool);
+                    if(spool.started) resp = spool.getRows();
+                } else {
+                    resp = bc.sendCommand(protoCmd, protoArgs);
+                }
+                if(resp != null)
+                    showResponse(protoCmd, resp, multiple_cmds, true);
+            } finally {
+                if(spool != null) spool.close();
+            }
+        }
+
+        /**
+         * Send a bofhd command and show what <code>pipeline</code> makes
+         * of the response.  The rows go into a <code>ResultSet</code> as
+         * they are read.
+         */
+        void runPipeline(String protoCmd, ArrayList protoArgs,
+                         boolean multiple_cmds, Pipeline pipeline)
+                                                    throws BofhdException {
+            ResultSet rs;
+            try {
+                rs = new ResultSet(Integer.parseInt(props.getProperty(
+                    "pipeline.offHeapRows", "100000")));
+            } catch (NumberFormatException e) {
+                throw new BofhdException("Configure error, "+
+                    "pipeline.offHeapRows must be a number");
+            }
+            Pipeline.Collector collector = new Pipeline.Collector(bc, rs);
+            Object resp;
+            if(multiple_cmds || ! "true".equals(
+                    props.getProperty("transport.streaming", "true"))) {
+                resp = bc.sendCommand(protoCmd, protoArgs);
+            } else {
+                resp = bc.sendCommand(protoCmd, protoArgs, collector);
+                if(collector.started) resp = null;
+            }
+            if(multiple_cmds && resp instanceof ArrayList) {
+                for (Iterator e = ((ArrayList) resp).iterator(); e.hasNext();)
+                    collector.add(e.next());
+            } else if(resp != null) {
+                collector.add(resp);
+            }
+            if(collector.notRows)
+                throw new BofhdException("The response of "+protoCmd+
+                                         " is not rows, and can not be piped");
+            HashMap format = getFormat(protoCmd);
+            Object out = pipeline.run(rs, format == null ? null :
+                                      getResponseFormat(protoCmd, format));
+            if(out instanceof String) {
+                showMessage((String) out, true);
+            } else if(format == null) {
+                throw new BofhdException(protoCmd+" has no format "+
+                                         "suggestion, only count can be used");
+            } else {
+                showResponse(protoCmd, out, false, true);
+            }
+        }
+
         void enterLoop() {
             boolean keepLooping = true;
             while(keepLooping) {
@@ -455,6 +1167,7 @@ public final class JBofh {
         }
 
         void bye() {
+            jobs.reportFinished();
             showMessage(props.getProperty("exit_message"), true);
             try {
                 bc.logout();
@@ -462,48 +1175,33 @@ public final class JBofh {
             System.exit(0);
         }
 
-       private boolean opt2bool(Object opt) {
-           return (opt instanceof Boolean && ((Boolean) opt)) ||
-                   (opt instanceof Integer && ((Integer) opt) == 1);
-       }
         @SuppressWarnings("unchecked")
         ArrayList checkArgs(String cmd, ArrayList args) throws BofhdException {
             ArrayList ret = (ArrayList) args.clone();
-            ArrayList cmd_def = (ArrayList) bc.commands.get(cmd);
+            CommandTable.Command cmd_def = bc.commands.get(cmd);
             boolean did_prompt = false;
-            if(cmd_def.size() == 1) return ret;
-            Object pspec = cmd_def.get(1);
-            if (pspec instanceof String) {
-                if(! "prompt_func".equals(pspec)) {
-                    throw new BofhdException("Bad param spec");
-                }
+            if (cmd_def.specError != null)
+                throw new BofhdException(cmd_def.specError);
+            if (cmd_def.promptFunc)
                 return processServerCommandPromptFunction(cmd, ret);
-            }
-        for(int i = args.size(); i < ((ArrayList) pspec).size(); i++) {
-            HashMap param = (HashMap) ((ArrayList) pspec).get(i);
+        for(int i = args.size(); i < cmd_def.params.length; i++) {
+            CommandTable.Param param = cmd_def.params[i];
             logger.debug("ps: "+i+" -> "+param);
-            Object opt = param.get("optional");
-            if(! did_prompt && opt2bool(opt))
+            if(! did_prompt && param.optional)
                 break;  // If we have prompted, remain in prompt-mode also for optional args
-            Object tmp = param.get("default");
-            String defval = null;
-            if(tmp != null) {
-            if(tmp instanceof String){
-                defval = (String) tmp;
-            } else {
+            String defval = param.defaultValue;
+            if(param.serverDefault) {
                 ret.add(0, bc.sessid);
                 ret.add(1, cmd);
                 defval = (String) bc.sendRawCommand("get_default_param", ret, 0);
                 ret.remove(0);
                 ret.remove(0);
             }
-            }
             did_prompt = true;
-            String prompt = (String) param.get("prompt");
-            String type = (String) param.get("type");
+            String prompt = param.prompt;
             try {
             String s;
-            if (type != null && type.equals("accountPassword")) {
+            if (param.password) {
                 ConsolePassword cp = new ConsolePassword(mainFrame);
 
                 if(guiEnabled) {
@@ -529,11 +1227,11 @@ public final class JBofh {
 		    i--;
 		    ArrayList v = new ArrayList();
 		    v.add("arg_help");
-		    v.add(param.get("help_ref"));
+		    v.add(param.helpRef);
 		    String help = (String) bc.getHelp(v);
 		    showMessage(help, true);
 		} else {
-		    if (param.get("optional") != null && s.equals("")) {
+		    if (param.mayBeEmpty && s.equals("")) {
 			// Ignore optional arguments when left empty
 		    } else {
 			ret.add(s);
@@ -575,7 +1273,7 @@ public final class JBofh {
                             format_desc = "%4i " + format_desc;
                             description.add(0, i);
                         }
-                        PrintfFormat pf = new PrintfFormat(format_desc);
+                        PrintfTemplate pf = new PrintfTemplate(format_desc);
                         showMessage(pf.sprintf(description.toArray()), true);
                     }
                 }
@@ -649,83 +1347,163 @@ public final class JBofh {
             showMessage((String) resp, true);
             return;
         }
-        ArrayList args = new ArrayList();
-        args.add(cmd);
-        HashMap format = (HashMap) knownFormats.get(cmd);
+        HashMap format = getFormat(cmd);
         if(format == null) {
+            throw new IllegalArgumentException("result was class: "+
+                resp.getClass().getName()+ ", no format suggestion exists");
+        }
+        if(! (resp instanceof List) ){
+            ArrayList tmp = new ArrayList(); // Force value as List
+            tmp.add(resp);
+            resp = tmp;
+        }
+        ResponseFormat rfmt = getResponseFormat(cmd, format);
+        if(rfmt.hdr != null && show_hdr) showMessage(rfmt.hdr, true);
+        for (ResponseFormat.Entry entry : rfmt.entries) {
+            RowFormatter rf = new RowFormatter(entry);
+            for (Iterator e = ((List) resp).iterator() ;
+                    e.hasNext() ;) {
+                rf.showRow((Map) (e.next()), resp, format);
+            }
+        }
+    }
+
+    /**
+     * @return the format suggestion for <code>cmd</code>, asking bofhd
+     * if it is not known yet, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    HashMap getFormat(String cmd) throws BofhdException {
+        HashMap format = (HashMap) knownFormats.get(cmd);
+        if(format == null && ! noFormat.contains(cmd)) {
+            ArrayList args = new ArrayList();
+            args.add(cmd);
             Object f = bc.sendRawCommand("get_format_suggestion", args, -1);
             if(f instanceof String && ((String)f).equals(""))
                 f = null;
             if(f != null) {
                 knownFormats.put(cmd, f);
-                format = (HashMap) knownFormats.get(cmd);
-            } else {
-                throw new IllegalArgumentException("result was class: "+
-                    resp.getClass().getName()+ ", no format suggestion exists");
+                format = (HashMap) f;
             }
         }
-        if(! (resp instanceof ArrayList) ){
-            ArrayList tmp = new ArrayList(); // Force value as ArrayList
-            tmp.add(resp);
-            resp = tmp;
+        return format;
+    }
+
+    /**
+     * @return the compiled form of the format suggestion
+     * <code>format</code> for <code>cmd</code>, compiling it if it is
+     * new
+     */
+    @SuppressWarnings("unchecked")
+    ResponseFormat getResponseFormat(String cmd, HashMap format) {
+        synchronized (compiledFormats) {
+            ResponseFormat rfmt = (ResponseFormat) compiledFormats.get(cmd);
+            if(rfmt == null || rfmt.source != format) {
+                rfmt = new ResponseFormat(format);
+                compiledFormats.put(cmd, rfmt);
+            }
+            return rfmt;
         }
-        String hdr = (String) format.get("hdr");
-        if(hdr != null && show_hdr) showMessage(hdr, true);
-        for (Iterator ef =
-                ((ArrayList) format.get("str_vars")).iterator() ;
-                ef.hasNext() ;) {
-            ArrayList format_info = (ArrayList) ef.next();
-            String format_str = (String) format_info.get(0);
-            ArrayList order = (ArrayList) format_info.get(1);
-            String sub_hdr = null;
-            if(format_info.size() == 3)
-                sub_hdr = (String) format_info.get(2);
-            for (Iterator e = ((ArrayList) resp).iterator() ;
-                    e.hasNext() ;) {
-                HashMap row = (HashMap) (e.next());
-            if(! row.containsKey(order.get(0)))
-                    continue;
-            try {
-                    PrintfFormat pf = new PrintfFormat(format_str);
-                    if(sub_hdr != null) {
-                        // This dataset has a sub-header, optionaly %s formatted
-                        if(sub_hdr.contains("%")) {
-                            pf = new PrintfFormat(sub_hdr);
-                        } else {
-                            showMessage(sub_hdr, true);
-                        }
-                        sub_hdr = null;
-                    }
+    }
 
-            Object a[] = new Object[order.size()];
-            for(int i = 0; i < order.size(); i++) {
-                        String tmp = (String) order.get(i);
-                        if(tmp.contains(":")) {
-                            StringTokenizer st = new StringTokenizer(tmp, ":");
-                            tmp = st.nextToken();
-                            String type = st.nextToken();
-                            String formatinfo = "";
-                            while (st.hasMoreTokens()) {
-                                if(formatinfo.length() > 0)
-                                    formatinfo += ":";
-                                formatinfo += st.nextToken();
-                            }
-                            a[i] = row.get(tmp);
-                            if (type.equals("date") && (! "<not set>".equals(a[i]))) {
-                                SimpleDateFormat sdf = new SimpleDateFormat(formatinfo);
-                                a[i] = sdf.format(a[i]);
-                            }
-                        } else {
-                            a[i] = row.get(tmp);
-                        }
+    /**
+     * Formats the rows of one response according to one entry in the
+     * <code>str_vars</code> list of a format suggestion.
+     */
+    class RowFormatter {
+        ResponseFormat.Entry entry;
+        boolean subHdrPending;
+        Object[] args;
+        StringBuilder sb = new StringBuilder();
+
+        RowFormatter(ResponseFormat.Entry entry) {
+            this.entry = entry;
+            subHdrPending = entry.subHdr != null;
+            args = new Object[entry.columns.length];
+        }
+
+        /**
+         * Show <code>row</code>, unless it lacks the first field of
+         * this entry.
+         *
+         * @param resp the whole response, for error logging
+         * @param format the format suggestion, for error logging
+         */
+        void showRow(Map row, Object resp, HashMap format) {
+            if(! row.containsKey(entry.key))
+                return;
+            try {
+                PrintfTemplate pf = entry.getFormat();
+                if(subHdrPending) {
+                    // This dataset has a sub-header, optionaly %s formatted
+                    if(entry.hasSubHdrFormat()) {
+                        pf = entry.getSubHdrFormat();
+                    } else {
+                        showMessage(entry.subHdr, true);
                     }
-                    showMessage(pf.sprintf(a), true);
-                } catch (IllegalArgumentException ex) {
-                    logger.error("Error formatting "+resp+"\n as: "+format, ex);
-                    showMessage("An error occoured formatting the response, see log for details", true);
+                    subHdrPending = false;
                 }
-         }
+                sb.setLength(0);
+                entry.format(pf, row, args, sb);
+                showMessage(sb.toString(), true);
+            } catch (IllegalArgumentException ex) {
+                logger.error("Error formatting "+resp+"\n as: "+format, ex);
+                showMessage("An error occoured formatting the response, see log for details", true);
+            }
+        }
+    }
+
+    /**
+     * Shows the rows of a response while it is being read.  Only used
+     * when the format suggestion of the command is known and has a
+     * single <code>str_vars</code> entry, as the rows must otherwise be
+     * gone through once per entry.
+     */
+    class ResponseStreamer implements StreamingTypeFactory.RowHandler {
+        HashMap format;
+        ResponseFormat rfmt;
+        RowFormatter rf;
+        boolean started = false;
+        int rows = 0;
+
+        ResponseStreamer(HashMap format, ResponseFormat rfmt) {
+            this.format = format;
+            this.rfmt = rfmt;
+            rf = new RowFormatter(rfmt.entries[0]);
         }
+
+        @Override
+        public void start() {
+            started = true;
+        }
+
+        @Override
+        public void handleRow(Object row) {
+            if(rows++ == 0) showHeader();
+            row = bc.washResponse(row);
+            rf.showRow((Map) row, row, format);
+        }
+
+        void showHeader() {
+            if(rfmt.hdr != null) showMessage(rfmt.hdr, true);
+        }
+    }
+
+    /**
+     * @return a <code>ResponseStreamer</code> for <code>cmd</code>, or
+     * null if its response must be read completely before it is shown
+     */
+    ResponseStreamer getStreamer(String cmd, boolean multiple_cmds) {
+        if(multiple_cmds || ! "true".equals(
+                props.getProperty("transport.streaming", "true")))
+            return null;
+        HashMap format = (HashMap) knownFormats.get(cmd);
+        if(format == null)
+            return null;
+        ResponseFormat rfmt = getResponseFormat(cmd, format);
+        if(rfmt.entries.length != 1)
+            return null;
+        return new ResponseStreamer(format, rfmt);
     }
 
     static boolean isMSWindows() { 
@@ -741,11 +1519,22 @@ public final class JBofh {
     @SuppressWarnings({"unchecked", "null"})
     public static void main(String[] args) throws KeyStoreException,
                                          NoSuchAlgorithmException, IOException {
+        if(args.length > 0 && args[0].equals("call")) {
+            // The thin client of a running agent
+            Agent.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        StartupTimings timings = new StartupTimings();
         boolean gui = JBofh.isMSWindows();
+        boolean batch = false;
         String uname = System.getProperty("user.name");
         JBofh jb = null;
         try {
             String bofhd_url = null;
+            String command = null;
+            boolean showTimings = false;
+            boolean agent = false;
+            String socket = null;
             String cafile = null;
             boolean test_login = false;
             String log4jPropertyFile = "/log4j_normal.properties";
@@ -784,6 +1573,23 @@ public final class JBofh {
                     case "--ca":
                         cafile = args[++i];
                         break;
+                    case "--agent":
+                        agent = true;
+                        gui = false;
+                        break;
+                    case "--socket":
+                        socket = args[++i];
+                        break;
+                    case "-c":
+                        command = args[++i];
+                        // Fall through
+                    case "--batch":
+                        batch = true;
+                        gui = false;
+                        break;
+                    case "--timings":
+                        showTimings = true;
+                        break;
                     default:
                         System.out.println(
                             "Usage: ... [-q | --url url | --gui | --nogui | -d]\n"+
@@ -795,12 +1601,23 @@ public final class JBofh {
                                     "--set key=value: override settings in property file\n"+
                                     "--ca cafile : explicitly provide path and "
                                     + "file name of a CA certificate file\n" +
+                                    "--agent : log in, then run commands for "
+                                    + "\"jbofh call\" clients\n" +
+                                    "--socket path : the socket of the agent\n" +
+                                    "call [--socket path] command ... : run "
+                                    + "a command in the agent\n" +
+                                    "-c command : run the command and exit "
+                                    + "with its status\n" +
+                                    "--batch : run commands from stdin until "
+                                    + "one fails, without prompting\n" +
+                                    "--timings : show how long starting up "
+                                    + "took\n" +
                                     "-d : enable debugging");
                         System.exit(1);
                 }
             }
-            jb = new JBofh(gui, log4jPropertyFile, bofhd_url, propsOverride,
-                            cafile);
+            jb = new JBofh(gui, batch, log4jPropertyFile, bofhd_url,
+                           propsOverride, cafile, timings);
             if(test_login) {
                 jb.initialLogin("bootstrap_account", "test");
                 // "test" md5: $1$F9feZuRT$hNAtCcCIHry4HKgGkkkFF/
@@ -808,6 +1625,21 @@ public final class JBofh {
             } else {
                 jb.initialLogin(uname, null);
             }
+            if(batch) {
+                System.exit(jb.runBatch(command, showTimings));
+            }
+            timings.report(showTimings);
+            if(agent) {
+                jb.agent = new Agent(jb, socket == null ? null :
+                                     Paths.get(socket));
+                try {
+                    jb.agent.serve();
+                } catch (IOException e) {
+                    System.out.println("Could not start the agent: "+
+                                       e.getMessage());
+                    System.exit(1);
+                }
+            }
             jb.enterLoop();
         } catch (BofhdException be) {
             String msg = "Caught error during init, terminating: \n"+ be.getMessage();
@@ -817,7 +1649,7 @@ public final class JBofh {
                 System.exit(0);
             } else {
                 System.out.println(msg);
-                System.exit(0);
+                System.exit(batch ? EXIT_INIT : 0);
             }
         }
     }    
@@ -404,6 +404,12 @@ public final class JBofhFrameImpl extends KeyAdapter implements ActionListener,
             }
                 return false;
         });
+        // Esc cancels the running command, if any
+        KeyboardFocusManager.getCurrentKeyboardFocusManager()
+            .addKeyEventDispatcher((KeyEvent e) ->
+                e.getID() == KeyEvent.KEY_PRESSED &&
+                e.getKeyCode() == KeyEvent.VK_ESCAPE &&
+                jbofh.jobs != null && jbofh.jobs.cancelForeground());
 
         // We want control over some keys used on tfCmdLine
         tfCmdLine.setFocusTraversalKeysEnabled(false);
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2026 University of Oslo, Norway
+ *
+ * This file is part of Cerebrum.
+ *
+ * Cerebrum is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerebrum is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerebrum; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package no.uio.jbofh;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs bofhd commands on worker threads, so that the command line
+ * stays responsive while bofhd works.  A foreground command is waited
+ * for, but can be cancelled with Ctrl-C (or Esc in the GUI).  A
+ * command ending with <code>&amp;</code> runs as a background job:
+ * its output is kept until it is done, and is then shown before the
+ * next prompt (or at once in the GUI).
+ *
+ * Cancelling aborts the HTTP request through
+ * <code>BofhdConnection.abort</code>, and any output the command
+ * produces after that is thrown away.  bofhd is not told, so it may
+ * still finish the command.
+ */
+class JobManager {
+    JBofh jbofh;
+    ExecutorService executor;
+    private final ThreadLocal current = new ThreadLocal();
+    private final TreeMap jobs = new TreeMap();
+    private final ArrayList finished = new ArrayList();
+    private volatile Job foreground;
+    private int lastId = 0;
+
+    /**
+     * The work done by a job.
+     */
+    interface Task {
+        void run() throws BofhdException;
+    }
+
+    /**
+     * One command, running or finished.
+     */
+    class Job {
+        final int id;
+        final String cmdLine;
+        final boolean background;
+        final long started = System.currentTimeMillis();
+        final CompletableFuture result = new CompletableFuture();
+        final StringBuilder output = new StringBuilder();
+        volatile Thread thread;
+        volatile boolean cancelled;
+
+        Job(int id, String cmdLine, boolean background) {
+            this.id = id;
+            this.cmdLine = cmdLine;
+            this.background = background;
+        }
+
+        String getState() {
+            if (cancelled) return "Cancelled";
+            if (! result.isDone()) return "Running";
+            return result.isCompletedExceptionally() ? "Failed" : "Done";
+        }
+    }
+
+    JobManager(JBofh jbofh) {
+        this.jbofh = jbofh;
+        final AtomicInteger threadNo = new AtomicInteger();
+        executor = Executors.newCachedThreadPool((Runnable r) -> {
+            Thread t = new Thread(r, "jbofh-job-"+threadNo.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private Job start(String cmdLine, boolean background, final Task task) {
+        final Job job;
+        if (background) {
+            synchronized (this) {
+                job = new Job(++lastId, cmdLine, true);
+                jobs.put(job.id, job);
+            }
+        } else {
+            job = new Job(0, cmdLine, false);
+        }
+        executor.execute(() -> {
+            job.thread = Thread.currentThread();
+            current.set(job);
+            try {
+                if (! job.cancelled) task.run();
+                job.result.complete(null);
+            } catch (Throwable t) {
+                job.result.completeExceptionally(t);
+            } finally {
+                current.remove();
+                job.thread = null;
+                Thread.interrupted();
+                finish(job);
+            }
+        });
+        return job;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void finish(Job job) {
+        if (! job.background) return;
+        synchronized (this) {
+            jobs.remove(job.id);
+            if (! jbofh.guiEnabled) {
+                finished.add(job);
+                return;
+            }
+        }
+        report(job);
+    }
+
+    /**
+     * Run <code>task</code> on a worker thread and wait for it.
+     *
+     * @param cmdLine the command
+     * @exception BofhdException if the task fails or is cancelled
+     */
+    void runForeground(String cmdLine, Task task) throws BofhdException {
+        Job job = start(cmdLine, false, task);
+        foreground = job;
+        try {
+            job.result.get();
+        } catch (CancellationException e) {
+            throw new BofhdException("Command cancelled");
+        } catch (InterruptedException e) {
+            cancel(job);
+            throw new BofhdException("Command cancelled");
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof BofhdException) throw (BofhdException) t;
+            if (t instanceof RuntimeException) throw (RuntimeException) t;
+            if (t instanceof Error) throw (Error) t;
+            throw new RuntimeException(t);
+        } finally {
+            foreground = null;
+        }
+    }
+
+    /**
+     * Run <code>task</code> as a background job.
+     *
+     * @return the job id
+     */
+    int runBackground(String cmdLine, Task task) {
+        return start(cmdLine, true, task).id;
+    }
+
+    private void cancel(Job job) {
+        job.cancelled = true;
+        Thread t = job.thread;
+        if (t != null) {
+            // Interrupt first, so that the aborted request is not retried
+            t.interrupt();
+            jbofh.bc.abort(t);
+        }
+        job.result.cancel(false);
+    }
+
+    /**
+     * Cancel the foreground command, if any.
+     *
+     * @return true if a command was cancelled
+     */
+    boolean cancelForeground() {
+        Job job = foreground;
+        if (job == null) return false;
+        cancel(job);
+        return true;
+    }
+
+    /**
+     * Cancel a running background job.
+     *
+     * @return true if the job was running
+     */
+    boolean cancel(int id) {
+        Job job;
+        synchronized (this) {
+            job = (Job) jobs.get(id);
+        }
+        if (job == null) return false;
+        cancel(job);
+        return true;
+    }
+
+    /**
+     * Called by <code>JBofh.showMessage</code>.  Output from background
+     * jobs is saved until they are done, and output from cancelled
+     * commands is dropped.
+     *
+     * @return true if the message was taken care of
+     */
+    boolean captureMessage(String msg, boolean crlf) {
+        Job job = (Job) current.get();
+        if (job == null) return false;
+        if (job.cancelled) return true;
+        if (! job.background) return false;
+        job.output.append(msg);
+        if (crlf) job.output.append('\n');
+        return true;
+    }
+
+    private void report(Job job) {
+        String error = "";
+        if (! job.cancelled && job.result.isCompletedExceptionally()) {
+            try {
+                job.result.get();
+            } catch (InterruptedException | ExecutionException e) {
+                Throwable t = e.getCause() != null ? e.getCause() : e;
+                error = t instanceof BofhdException ? t.getMessage() :
+                    "Unexpected error (bug): "+t;
+            }
+        }
+        jbofh.showMessage("["+job.id+"] "+job.getState()+"  "+job.cmdLine,
+                          true);
+        if (job.cancelled) return;
+        if (job.output.length() > 0) jbofh.showMessage(job.output.toString(),
+                                                       false);
+        if (error.length() > 0) jbofh.showMessage(error, true);
+    }
+
+    /**
+     * Show the background jobs that have finished since the last call.
+     */
+    @SuppressWarnings("unchecked")
+    void reportFinished() {
+        ArrayList tmp;
+        synchronized (this) {
+            if (finished.isEmpty()) return;
+            tmp = new ArrayList(finished);
+            finished.clear();
+        }
+        for (Iterator e = tmp.iterator(); e.hasNext(); )
+            report((Job) e.next());
+    }
+
+    /**
+     * @return one line for each running background job
+     */
+    @SuppressWarnings("unchecked")
+    synchronized ArrayList list() {
+        ArrayList ret = new ArrayList();
+        long now = System.currentTimeMillis();
+        for (Iterator e = jobs.values().iterator(); e.hasNext(); ) {
+            Job job = (Job) e.next();
+            ret.add(String.format("[%d] %-9s %6.1fs  %s", job.id,
+                                  job.getState(),
+                                  (now - job.started) / 1000.0, job.cmdLine));
+        }
+        return ret;
+    }
+}
+
+// arch-tag: 9a3f61d2-c8e4-4b7a-8f15-2e6d0b9c7a43
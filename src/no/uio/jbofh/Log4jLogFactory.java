@@ -0,0 +1,111 @@
+/*
+ * Copyright 2026 University of Oslo, Norway
+ *
+ * This file is part of Cerebrum.
+ *
+ * Cerebrum is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerebrum is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerebrum; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package no.uio.jbofh;
+
+import java.util.HashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Minimal commons-logging factory that sends everything to log4j.
+ * Only the commons-logging API is packed in org.jar, so libraries that
+ * log through it (commons-httpclient) need this to be selected with
+ * the <code>org.apache.commons.logging.LogFactory</code> system
+ * property before they are loaded.
+ */
+public class Log4jLogFactory extends LogFactory {
+    private final HashMap attributes = new HashMap();
+
+    static class Log4jLog implements Log {
+        private final Logger logger;
+
+        Log4jLog(Logger logger) {
+            this.logger = logger;
+        }
+
+        public void trace(Object message) { logger.debug(message); }
+        public void trace(Object message, Throwable t) { logger.debug(message, t); }
+        public void debug(Object message) { logger.debug(message); }
+        public void debug(Object message, Throwable t) { logger.debug(message, t); }
+        public void info(Object message) { logger.info(message); }
+        public void info(Object message, Throwable t) { logger.info(message, t); }
+        public void warn(Object message) { logger.warn(message); }
+        public void warn(Object message, Throwable t) { logger.warn(message, t); }
+        public void error(Object message) { logger.error(message); }
+        public void error(Object message, Throwable t) { logger.error(message, t); }
+        public void fatal(Object message) { logger.fatal(message); }
+        public void fatal(Object message, Throwable t) { logger.fatal(message, t); }
+        public boolean isTraceEnabled() { return logger.isDebugEnabled(); }
+        public boolean isDebugEnabled() { return logger.isDebugEnabled(); }
+        public boolean isInfoEnabled() { return logger.isInfoEnabled(); }
+        public boolean isWarnEnabled() { return logger.isEnabledFor(Level.WARN); }
+        public boolean isErrorEnabled() { return logger.isEnabledFor(Level.ERROR); }
+        public boolean isFatalEnabled() { return logger.isEnabledFor(Level.FATAL); }
+    }
+
+    /**
+     * Select this factory for commons-logging.  The httpclient wire log
+     * is turned off, as it would write passwords to the debug log.
+     */
+    static void install() {
+        System.setProperty(LogFactory.FACTORY_PROPERTY,
+                           Log4jLogFactory.class.getName());
+        Logger.getLogger("httpclient.wire").setLevel(Level.INFO);
+    }
+
+    public Log getInstance(Class clazz) {
+        return getInstance(clazz.getName());
+    }
+
+    public Log getInstance(String name) {
+        return new Log4jLog(Logger.getLogger(name));
+    }
+
+    public synchronized Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized String[] getAttributeNames() {
+        return (String[]) attributes.keySet().toArray(new String[0]);
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized void setAttribute(String name, Object value) {
+        if (value == null) {
+            attributes.remove(name);
+        } else {
+            attributes.put(name, value);
+        }
+    }
+
+    public synchronized void removeAttribute(String name) {
+        attributes.remove(name);
+    }
+
+    public void release() {
+    }
+}
+
+// arch-tag: 0c7d2a55-8e31-4b9f-a3d6-41f5e9b27c08
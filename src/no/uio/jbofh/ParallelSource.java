@@ -0,0 +1,339 @@
+/*
+ * Copyright 2026 University of Oslo, Norway
+ *
+ * This file is part of Cerebrum.
+ *
+ * Cerebrum is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerebrum is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerebrum; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package no.uio.jbofh;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the commands of a sourced file on a pool of worker threads.
+ * The whole file is parsed before anything is sent.  Commands are
+ * dispatched ahead of the line being shown, but the responses are
+ * shown in line order from the calling thread, just like
+ * <code>JBofh.sourceFile</code> would have shown them.
+ *
+ * Native commands (script, source, help, ...) are run in order from
+ * the calling thread, and no command after them is dispatched until
+ * they have been run.
+ *
+ * Only read-only commands run at the same time.  A command that may
+ * change anything (one that does not match
+ * <code>transport.retry.commands</code>) is a barrier, with or
+ * without <code>--ignore-errors</code>: it is not sent until every
+ * line before it has completed, and no line after it is sent until it
+ * has completed.  So a command sees the changes of the lines before
+ * it, and when stopping on errors nothing after the failing line
+ * changes anything.  Read-only commands after a failing read-only
+ * line that are already in flight are completed by the server, but
+ * their responses are not shown.
+ *
+ * If <code>transport.multicall</code> is enabled and the server
+ * supports it, the commands are sent in <code>system.multicall</code>
+ * batches of <code>transport.multicall.batchSize</code> commands
+ * instead, and up to one batch per worker is kept in flight.
+ */
+class ParallelSource {
+    JBofh jbofh;
+    int workers;
+    boolean stopOnError;
+    CommandBatcher batcher;
+    private long sent = 0, totalLatency = 0, maxLatency = 0;
+
+    /**
+     * One non-empty, non-comment line of the sourced file.
+     */
+    class Line {
+        int lineno;
+        String text;
+        ArrayList args;
+        ParseException parseError;
+        boolean isNative;
+        BofhdException analyzeError;
+        String protoCmd;
+        boolean multipleCmds;
+        ArrayList protoArgs;
+        Future result;
+
+        Line(int lineno, String text) {
+            this.lineno = lineno;
+            this.text = text;
+            try {
+                args = jbofh.cLine.splitCommand(text);
+                // Piped commands are run in order, like native ones
+                isNative = JBofh.isNativeCommand(args) ||
+                    Pipeline.indexOf(args) != -1;
+            } catch (ParseException ex) {
+                parseError = ex;
+            }
+        }
+
+        /**
+         * Translate the command, once.
+         */
+        @SuppressWarnings("unchecked")
+        void translate() {
+            if (protoCmd != null || analyzeError != null || parseError != null)
+                return;
+            try {
+                ArrayList lst = jbofh.bcompleter.analyzeCommand(args, -1);
+                protoCmd = (String) lst.get(lst.size() - 1);
+                protoArgs = new ArrayList(
+                    args.subList(lst.size()-1, args.size()));
+            } catch (AnalyzeCommandException e) {
+                analyzeError = new BofhdException(e.getMessage());
+                return;
+            }
+            for (Iterator e = protoArgs.iterator() ; e.hasNext() ;)
+                if(e.next() instanceof ArrayList)
+                    multipleCmds = true;
+        }
+
+        /**
+         * @return true if the line sends a command that may change
+         * anything
+         */
+        boolean mutates() {
+            translate();
+            return protoCmd != null && ! jbofh.bc.isReadOnly(protoCmd);
+        }
+
+        /**
+         * Translate the command and send it to one of the workers.
+         */
+        @SuppressWarnings("unchecked")
+        void dispatch(ExecutorService executor) {
+            translate();
+            if (protoCmd == null) return;
+            final String cmd = protoCmd;
+            final ArrayList protoArgs = this.protoArgs;
+            if (batcher != null) {
+                final long start = System.nanoTime();
+                result = batcher.submit(cmd, protoArgs).whenComplete(
+                    (r, t) -> addLatency(System.nanoTime() - start));
+                return;
+            }
+            result = executor.submit(() -> {
+                long start = System.nanoTime();
+                try {
+                    return jbofh.bc.sendCommand(cmd, protoArgs);
+                } finally {
+                    addLatency(System.nanoTime() - start);
+                }
+            });
+        }
+    }
+
+    /**
+     * @param jbofh
+     * @param workers number of commands to have in flight at once
+     * @param stopOnError stop at the first failing line
+     */
+    ParallelSource(JBofh jbofh, int workers, boolean stopOnError) {
+        this.jbofh = jbofh;
+        this.workers = workers;
+        this.stopOnError = stopOnError;
+    }
+
+    private synchronized void addLatency(long nanos) {
+        sent++;
+        totalLatency += nanos;
+        if (nanos > maxLatency) maxLatency = nanos;
+    }
+
+    @SuppressWarnings("unchecked")
+    private ArrayList readFile(String filename) throws IOException {
+        ArrayList lines = new ArrayList();
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(filename)))) {
+            String sin;
+            int lineno = 0;
+            while((sin = in.readLine()) != null) {
+                lineno++;
+                sin = sin.trim();
+                if(sin.startsWith("#") ||  sin.length() == 0)
+                    continue;
+                lines.add(new Line(lineno, sin));
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Dispatch lines from <code>next</code> until <code>window</code>
+     * commands after <code>current</code> are in flight, stopping at
+     * native commands and at commands that may change anything.  Such
+     * a command is only dispatched when it is the current line, and
+     * then alone.
+     *
+     * @return the index of the first line that was not dispatched
+     */
+    private int fill(ArrayList lines, int current, int next, int window,
+                     ExecutorService executor) {
+        while (next < lines.size() && next < current + window) {
+            Line l = (Line) lines.get(next);
+            if (l.isNative) break;
+            if (l.mutates()) {
+                // Wait for the lines before it to complete
+                if (next == current) {
+                    l.dispatch(executor);
+                    next++;
+                }
+                // Nothing more is sent before the barrier, so do not wait
+                if (batcher != null) batcher.flush();
+                break;
+            }
+            if (l.parseError == null) l.dispatch(executor);
+            next++;
+        }
+        return next;
+    }
+
+    /**
+     * Show the response to a dispatched line.
+     */
+    private void showResult(Line l) throws BofhdException {
+        if (l.analyzeError != null) throw l.analyzeError;
+        Object resp;
+        try {
+            resp = l.result.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof BofhdException)
+                throw (BofhdException) ex.getCause();
+            jbofh.showMessage("Unexpected error (bug): "+ex.getCause(), true);
+            ex.getCause().printStackTrace(System.out);
+            return;
+        } catch (InterruptedException ex) {
+            throw new BofhdException("Interrupted");
+        }
+        try {
+            if(resp != null)
+                jbofh.showResponse(l.protoCmd, resp, l.multipleCmds, true);
+        } catch (BofhdException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            jbofh.showMessage("Unexpected error (bug): "+ex, true);
+            ex.printStackTrace(System.out);
+        }
+    }
+
+    void run(String filename) {
+        ArrayList lines;
+        try {
+            lines = readFile(filename);
+        } catch (IOException io) {
+            jbofh.showMessage("Error reading file: "+io.getMessage(), true);
+            return;
+        }
+        int window = workers * 2;
+        if (jbofh.bc.useMulticall()) {
+            try {
+                int batchSize = Integer.parseInt(jbofh.props.getProperty(
+                    "transport.multicall.batchSize", "20"));
+                long batchWindow = Long.parseLong(jbofh.props.getProperty(
+                    "transport.multicall.window", "20"));
+                batcher = new CommandBatcher(jbofh.bc, batchSize, batchWindow,
+                                             workers);
+                window = workers * batchSize;
+            } catch (NumberFormatException e) {
+                jbofh.showMessage("Configure error, transport.multicall.* "+
+                                  "must be a number", true);
+                return;
+            }
+        }
+        final AtomicInteger threadNo = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(workers,
+            (Runnable r) -> {
+                Thread t = new Thread(r, "jbofh-source-"+
+                                      threadNo.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        long start = System.nanoTime();
+        int next = 0;
+        try {
+            for (int i = 0; i < lines.size(); i++) {
+                Line l = (Line) lines.get(i);
+                if (! l.isNative)
+                    next = fill(lines, i, Math.max(next, i), window,
+                                executor);
+                if (l.parseError != null) {
+                    jbofh.showMessage("Error parsing command ("+l.text+")", true);
+                    if (stopOnError) break;
+                    continue;
+                }
+                jbofh.showMessage(((String) jbofh.props.get("console_prompt"))+
+                                  l.text, true);
+                try {
+                    if (l.isNative) {
+                        jbofh.runCommand(l.args, true);
+                    } else {
+                        showResult(l);
+                    }
+                } catch (BofhdException be) {
+                    jbofh.showMessage(be.getMessage(), true);
+                    if (stopOnError) {
+                        jbofh.showMessage("Sourcing of "+filename+
+                                          " aborted on line "+l.lineno, true);
+                        jbofh.showMessage("Hint: Use 'source --ignore-errors fname' to ignore errors", true);
+                        break;
+                    }
+                }
+            }
+        } finally {
+            for (int i = 0; i < next; i++) {
+                Line l = (Line) lines.get(i);
+                if (l.result != null) l.result.cancel(false);
+            }
+            executor.shutdown();
+            if (batcher != null) batcher.shutdown();
+        }
+        showSummary(System.nanoTime() - start);
+    }
+
+    private synchronized void showSummary(long elapsed) {
+        double secs = elapsed / 1e9;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Sent %d commands in %.1f s with %d workers",
+                                sent, secs, workers));
+        if (batcher != null)
+            sb.append(String.format(" in %d multicall requests",
+                                    batcher.getBatches()));
+        if (sent > 0) {
+            sb.append(String.format(": %.1f commands/s, latency avg %d ms, max %d ms",
+                                    sent / secs,
+                                    totalLatency / sent / 1000000,
+                                    maxLatency / 1000000));
+        }
+        jbofh.showMessage(sb.toString(), true);
+    }
+}
+
+// arch-tag: 9a4f1e27-6c0b-4d8e-b5a3-2e7c9d1f0b64
@@ -0,0 +1,478 @@
+/*
+ * Copyright 2026 University of Oslo, Norway
+ *
+ * This file is part of Cerebrum.
+ *
+ * Cerebrum is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerebrum is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerebrum; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package no.uio.jbofh;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The stages after a <code>|</code> on the command line, which work on
+ * the response of the command instead of asking bofhd again:
+ *
+ * <pre>
+ *   sort [-]column ...      order the rows, - for descending
+ *   where column op value   keep the matching rows, op is one of
+ *                           =  !=  &lt;  &lt;=  &gt;  &gt;=  ~ (regexp)  !~
+ *   head n                  keep the first n rows
+ *   count [column ...]      show the number of rows, or of each value
+ * </pre>
+ *
+ * The rows are collected in a <code>ResultSet</code>, and the stages
+ * pass an array of row numbers along.  Column names are checked
+ * against the response and the columns of the format suggestion, and
+ * dates are shown with its date formats.  A date is compared with a
+ * period given by the start of <code>yyyy-MM-dd HH:mm:ss</code>, so
+ * <code>where expire &lt; 2026</code> keeps what expires before 2026.
+ */
+class Pipeline {
+    static final String USAGE = "Usage: command | sort [-]column ... | "+
+        "where column op value | head n | count [column ...]";
+    static final String[] OPS = { "<=", ">=", "!=", "!~", "=", "<", ">", "~" };
+    static final String[] PERIODS = { "yyyy-MM-dd HH:mm:ss",
+        "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd HH:mm", "yyyy-MM-dd'T'HH:mm",
+        "yyyy-MM-dd", "yyyy-MM", "yyyy" };
+    static final int[] PERIOD_FIELDS = { Calendar.SECOND, Calendar.SECOND,
+        Calendar.MINUTE, Calendar.MINUTE, Calendar.DATE, Calendar.MONTH,
+        Calendar.YEAR };
+    final ArrayList stages = new ArrayList();
+
+    /**
+     * Compares two rows.
+     */
+    interface RowComparator {
+        int compare(int a, int b);
+    }
+
+    /**
+     * The state of one run through the stages.
+     */
+    static class Run {
+        final ResultSet rs;
+        final ResponseFormat format;
+        /** Set by a stage that shows something else than rows */
+        String output;
+
+        Run(ResultSet rs, ResponseFormat format) {
+            this.rs = rs;
+            this.format = format;
+        }
+
+        /**
+         * @return the column <code>name</code>, or null if no row has
+         * it but the format suggestion does
+         * @exception BofhdException if neither has it
+         */
+        @SuppressWarnings("unchecked")
+        ResultSet.Column column(String name) throws BofhdException {
+            ResultSet.Column c = rs.getColumn(name);
+            if (c != null) return c;
+            ArrayList names = new ArrayList();
+            if (format != null) names.addAll(format.getColumnNames());
+            if (names.contains(name)) return null;
+            for (Iterator e = rs.columns.iterator(); e.hasNext(); ) {
+                String n = ((ResultSet.Column) e.next()).name;
+                if (! names.contains(n)) names.add(n);
+            }
+            throw new BofhdException("Unknown column: "+name+
+                (names.isEmpty() ? "" : ", try one of: "+
+                 String.join(" ", names)));
+        }
+
+        /**
+         * @return the value of <code>c</code> in <code>row</code> as
+         * text, with dates formatted like the format suggestion does
+         */
+        String show(String name, ResultSet.Column c, int row) {
+            Object o = c == null ? null : c.get(row);
+            if (o == null) return ResultSet.NOT_SET;
+            if (o instanceof Date) {
+                ResponseFormat.Column spec = format == null ? null :
+                    format.getDateColumn(name);
+                try {
+                    if (spec != null) o = spec.formatValue(o);
+                } catch (IllegalArgumentException e) {
+                    // Use the default below
+                }
+                if (o instanceof Date)
+                    o = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(o);
+            }
+            return o.toString();
+        }
+    }
+
+    /**
+     * One stage.
+     */
+    abstract static class Stage {
+        abstract int[] apply(Run run, int[] rows) throws BofhdException;
+    }
+
+    static class Sort extends Stage {
+        final String[] names;
+        final boolean[] descending;
+
+        Sort(List args) throws BofhdException {
+            if (args.isEmpty()) throw new BofhdException("Usage: sort [-]column ...");
+            names = new String[args.size()];
+            descending = new boolean[names.length];
+            for (int i = 0; i < names.length; i++) {
+                String name = (String) args.get(i);
+                descending[i] = name.startsWith("-") && name.length() > 1;
+                names[i] = descending[i] ? name.substring(1) : name;
+            }
+        }
+
+        @Override
+        int[] apply(Run run, int[] rows) throws BofhdException {
+            final ResultSet.Column[] keys = new ResultSet.Column[names.length];
+            for (int i = 0; i < keys.length; i++) keys[i] = run.column(names[i]);
+            sort(rows, (int a, int b) -> {
+                for (int i = 0; i < keys.length; i++) {
+                    if (keys[i] == null) continue;
+                    int c = keys[i].compare(a, b, descending[i]);
+                    if (c != 0) return c;
+                }
+                return 0;
+            });
+            return rows;
+        }
+    }
+
+    static class Where extends Stage {
+        final String name, op, literal;
+        final Pattern pattern;
+
+        @SuppressWarnings("unchecked")
+        Where(List args) throws BofhdException {
+            String cond = String.join(" ", args).trim();
+            int at = -1;
+            String found = null;
+            for (String o : OPS) {
+                int i = cond.indexOf(o);
+                if (i > 0 && (at == -1 || i < at ||
+                              (i == at && o.length() > found.length()))) {
+                    at = i;
+                    found = o;
+                }
+            }
+            if (found == null)
+                throw new BofhdException("Usage: where column op value, op "+
+                                         "is one of "+String.join(" ", OPS));
+            name = cond.substring(0, at).trim();
+            op = found;
+            literal = cond.substring(at + found.length()).trim();
+            Pattern p = null;
+            if (op.endsWith("~")) {
+                try {
+                    p = Pattern.compile(literal);
+                } catch (PatternSyntaxException e) {
+                    throw new BofhdException("Bad regular expression: "+
+                                             e.getDescription());
+                }
+            }
+            pattern = p;
+        }
+
+        boolean test(int c) {
+            switch (op) {
+                case "<":
+                    return c < 0;
+                case "<=":
+                    return c <= 0;
+                case ">":
+                    return c > 0;
+                case ">=":
+                    return c >= 0;
+                case "=":
+                    return c == 0;
+                default:
+                    return c != 0;
+            }
+        }
+
+        @Override
+        int[] apply(Run run, int[] rows) throws BofhdException {
+            ResultSet.Column c = run.column(name);
+            Object parsed = c == null ? null : c.parse(literal);
+            int n = 0;
+            for (int i = 0; i < rows.length; i++) {
+                int row = rows[i];
+                boolean keep;
+                if (c == null || ! c.present.get(row) ||
+                        (parsed != null && ! c.isTyped(row))) {
+                    // Missing, or a <not set> where a date was expected
+                    keep = op.startsWith("!");
+                } else if (pattern != null) {
+                    keep = pattern.matcher(run.show(name, c, row)).find() ==
+                        op.equals("~");
+                } else if (parsed != null && c.isTyped(row)) {
+                    keep = test(c.compareTo(row, parsed));
+                } else {
+                    keep = test(run.show(name, c, row).compareTo(literal));
+                }
+                if (keep) rows[n++] = row;
+            }
+            return Arrays.copyOf(rows, n);
+        }
+    }
+
+    static class Head extends Stage {
+        final int n;
+
+        Head(List args) throws BofhdException {
+            try {
+                n = Integer.parseInt(args.size() == 1 ?
+                                     (String) args.get(0) : "");
+            } catch (NumberFormatException e) {
+                throw new BofhdException("Usage: head n");
+            }
+            if (n < 0) throw new BofhdException("Usage: head n");
+        }
+
+        @Override
+        int[] apply(Run run, int[] rows) {
+            return rows.length <= n ? rows : Arrays.copyOf(rows, n);
+        }
+    }
+
+    static class Count extends Stage {
+        final String[] names;
+
+        @SuppressWarnings("unchecked")
+        Count(List args) {
+            names = (String[]) args.toArray(new String[args.size()]);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        int[] apply(Run run, int[] rows) throws BofhdException {
+            if (names.length == 0) {
+                run.output = String.valueOf(rows.length);
+                return rows;
+            }
+            ResultSet.Column[] keys = new ResultSet.Column[names.length];
+            for (int i = 0; i < keys.length; i++) keys[i] = run.column(names[i]);
+            HashMap counts = new HashMap();
+            final ArrayList groups = new ArrayList();
+            for (int i = 0; i < rows.length; i++) {
+                StringBuilder sb = new StringBuilder();
+                for (int k = 0; k < keys.length; k++) {
+                    if (k > 0) sb.append("  ");
+                    sb.append(run.show(names[k], keys[k], rows[i]));
+                }
+                String group = sb.toString();
+                int[] n = (int[]) counts.get(group);
+                if (n == null) {
+                    counts.put(group, n = new int[1]);
+                    groups.add(group);
+                }
+                n[0]++;
+            }
+            final HashMap tmp = counts;
+            Collections.sort(groups, (Object a, Object b) -> {
+                int c = ((int[]) tmp.get(b))[0] - ((int[]) tmp.get(a))[0];
+                return c != 0 ? c : ((String) a).compareTo((String) b);
+            });
+            StringBuilder out = new StringBuilder();
+            for (Iterator e = groups.iterator(); e.hasNext(); ) {
+                String group = (String) e.next();
+                out.append(String.format("%7d  %s", ((int[]) counts.get(group))[0],
+                                         group));
+                if (e.hasNext()) out.append('\n');
+            }
+            run.output = out.toString();
+            return rows;
+        }
+    }
+
+    /**
+     * @return the position of the first <code>|</code> in a split
+     * command line, or -1
+     */
+    static int indexOf(List args) {
+        for (int i = 0; i < args.size(); i++) {
+            if (args.get(i) == CommandLine.PIPE) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @param args the split command line after the first
+     * <code>|</code>
+     * @exception BofhdException if a stage is not understood
+     */
+    @SuppressWarnings("unchecked")
+    Pipeline(List args) throws BofhdException {
+        int start = 0;
+        while (start <= args.size()) {
+            int end = indexOf(args.subList(start, args.size()));
+            end = end == -1 ? args.size() : start + end;
+            List stage = args.subList(start, end);
+            for (Iterator e = stage.iterator(); e.hasNext(); ) {
+                if (! (e.next() instanceof String))
+                    throw new BofhdException("Parentheses are not allowed "+
+                                             "after |");
+            }
+            if (stage.isEmpty()) throw new BofhdException(USAGE);
+            List rest = stage.subList(1, stage.size());
+            if (! stages.isEmpty() &&
+                    stages.get(stages.size() - 1) instanceof Count)
+                throw new BofhdException("count must be the last stage");
+            switch ((String) stage.get(0)) {
+                case "sort":
+                    stages.add(new Sort(rest));
+                    break;
+                case "where":
+                    stages.add(new Where(rest));
+                    break;
+                case "head":
+                    stages.add(new Head(rest));
+                    break;
+                case "count":
+                    stages.add(new Count(rest));
+                    break;
+                default:
+                    throw new BofhdException("Unknown stage: "+stage.get(0)+
+                                             "\n"+USAGE);
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Run the stages.
+     *
+     * @param format the compiled format suggestion, or null
+     * @return the text to show, or the rows to show with the format
+     * suggestion
+     */
+    @SuppressWarnings("unchecked")
+    Object run(ResultSet rs, ResponseFormat format) throws BofhdException {
+        Run run = new Run(rs, format);
+        int[] rows = new int[rs.size];
+        for (int i = 0; i < rows.length; i++) rows[i] = i;
+        for (Iterator e = stages.iterator(); e.hasNext(); )
+            rows = ((Stage) e.next()).apply(run, rows);
+        if (run.output != null) return run.output;
+        ArrayList ret = new ArrayList(rows.length);
+        for (int i = 0; i < rows.length; i++) ret.add(rs.row(rows[i]));
+        return ret;
+    }
+
+    /**
+     * Collects the rows of a response, as it is read if it is
+     * streamed.
+     */
+    static class Collector implements StreamingTypeFactory.RowHandler {
+        final BofhdConnection bc;
+        final ResultSet rs;
+        boolean started = false, notRows = false;
+
+        Collector(BofhdConnection bc, ResultSet rs) {
+            this.bc = bc;
+            this.rs = rs;
+        }
+
+        @Override
+        public void start() {
+            started = true;
+        }
+
+        @Override
+        public void handleRow(Object row) {
+            add(bc.washResponse(row));
+        }
+
+        /**
+         * Add a struct, or a list of them, from a washed response.
+         */
+        void add(Object resp) {
+            if (resp instanceof Map) {
+                rs.add((Map) resp);
+            } else if (resp instanceof List) {
+                for (Iterator e = ((List) resp).iterator(); e.hasNext(); ) {
+                    Object row = e.next();
+                    if (row instanceof Map) {
+                        rs.add((Map) row);
+                    } else {
+                        notRows = true;
+                    }
+                }
+            } else {
+                notRows = true;
+            }
+        }
+    }
+
+    /**
+     * @return the period <code>literal</code> is the start of, as its
+     * first and last-plus-one millisecond, or null if it is not a date
+     */
+    static long[] parsePeriod(String literal) {
+        for (int i = 0; i < PERIODS.length; i++) {
+            SimpleDateFormat df = new SimpleDateFormat(PERIODS[i]);
+            df.setLenient(false);
+            ParsePosition pos = new ParsePosition(0);
+            Date d = df.parse(literal, pos);
+            if (d == null || pos.getIndex() != literal.length()) continue;
+            Calendar cal = Calendar.getInstance();
+            cal.setTime(d);
+            cal.add(PERIOD_FIELDS[i], 1);
+            return new long[] { d.getTime(), cal.getTimeInMillis() };
+        }
+        return null;
+    }
+
+    /**
+     * Stable merge sort of row numbers.
+     */
+    static void sort(int[] rows, RowComparator c) {
+        int n = rows.length;
+        int[] src = rows, dst = new int[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n; lo += 2 * width) {
+                int mid = Math.min(lo + width, n), hi = Math.min(lo + 2 * width, n);
+                int i = lo, j = mid, k = lo;
+                while (i < mid && j < hi)
+                    dst[k++] = c.compare(src[j], src[i]) < 0 ? src[j++] : src[i++];
+                while (i < mid) dst[k++] = src[i++];
+                while (j < hi) dst[k++] = src[j++];
+            }
+            int[] tmp = src;
+            src = dst;
+            dst = tmp;
+        }
+        if (src != rows) System.arraycopy(src, 0, rows, 0, n);
+    }
+}
+
+// arch-tag: 8d41c7e5-2b9f-4a36-9c07-5fa3e81b6d29
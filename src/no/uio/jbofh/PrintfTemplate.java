@@ -0,0 +1,365 @@
+/*
+ * Copyright 2026 University of Oslo, Norway
+ *
+ * This file is part of Cerebrum.
+ *
+ * Cerebrum is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerebrum is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerebrum; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package no.uio.jbofh;
+
+import java.util.ArrayList;
+import java.util.Date;
+
+import com.sun.java.text.PrintfFormat;
+
+/**
+ * A parsed printf format string that formats straight into a
+ * <code>StringBuilder</code>.  It gives the same output, and throws
+ * the same exceptions, as <code>com.sun.java.text.PrintfFormat</code>
+ * for the conversions bofhd format suggestions use: <code>%s</code>,
+ * <code>%d</code> and <code>%i</code> with the flags, field width,
+ * precision and h/l modifiers, plus <code>%%</code>.  Format strings
+ * with other conversions, <code>*</code> widths or <code>n$</code>
+ * positions are handed to <code>PrintfFormat</code> instead.
+ *
+ * Run <code>main</code> to compare the output with
+ * <code>PrintfFormat</code>.
+ */
+class PrintfTemplate {
+    /** Literals and <code>Spec</code>s, in order */
+    private final Object[] parts;
+    /** Set if the format string is handed to PrintfFormat */
+    private final PrintfFormat fallback;
+
+    /**
+     * One conversion specification.
+     */
+    static class Spec {
+        boolean leftJustify, leadingSign, leadingSpace, leadingZeros;
+        boolean fieldWidthSet, precisionSet;
+        int fieldWidth, precision;
+        boolean optionalh, optionall;
+        char conversion;
+    }
+
+    /**
+     * @param fmt the format string
+     * @exception IllegalArgumentException if the format string is
+     * malformed
+     */
+    PrintfTemplate(String fmt) throws IllegalArgumentException {
+        ArrayList tmp = parse(fmt);
+        if (tmp == null) {
+            parts = null;
+            fallback = new PrintfFormat(fmt);
+        } else {
+            parts = tmp.toArray();
+            fallback = null;
+        }
+    }
+
+    /**
+     * Split the format string the way <code>PrintfFormat</code> does.
+     *
+     * @return the parts, or null if the format string is not supported
+     */
+    @SuppressWarnings("unchecked")
+    private static ArrayList parse(String fmt) {
+        ArrayList ret = new ArrayList();
+        int cPos = fmt.indexOf('%');
+        if (cPos == -1) cPos = fmt.length();
+        if (cPos > 0) ret.add(fmt.substring(0, cPos));
+        while (cPos < fmt.length()) {
+            // The spec ends at the first conversion character
+            int ePos;
+            for (ePos = cPos+1; ePos < fmt.length(); ePos++) {
+                if ("idfgGoxXeEcs%".indexOf(fmt.charAt(ePos)) != -1) break;
+            }
+            ePos = Math.min(ePos+1, fmt.length());
+            Spec spec = parseSpec(fmt.substring(cPos, ePos));
+            if (spec == null) return null;
+            if (spec.conversion == '%') {
+                ret.add("%");
+            } else {
+                ret.add(spec);
+            }
+            cPos = fmt.indexOf('%', ePos);
+            if (cPos == -1) cPos = fmt.length();
+            if (cPos > ePos) ret.add(fmt.substring(ePos, cPos));
+        }
+        return ret;
+    }
+
+    private static Spec parseSpec(String s) {
+        Spec spec = new Spec();
+        int pos = 1;
+        // n$ positions
+        int xPos = pos;
+        while (xPos < s.length() && Character.isDigit(s.charAt(xPos))) xPos++;
+        if (xPos > pos && xPos < s.length() && s.charAt(xPos) == '$')
+            return null;
+        for ( ; pos < s.length(); pos++) {
+            char c = s.charAt(pos);
+            if (c == '\'' || c == '#') {
+                // No effect on s, d and i
+            } else if (c == '-') {
+                spec.leftJustify = true;
+                spec.leadingZeros = false;
+            } else if (c == '+') {
+                spec.leadingSign = true;
+                spec.leadingSpace = false;
+            } else if (c == ' ') {
+                if (! spec.leadingSign) spec.leadingSpace = true;
+            } else if (c == '0') {
+                if (! spec.leftJustify) spec.leadingZeros = true;
+            } else {
+                break;
+            }
+        }
+        if (pos < s.length() && s.charAt(pos) == '*') return null;
+        int first = pos;
+        while (pos < s.length() && Character.isDigit(s.charAt(pos))) pos++;
+        if (pos > first) {
+            try {
+                spec.fieldWidth = Integer.parseInt(s.substring(first, pos));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            spec.fieldWidthSet = true;
+        }
+        if (pos < s.length() && s.charAt(pos) == '.') {
+            pos++;
+            if (pos < s.length() && s.charAt(pos) == '*') return null;
+            first = pos;
+            while (pos < s.length() && Character.isDigit(s.charAt(pos))) pos++;
+            if (pos > first) {
+                try {
+                    spec.precision = Integer.parseInt(s.substring(first, pos));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                spec.precisionSet = true;
+            }
+        }
+        if (pos < s.length()) {
+            char c = s.charAt(pos);
+            if (c == 'h') { spec.optionalh = true; pos++; }
+            else if (c == 'l') { spec.optionall = true; pos++; }
+            else if (c == 'L') { pos++; }
+        }
+        if (pos != s.length() - 1) return null;  // malformed
+        spec.conversion = s.charAt(pos);
+        if ("sdi%".indexOf(spec.conversion) == -1) return null;
+        if (spec.leadingZeros && spec.leftJustify)
+            spec.leadingZeros = false;
+        if (spec.precisionSet && spec.leadingZeros && spec.conversion != 's')
+            spec.leadingZeros = false;
+        return spec;
+    }
+
+    /**
+     * Format <code>o</code> and return the result.
+     */
+    String sprintf(Object[] o) {
+        if (fallback != null) {
+            // PrintfFormat updates itself for '*' widths
+            synchronized (fallback) {
+                return fallback.sprintf(o);
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        format(sb, o);
+        return sb.toString();
+    }
+
+    /**
+     * Format <code>o</code> and append the result to
+     * <code>sb</code>.
+     *
+     * @exception IllegalArgumentException if an argument does not
+     * match its conversion
+     */
+    void format(StringBuilder sb, Object[] o) {
+        if (fallback != null) {
+            sb.append(sprintf(o));
+            return;
+        }
+        int i = 0;
+        for (Object part : parts) {
+            if (part instanceof String) {
+                sb.append((String) part);
+                continue;
+            }
+            Spec spec = (Spec) part;
+            Object arg = o[i++];
+            if (arg instanceof Byte || arg instanceof Short ||
+                    arg instanceof Integer) {
+                formatInteger(sb, spec, ((Number) arg).intValue(), "int");
+            } else if (arg instanceof Character) {
+                formatInteger(sb, spec, ((Character) arg).charValue(), "int");
+            } else if (arg instanceof Long) {
+                long l = ((Long) arg).longValue();
+                if (! spec.optionall && ! spec.optionalh) l = (int) l;
+                formatInteger(sb, spec, l, "long");
+            } else if (arg instanceof Float || arg instanceof Double) {
+                throw cannotFormat("double", spec);
+            } else if (spec.conversion != 's') {
+                throw cannotFormat("String", spec);
+            } else {
+                // PrintfFormat throws NullPointerException for null
+                formatString(sb, spec, arg.toString());
+            }
+        }
+    }
+
+    private static IllegalArgumentException cannotFormat(String type,
+                                                         Spec spec) {
+        return new IllegalArgumentException("Cannot format a "+type+
+            " with a format using a "+spec.conversion+
+            " conversion character.");
+    }
+
+    private static void pad(StringBuilder sb, char c, int n) {
+        for (int i = 0; i < n; i++) sb.append(c);
+    }
+
+    private static void formatString(StringBuilder sb, Spec spec, String x) {
+        int nPrint = x.length();
+        if (spec.precisionSet && nPrint > spec.precision)
+            nPrint = spec.precision;
+        int width = spec.fieldWidthSet ? spec.fieldWidth : nPrint;
+        if (! spec.leftJustify) pad(sb, ' ', width - nPrint);
+        sb.append(x, 0, nPrint);
+        if (spec.leftJustify) pad(sb, ' ', width - nPrint);
+    }
+
+    private static void formatInteger(StringBuilder sb, Spec spec, long x,
+                                      String type) {
+        if (spec.conversion == 's') throw cannotFormat(type, spec);
+        if (spec.optionalh) {
+            x = (short) x;
+        } else if (! spec.optionall && type.equals("int")) {
+            x = (int) x;
+        }
+        boolean neg = x < 0;
+        // Length of Long.toString(x), sign included
+        int len = neg ? 2 : 1;
+        for (long t = x / 10; t != 0; t /= 10) len++;
+        if (x == 0 && spec.precisionSet && spec.precision == 0) len = 0;
+        int nLeadingZeros = 0;
+        if (spec.precisionSet) {
+            nLeadingZeros = spec.precision - (neg ? len - 1 : len);
+            if (nLeadingZeros < 0) nLeadingZeros = 0;
+        }
+        int nBlanks = 0;
+        if (spec.fieldWidthSet) {
+            nBlanks = spec.fieldWidth - nLeadingZeros - len;
+            if (! neg && (spec.leadingSign || spec.leadingSpace)) nBlanks--;
+            if (nBlanks < 0) nBlanks = 0;
+        }
+        char sign = neg ? '-' : spec.leadingSign ? '+' :
+            spec.leadingSpace ? ' ' : 0;
+        if (! spec.leftJustify && ! spec.leadingZeros) pad(sb, ' ', nBlanks);
+        if (sign != 0) sb.append(sign);
+        if (! spec.leftJustify && spec.leadingZeros) pad(sb, '0', nBlanks);
+        pad(sb, '0', nLeadingZeros);
+        if (len > 0) {
+            if (x == Long.MIN_VALUE) {
+                sb.append("9223372036854775808");
+            } else {
+                sb.append(neg ? -x : x);
+            }
+        }
+        if (spec.leftJustify) pad(sb, ' ', nBlanks);
+        // PrintfFormat leaves an unused NUL at the end of its buffer
+        // when a negative number also has a sign flag
+        if (neg && (spec.leadingSign || spec.leadingSpace)) sb.append('\0');
+    }
+
+    private static String describe(Object o) {
+        if (o instanceof Throwable) {
+            Throwable t = (Throwable) o;
+            // The detail of helpful NullPointerExceptions names variables
+            if (t instanceof NullPointerException)
+                return t.getClass().getName();
+            return t.getClass().getName()+": "+t.getMessage();
+        }
+        return "'"+String.valueOf(o).replace("\0", "\\0")+"'";
+    }
+
+    /**
+     * Compare the output with <code>PrintfFormat</code> for a range of
+     * format strings and arguments.
+     *
+     * @param args
+     */
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args) {
+        String flags[] = { "", "-", "0", "-0", "+", " ", "+ ", "#", "'" };
+        String widths[] = { "", "1", "3", "8" };
+        String precisions[] = { "", ".", ".0", ".2", ".6" };
+        String mods[] = { "", "h", "l", "L" };
+        String convs[] = { "s", "d", "i", "%" };
+        Object values[] = { "", "abc", "a longer string", ":x",
+            0, 7, -7, 123456, -123456, Integer.MAX_VALUE, Integer.MIN_VALUE,
+            70000, 5L, -5L, 1L << 40, Long.MIN_VALUE, (short) -3, (byte) 4,
+            'c', 1.5, 2.5f, Boolean.TRUE, new Date(0), null,
+            new ArrayList() };
+        ArrayList formats = new ArrayList();
+        for (String f : flags)
+            for (String w : widths)
+                for (String p : precisions)
+                    for (String m : mods)
+                        for (String c : convs)
+                            formats.add("%"+f+w+p+m+c);
+        String extra[] = { "plain text", "", "%%", "100%% %s", "%s %s",
+            "%-9s %-10s %s", "Username:      %s\\nOwner: %s", "%q %s",
+            "%", "a%", "%5", "%-", "%1$s", "%*d", "%.*s", "%f", "%x",
+            "%-8s|%8s|%d", "%s%%%d" };
+        for (String e : extra) formats.add(e);
+
+        int checked = 0, failed = 0;
+        for (Object f : formats) {
+            String fmt = (String) f;
+            for (Object v : values) {
+                Object[] a = new Object[] { v, v, v };
+                if (fmt.contains("*")) a[0] = 12;  // a field width
+                Object expected, got;
+                try {
+                    expected = new PrintfFormat(fmt).sprintf(a);
+                } catch (RuntimeException ex) {
+                    expected = ex;
+                }
+                try {
+                    got = new PrintfTemplate(fmt).sprintf(a);
+                } catch (RuntimeException ex) {
+                    got = ex;
+                }
+                checked++;
+                if (! describe(expected).equals(describe(got))) {
+                    failed++;
+                    System.out.println("MISMATCH "+fmt+" with "+describe(v)+
+                                       ": expected "+describe(expected)+
+                                       ", got "+describe(got));
+                }
+            }
+        }
+        System.out.println(checked+" checked, "+failed+" mismatches");
+        if (failed > 0) System.exit(1);
+    }
+}
+
+// arch-tag: 4f9a2c6e-1d7b-4e83-b5c0-7e3d9a1f8b26
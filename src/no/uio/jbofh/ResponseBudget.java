@@ -0,0 +1,164 @@
+/*
+ * Copyright 2026 University of Oslo, Norway
+ *
+ * This file is part of Cerebrum.
+ *
+ * Cerebrum is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerebrum is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerebrum; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package no.uio.jbofh;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.util.LimitedInputStream;
+
+/**
+ * Limits on the size of responses, counted in bytes of XML after
+ * gunzipping.  A response larger than <code>warnSize</code> gets a
+ * warning while it is being read, and one larger than
+ * <code>maxSize</code> is cut off with a
+ * <code>LimitedInputStream</code> and fails.  List responses that are
+ * neither streamed to the screen nor piped are kept in memory until
+ * they pass <code>spillSize</code>, after which the rows go to a
+ * <code>ResponseSpool</code> file.
+ *
+ * A size of 0 turns that limit off.
+ */
+class ResponseBudget {
+    long warnSize, spillSize;
+    /** At most <code>Integer.MAX_VALUE - 1</code>, as for the stream */
+    int maxSize;
+    /** Where spool files are made, or null for java.io.tmpdir */
+    File spillDir;
+    private final ThreadLocal meter = new ThreadLocal();
+    private final ThreadLocal lastSize = new ThreadLocal();
+
+    /**
+     * Counts the bytes of one response.
+     */
+    class Meter extends FilterInputStream {
+        long count = 0;
+        private final JBofh jbofh;
+        private boolean warned = false;
+
+        Meter(InputStream in, JBofh jbofh) {
+            super(in);
+            this.jbofh = jbofh;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) counted(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) counted(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            counted(skipped);
+            return skipped;
+        }
+
+        private void counted(long n) {
+            count += n;
+            if (! warned && warnSize > 0 && count > warnSize) {
+                warned = true;
+                if (jbofh != null)
+                    jbofh.showMessage("Warning: the response is larger than "+
+                                      formatSize(warnSize)+", still reading", true);
+            }
+        }
+    }
+
+    /**
+     * @param warnSize bytes, or 0
+     * @param maxSize bytes, or 0
+     * @param spillSize bytes, or 0
+     * @param spillDir may be null
+     */
+    ResponseBudget(long warnSize, long maxSize, long spillSize, File spillDir) {
+        if (maxSize >= Integer.MAX_VALUE)
+            throw new IllegalArgumentException("maxSize must be below 2 GB");
+        this.warnSize = warnSize;
+        this.maxSize = (int) maxSize;
+        this.spillSize = spillSize;
+        this.spillDir = spillDir;
+    }
+
+    static String formatSize(long bytes) {
+        return bytes < (1 << 20) ? bytes+" bytes" : (bytes >> 20)+" MB";
+    }
+
+    /**
+     * Start counting a response on this thread.
+     *
+     * @return <code>in</code> wrapped so that it is counted, and stops
+     * one byte after <code>maxSize</code>
+     */
+    @SuppressWarnings("unchecked")
+    InputStream meter(InputStream in, JBofh jbofh) {
+        Meter m = new Meter(in, jbofh);
+        meter.set(m);
+        return maxSize > 0 ? new LimitedInputStream(m, maxSize + 1) : m;
+    }
+
+    /**
+     * @return the bytes read of the response this thread is reading
+     */
+    long bytesRead() {
+        Meter m = (Meter) meter.get();
+        return m == null ? 0 : m.count;
+    }
+
+    /**
+     * @return the size of the last response this thread read, or 0
+     */
+    long lastSize() {
+        Long n = (Long) lastSize.get();
+        return n == null ? 0 : n.longValue();
+    }
+
+    /**
+     * Called when this thread is done with a response.
+     *
+     * @param e the exception reading it failed with, or null
+     * @return the exception to throw instead, if the response was cut
+     * off, or <code>e</code>
+     */
+    @SuppressWarnings("unchecked")
+    XmlRpcException finish(XmlRpcException e) {
+        Meter m = (Meter) meter.get();
+        meter.remove();
+        if (m != null) lastSize.set(m.count);
+        if (e == null || m == null || maxSize == 0 || m.count <= maxSize)
+            return e;
+        return new XmlRpcException("The response is larger than "+
+            formatSize(maxSize)+" (transport.response.maxSize)");
+    }
+}
+
+// arch-tag: 8b1f4c62-3d7e-4a90-a5c8-2e6f9d04b7a3
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2026 University of Oslo, Norway
+ *
+ * This file is part of Cerebrum.
+ *
+ * Cerebrum is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerebrum is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerebrum; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package no.uio.jbofh;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+import com.sun.java.text.PrintfFormat;
+
+/**
+ * A format suggestion from bofhd, compiled so that it can be applied
+ * to many rows without parsing it again.  The format strings are
+ * parsed once, the <code>name:type:formatinfo</code> column specs are
+ * split once, and each date column keeps a
+ * <code>SimpleDateFormat</code> per thread.
+ *
+ * Errors in the format suggestion are kept, and are thrown when a row
+ * is formatted, so that they are reported for the same rows as
+ * before.
+ *
+ * <code>main</code> times formatting a listing with a compiled format
+ * against parsing the format suggestion for every row.
+ */
+class ResponseFormat {
+    /** The format suggestion this was compiled from */
+    final HashMap source;
+    final String hdr;
+    final Entry[] entries;
+
+    /**
+     * One value in the argument list of a format string.
+     */
+    static class Column {
+        final String name;
+        final ThreadLocal dateFormat;
+        final RuntimeException error;
+
+        Column(String spec) {
+            String tmp = spec;
+            ThreadLocal df = null;
+            RuntimeException err = null;
+            if(spec.contains(":")) {
+                try {
+                    StringTokenizer st = new StringTokenizer(spec, ":");
+                    tmp = st.nextToken();
+                    String type = st.nextToken();
+                    String formatinfo = "";
+                    while (st.hasMoreTokens()) {
+                        if(formatinfo.length() > 0)
+                            formatinfo += ":";
+                        formatinfo += st.nextToken();
+                    }
+                    if(type.equals("date")) {
+                        final String pattern = formatinfo;
+                        df = ThreadLocal.withInitial(
+                            () -> new SimpleDateFormat(pattern));
+                    }
+                } catch (RuntimeException ex) {
+                    err = ex;
+                }
+            }
+            name = tmp;
+            dateFormat = df;
+            error = err;
+        }
+
+        Object get(Map row) {
+            if (error != null) throw error;
+            return formatValue(row.get(name));
+        }
+
+        /**
+         * @return <code>o</code> formatted if this is a date column
+         */
+        Object formatValue(Object o) {
+            if (dateFormat != null && (! "<not set>".equals(o))) {
+                o = ((SimpleDateFormat) dateFormat.get()).format(o);
+            }
+            return o;
+        }
+    }
+
+    /**
+     * One entry in the <code>str_vars</code> list: a format string,
+     * its columns and an optional sub-header.
+     */
+    static class Entry {
+        final String key;
+        final Column[] columns;
+        final String subHdr;
+        private final PrintfTemplate pf, subPf;
+        private final IllegalArgumentException pfError, subPfError;
+
+        Entry(ArrayList format_info) {
+            ArrayList order = (ArrayList) format_info.get(1);
+            key = (String) order.get(0);
+            columns = new Column[order.size()];
+            for (int i = 0; i < columns.length; i++)
+                columns[i] = new Column((String) order.get(i));
+            PrintfTemplate tmp = null;
+            IllegalArgumentException err = null;
+            try {
+                tmp = new PrintfTemplate((String) format_info.get(0));
+            } catch (IllegalArgumentException ex) {
+                err = ex;
+            }
+            pf = tmp;
+            pfError = err;
+            subHdr = format_info.size() == 3 ?
+                (String) format_info.get(2) : null;
+            tmp = null;
+            err = null;
+            if (subHdr != null && hasSubHdrFormat()) {
+                try {
+                    tmp = new PrintfTemplate(subHdr);
+                } catch (IllegalArgumentException ex) {
+                    err = ex;
+                }
+            }
+            subPf = tmp;
+            subPfError = err;
+        }
+
+        /**
+         * @return true if the sub-header is a format string to use for
+         * the first row instead of being shown by itself
+         */
+        boolean hasSubHdrFormat() {
+            return subHdr.contains("%");
+        }
+
+        PrintfTemplate getFormat() {
+            if (pfError != null) throw pfError;
+            return pf;
+        }
+
+        PrintfTemplate getSubHdrFormat() {
+            if (subPfError != null) throw subPfError;
+            return subPf;
+        }
+
+        /**
+         * Format <code>row</code> with <code>pf</code>, which is either
+         * <code>getFormat()</code> or <code>getSubHdrFormat()</code>,
+         * and append it to <code>sb</code>.
+         *
+         * @param args scratch array with one slot per column, so that
+         * callers formatting many rows can reuse it
+         */
+        void format(PrintfTemplate pf, Map row, Object[] args,
+                    StringBuilder sb) {
+            for (int i = 0; i < columns.length; i++)
+                args[i] = columns[i].get(row);
+            pf.format(sb, args);
+        }
+    }
+
+    /**
+     * @return the names of the columns of all entries, in order
+     */
+    @SuppressWarnings("unchecked")
+    ArrayList getColumnNames() {
+        ArrayList ret = new ArrayList();
+        for (Entry entry : entries) {
+            for (Column c : entry.columns) {
+                if (! ret.contains(c.name)) ret.add(c.name);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the first column <code>name</code> with a date format,
+     * or null
+     */
+    Column getDateColumn(String name) {
+        for (Entry entry : entries) {
+            for (Column c : entry.columns) {
+                if (c.name.equals(name) && c.dateFormat != null &&
+                        c.error == null)
+                    return c;
+            }
+        }
+        return null;
+    }
+
+    ResponseFormat(HashMap format) {
+        source = format;
+        hdr = (String) format.get("hdr");
+        ArrayList str_vars = (ArrayList) format.get("str_vars");
+        entries = new Entry[str_vars.size()];
+        for (int i = 0; i < entries.length; i++)
+            entries[i] = new Entry((ArrayList) str_vars.get(i));
+    }
+
+    /**
+     * Format <code>row</code> with <code>format_info</code>, parsing it
+     * again, as <code>showResponse</code> did before formats were
+     * compiled.  Only used by <code>main</code>.
+     */
+    private static String formatUncompiled(ArrayList format_info, Map row) {
+        PrintfFormat pf = new PrintfFormat((String) format_info.get(0));
+        ArrayList order = (ArrayList) format_info.get(1);
+        Object a[] = new Object[order.size()];
+        for(int i = 0; i < order.size(); i++) {
+            String tmp = (String) order.get(i);
+            if(tmp.contains(":")) {
+                StringTokenizer st = new StringTokenizer(tmp, ":");
+                tmp = st.nextToken();
+                String type = st.nextToken();
+                String formatinfo = "";
+                while (st.hasMoreTokens()) {
+                    if(formatinfo.length() > 0)
+                        formatinfo += ":";
+                    formatinfo += st.nextToken();
+                }
+                a[i] = row.get(tmp);
+                if (type.equals("date") && (! "<not set>".equals(a[i]))) {
+                    SimpleDateFormat sdf = new SimpleDateFormat(formatinfo);
+                    a[i] = sdf.format(a[i]);
+                }
+            } else {
+                a[i] = row.get(tmp);
+            }
+        }
+        return pf.sprintf(a);
+    }
+
+    /**
+     * Times formatting a listing in the <code>group list</code> format
+     * by parsing the format suggestion for every row, with a compiled
+     * format and <code>PrintfFormat</code>, and with a compiled format
+     * and <code>PrintfTemplate</code>, as <code>showResponse</code>
+     * does now.  Checks that the output is the same.
+     *
+     * Usage: ResponseFormat [rows [iterations]]
+     */
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        HashMap format = new HashMap();
+        format.put("hdr", "Type      Name       Expire");
+        ArrayList format_info = new ArrayList(Arrays.asList(
+            "%-9s %-10s %s", new ArrayList(Arrays.asList(
+                "type", "name", "expire:date:yyyy-MM-dd"))));
+        format.put("str_vars", new ArrayList(Arrays.asList(format_info)));
+        ArrayList listing = new ArrayList(rows);
+        for (int i = 0; i < rows; i++) {
+            HashMap row = new HashMap();
+            row.put("type", i % 3 == 0 ? "group" : "account");
+            row.put("name", "name"+i);
+            row.put("expire", i % 10 == 0 ? "<not set>" :
+                    new Date(1800000000000L + i * 86400000L));
+            listing.add(row);
+        }
+        ResponseFormat compiled = new ResponseFormat(format);
+        Entry entry = compiled.entries[0];
+        PrintfFormat printf = new PrintfFormat((String) format_info.get(0));
+        Object[] a = new Object[entry.columns.length];
+        StringBuilder sb = new StringBuilder();
+
+        int differ = 0;
+        for (Object o : listing) {
+            Map row = (Map) o;
+            String expected = formatUncompiled(format_info, row);
+            sb.setLength(0);
+            entry.format(entry.getFormat(), row, a, sb);
+            if (! expected.equals(sb.toString())) differ++;
+        }
+        System.out.println(differ == 0 ? "Output is the same" :
+                           differ+" rows differ");
+        System.out.println("Formatting "+rows+" rows, "+iterations+
+                           " iterations after warmup");
+        String[] names = { "parsed per row", "PrintfFormat",
+                           "PrintfTemplate" };
+        for (int round = 0; round < 2; round++) {
+            for (int m = 0; m < names.length; m++) {
+                long best = Long.MAX_VALUE;
+                int length = 0;
+                for (int i = 0; i < iterations; i++) {
+                    length = 0;
+                    long t0 = System.nanoTime();
+                    for (Object o : listing) {
+                        Map row = (Map) o;
+                        if (m == 0) {
+                            length += formatUncompiled(format_info, row)
+                                .length();
+                        } else if (m == 1) {
+                            for (int j = 0; j < a.length; j++)
+                                a[j] = entry.columns[j].get(row);
+                            length += printf.sprintf(a).length();
+                        } else {
+                            sb.setLength(0);
+                            entry.format(entry.getFormat(), row, a, sb);
+                            length += sb.length();
+                        }
+                    }
+                    best = Math.min(best, System.nanoTime() - t0);
+                }
+                if (round == 0) continue;
+                System.out.println(String.format("%-14s best %7.2f ms (%d)",
+                    names[m], best / 1e6, length));
+            }
+        }
+    }
+}
+
+// arch-tag: 8c2e5f71-4a9d-4b36-9e0f-d7a1b3c6e852
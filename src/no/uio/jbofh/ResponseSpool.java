@@ -0,0 +1,339 @@
+/*
+ * Copyright 2026 University of Oslo, Norway
+ *
+ * This file is part of Cerebrum.
+ *
+ * Cerebrum is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerebrum is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerebrum; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package no.uio.jbofh;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the rows of a list response that can not be shown while it
+ * is read.  The rows are kept in memory until the response passes
+ * <code>ResponseBudget.spillSize</code> bytes.  From then on they are
+ * written to a temporary file, and <code>getRows</code> returns a list
+ * that reads them back through a memory-mapped window of the file, so
+ * only the row being shown is on the heap.
+ *
+ * Each row in the file is its length followed by its value, written
+ * with a one-byte tag for the type.  Structs are read back as
+ * <code>HashMap</code>s.
+ */
+class ResponseSpool implements StreamingTypeFactory.RestartableRowHandler {
+    /** Bytes of the file mapped at a time */
+    static final int WINDOW = 16 << 20;
+    static final byte NULL = 'n', STRING = 's', INT = 'i', LONG = 'j',
+        DOUBLE = 'd', BOOLEAN = 'b', DATE = 't', BYTES = 'x', STRUCT = 'm',
+        ARRAY = 'l';
+    private final BofhdConnection bc;
+    private final ResponseBudget budget;
+    boolean started = false;
+    private ArrayList rows = new ArrayList();
+    private File file;
+    private DataOutputStream out;
+    private final ByteArrayOutputStream rowBytes = new ByteArrayOutputStream();
+    private final DataOutputStream rowOut = new DataOutputStream(rowBytes);
+    private int spilled = 0;
+    private IOException failure;
+    private FileChannel channel;
+
+    /**
+     * The spilled rows, read back in order.  Reading a row before the
+     * last one read starts over from the top of the file, which is
+     * what showing the rows once per format entry does.
+     */
+    class Rows extends AbstractList {
+        final long length;
+        private ByteBuffer window;
+        private long windowStart;
+        /** Where the next row starts, and its index */
+        private long pos = 0;
+        private int next = 0;
+        private byte[] scratch = new byte[256];
+
+        Rows(long length) {
+            this.length = length;
+        }
+
+        @Override
+        public int size() {
+            return spilled;
+        }
+
+        /**
+         * Not the rows, which may not fit in memory.
+         */
+        @Override
+        public String toString() {
+            return "["+spilled+" rows in "+file+"]";
+        }
+
+        @Override
+        public Object get(int i) {
+            if (i < 0 || i >= spilled)
+                throw new IndexOutOfBoundsException("Row "+i+" of "+spilled);
+            try {
+                if (i < next) {
+                    pos = 0;
+                    next = 0;
+                }
+                while (next < i) {
+                    pos += 4 + map(pos, 4).getInt();
+                    next++;
+                }
+                int len = map(pos, 4).getInt();
+                ByteBuffer b = map(pos + 4, len);
+                pos += 4 + len;
+                next++;
+                return decode(b);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Reading "+file+" failed", e);
+            }
+        }
+
+        /**
+         * @return the window, positioned at <code>at</code> with at
+         * least <code>need</code> bytes left
+         */
+        private ByteBuffer map(long at, int need) throws IOException {
+            if (window == null || at < windowStart ||
+                    at + need > windowStart + window.limit()) {
+                windowStart = at;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, at,
+                    Math.min(Math.max(WINDOW, need), length - at));
+            }
+            window.position((int) (at - windowStart));
+            return window;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Object decode(ByteBuffer b) {
+            byte tag = b.get();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case STRING:
+                    return decodeString(b);
+                case INT:
+                    return b.getInt();
+                case LONG:
+                    return b.getLong();
+                case DOUBLE:
+                    return b.getDouble();
+                case BOOLEAN:
+                    return b.get() != 0;
+                case DATE:
+                    return new Date(b.getLong());
+                case BYTES: {
+                    byte[] v = new byte[b.getInt()];
+                    b.get(v);
+                    return v;
+                }
+                case STRUCT: {
+                    int n = b.getInt();
+                    HashMap m = new HashMap(n * 2);
+                    for (int j = 0; j < n; j++) {
+                        String key = decodeString(b);
+                        m.put(key, decode(b));
+                    }
+                    return m;
+                }
+                case ARRAY: {
+                    int n = b.getInt();
+                    ArrayList l = new ArrayList(n);
+                    for (int j = 0; j < n; j++) l.add(decode(b));
+                    return l;
+                }
+                default:
+                    throw new IllegalStateException("Bad tag "+tag+" in "+file);
+            }
+        }
+
+        private String decodeString(ByteBuffer b) {
+            int n = b.getInt();
+            if (n > scratch.length) scratch = new byte[Math.max(n, scratch.length * 2)];
+            b.get(scratch, 0, n);
+            return new String(scratch, 0, n, StandardCharsets.UTF_8);
+        }
+    }
+
+    ResponseSpool(BofhdConnection bc, ResponseBudget budget) {
+        this.bc = bc;
+        this.budget = budget;
+    }
+
+    @Override
+    public void start() {
+        if (started) {
+            // The request is being sent again
+            bc.logger.debug("discarding "+(rows == null ? spilled : rows.size())+
+                            " rows of a failed response");
+            close();
+            rows = new ArrayList();
+            spilled = 0;
+            failure = null;
+        }
+        started = true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void handleRow(Object row) {
+        if (failure != null) return;
+        row = bc.washResponse(row);
+        try {
+            if (out != null) {
+                write(row);
+            } else {
+                rows.add(row);
+                if (budget.spillSize > 0 && budget.bytesRead() > budget.spillSize)
+                    spill();
+            }
+        } catch (IOException e) {
+            bc.logger.warn("Could not spool the response to "+file, e);
+            failure = e;
+            rows = null;
+        }
+    }
+
+    private void spill() throws IOException {
+        file = File.createTempFile("jbofh", ".spool", budget.spillDir);
+        file.deleteOnExit();
+        bc.logger.debug("spooling the response to "+file+" after "+
+                        rows.size()+" rows");
+        out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(file), 65536));
+        for (Iterator e = rows.iterator(); e.hasNext(); ) write(e.next());
+        rows = null;
+    }
+
+    private void write(Object row) throws IOException {
+        rowBytes.reset();
+        encode(row);
+        out.writeInt(rowBytes.size());
+        rowBytes.writeTo(out);
+        spilled++;
+    }
+
+    private void encode(Object o) throws IOException {
+        if (o == null) {
+            rowOut.writeByte(NULL);
+        } else if (o instanceof String) {
+            rowOut.writeByte(STRING);
+            encodeString((String) o);
+        } else if (o instanceof Integer) {
+            rowOut.writeByte(INT);
+            rowOut.writeInt((Integer) o);
+        } else if (o instanceof Long) {
+            rowOut.writeByte(LONG);
+            rowOut.writeLong((Long) o);
+        } else if (o instanceof Double) {
+            rowOut.writeByte(DOUBLE);
+            rowOut.writeDouble((Double) o);
+        } else if (o instanceof Boolean) {
+            rowOut.writeByte(BOOLEAN);
+            rowOut.writeByte((Boolean) o ? 1 : 0);
+        } else if (o instanceof Date) {
+            rowOut.writeByte(DATE);
+            rowOut.writeLong(((Date) o).getTime());
+        } else if (o instanceof byte[]) {
+            rowOut.writeByte(BYTES);
+            rowOut.writeInt(((byte[]) o).length);
+            rowOut.write((byte[]) o);
+        } else if (o instanceof Map) {
+            rowOut.writeByte(STRUCT);
+            rowOut.writeInt(((Map) o).size());
+            for (Iterator e = ((Map) o).entrySet().iterator(); e.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) e.next();
+                encodeString(String.valueOf(entry.getKey()));
+                encode(entry.getValue());
+            }
+        } else if (o instanceof Collection) {
+            rowOut.writeByte(ARRAY);
+            rowOut.writeInt(((Collection) o).size());
+            for (Iterator e = ((Collection) o).iterator(); e.hasNext(); )
+                encode(e.next());
+        } else {
+            rowOut.writeByte(STRING);
+            encodeString(o.toString());
+        }
+    }
+
+    private void encodeString(String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        rowOut.writeInt(b.length);
+        rowOut.write(b);
+    }
+
+    /**
+     * @return the rows, from memory or from the file
+     * @exception BofhdException if the file could not be written
+     */
+    List getRows() throws BofhdException {
+        if (failure != null)
+            throw new BofhdException("Could not spool the response to "+
+                                     file+": "+failure.getMessage());
+        if (out == null) return rows;
+        try {
+            out.close();
+            out = null;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            bc.logger.debug("spooled "+spilled+" rows, "+channel.size()+
+                            " bytes, to "+file);
+            return new Rows(channel.size());
+        } catch (IOException e) {
+            throw new BofhdException("Could not spool the response to "+
+                                     file+": "+e.getMessage());
+        }
+    }
+
+    /**
+     * Remove the file, if there is one.
+     */
+    void close() {
+        try {
+            if (out != null) out.close();
+            if (channel != null) channel.close();
+        } catch (IOException e) { }  // Ignore
+        out = null;
+        channel = null;
+        if (file != null && ! file.delete())
+            bc.logger.debug("could not delete "+file+" before exit");
+        file = null;
+    }
+}
+
+// arch-tag: 4d2a7e19-b6c3-4f85-9e0d-71a3c8f5b2e6
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2026 University of Oslo, Norway
+ *
+ * This file is part of Cerebrum.
+ *
+ * Cerebrum is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerebrum is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerebrum; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package no.uio.jbofh;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Responses to read-only bofhd commands, kept for <code>ttl</code>
+ * milliseconds so that running the same command again does not need a
+ * round trip.  The cache holds at most <code>maxEntries</code>
+ * responses, and drops the least recently used one to make room.
+ *
+ * bofhd does not tell which entities a command changes, so the
+ * arguments are used instead: any other command drops the cached
+ * responses of the commands that had one of its arguments, compared
+ * without case.  <code>group add_member alice staff</code> thus drops
+ * <code>user info alice</code> and <code>group info staff</code>.
+ * Changes made in other ways are only seen when the TTL runs out.
+ *
+ * A read that was sent before such a command finished may have been
+ * answered with the old data, so <code>put</code> refuses a response
+ * if anything was dropped since <code>generation()</code> was taken
+ * for it.
+ *
+ * Responses are shared between the commands that get them, and must
+ * not be changed.
+ */
+class ResultCache {
+    final long ttl;
+    final int maxEntries;
+    /** The commands that only read */
+    final Pattern readOnly;
+    private final LinkedHashMap entries;
+    /** The keys of the cached responses, by argument */
+    private final HashMap byArg = new HashMap();
+    private long hits = 0, misses = 0, expired = 0, evicted = 0,
+        invalidated = 0, stale = 0;
+    /** Counts the calls to invalidate and clear */
+    private long generation = 0;
+
+    /**
+     * A cached response.
+     */
+    static class Entry {
+        final Object value;
+        final long expires;
+        final String[] args;
+
+        Entry(Object value, long expires, String[] args) {
+            this.value = value;
+            this.expires = expires;
+            this.args = args;
+        }
+    }
+
+    /**
+     * @param ttl milliseconds
+     * @param maxEntries
+     * @param readOnly matches the names of the commands to cache
+     */
+    ResultCache(long ttl, int maxEntries, Pattern readOnly) {
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+        this.readOnly = readOnly;
+        entries = new LinkedHashMap(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                if (size() <= ResultCache.this.maxEntries) return false;
+                evicted++;
+                unindex((String) eldest.getKey(), (Entry) eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @return the arguments of a command, in lower case, or null if it
+     * runs several commands
+     */
+    private static String[] args(List args) {
+        String[] ret = new String[args.size()];
+        for (int i = 0; i < ret.length; i++) {
+            Object a = args.get(i);
+            if (! (a instanceof String)) return null;
+            ret[i] = ((String) a).toLowerCase(Locale.ROOT);
+        }
+        return ret;
+    }
+
+    private static String key(String cmd, List args) {
+        StringBuilder sb = new StringBuilder(cmd);
+        for (Iterator e = args.iterator(); e.hasNext(); )
+            sb.append('\0').append(e.next());
+        return sb.toString();
+    }
+
+    /**
+     * @return true if the response to <code>cmd</code> may be cached
+     */
+    boolean isCacheable(String cmd, List args) {
+        return readOnly.matcher(cmd).matches() && args(args) != null;
+    }
+
+    /**
+     * @return the cached response, or null
+     */
+    synchronized Object get(String cmd, List args) {
+        String key = key(cmd, args);
+        Entry e = (Entry) entries.get(key);
+        if (e != null && e.expires <= System.currentTimeMillis()) {
+            entries.remove(key);
+            unindex(key, e);
+            expired++;
+            e = null;
+        }
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.value;
+    }
+
+    /**
+     * @return the value to give <code>put</code> for a command about
+     * to be sent
+     */
+    synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Keep a response, unless something was invalidated after the
+     * command was sent.
+     *
+     * @param since <code>generation()</code> from before the command
+     * was sent
+     */
+    @SuppressWarnings("unchecked")
+    synchronized void put(String cmd, List args, Object value, long since) {
+        String[] a = args(args);
+        if (a == null || value == null) return;
+        if (since != generation) {
+            stale++;
+            return;
+        }
+        String key = key(cmd, args);
+        Entry old = (Entry) entries.remove(key);
+        if (old != null) unindex(key, old);
+        Entry e = new Entry(value, System.currentTimeMillis() + ttl, a);
+        for (String arg : a) {
+            HashSet keys = (HashSet) byArg.get(arg);
+            if (keys == null) byArg.put(arg, keys = new HashSet());
+            keys.add(key);
+        }
+        entries.put(key, e);
+    }
+
+    private void unindex(String key, Entry e) {
+        for (String arg : e.args) {
+            HashSet keys = (HashSet) byArg.get(arg);
+            if (keys == null) continue;
+            keys.remove(key);
+            if (keys.isEmpty()) byArg.remove(arg);
+        }
+    }
+
+    /**
+     * Drop the responses that may be changed by <code>cmd</code>,
+     * which is not read-only.
+     *
+     * @param args the arguments, where an argument that is a list of
+     * values (one command run for each) counts as all of them
+     */
+    synchronized void invalidate(String cmd, List args) {
+        generation++;
+        ArrayList flat = new ArrayList();
+        flatten(args, flat);
+        for (Iterator e = flat.iterator(); e.hasNext(); ) {
+            HashSet keys = (HashSet) byArg.remove(e.next());
+            if (keys == null) continue;
+            for (Iterator k = keys.iterator(); k.hasNext(); ) {
+                String key = (String) k.next();
+                Entry entry = (Entry) entries.remove(key);
+                if (entry == null) continue;
+                unindex(key, entry);
+                invalidated++;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void flatten(List args, ArrayList flat) {
+        for (Iterator e = args.iterator(); e.hasNext(); ) {
+            Object a = e.next();
+            if (a instanceof List) {
+                flatten((List) a, flat);
+            } else if (a != null) {
+                flat.add(a.toString().toLowerCase(Locale.ROOT));
+            }
+        }
+    }
+
+    synchronized void clear() {
+        generation++;
+        entries.clear();
+        byArg.clear();
+    }
+
+    /**
+     * @return a one-line summary of the hit rate
+     */
+    synchronized String getStats() {
+        return "result cache: "+entries.size()+" of "+maxEntries+
+            " entries, "+hits+" hits, "+misses+" misses, dropped "+
+            expired+" expired, "+evicted+" least recently used, "+
+            invalidated+" by other commands, not kept "+stale+
+            " read while others ran";
+    }
+}
+
+// arch-tag: 6a3f8d25-c1e7-4b09-8f4d-2d9b7e60a1c4
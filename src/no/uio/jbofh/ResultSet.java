@@ -0,0 +1,642 @@
+/*
+ * Copyright 2026 University of Oslo, Norway
+ *
+ * This file is part of Cerebrum.
+ *
+ * Cerebrum is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerebrum is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerebrum; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package no.uio.jbofh;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The rows of a response stored by column, for <code>Pipeline</code>.
+ * Each member name gets a column, typed by its first value other than
+ * <code>&lt;not set&gt;</code>: ints,
+ * doubles and dates are kept in primitive buffers, strings as codes
+ * into a dictionary of the distinct values, and booleans as bits.
+ * Values that do not fit the type of their column, like the
+ * <code>&lt;not set&gt;</code> bofhd gives for a missing date, are
+ * kept aside as they are.  If there are many of them, the column
+ * falls back to an array of objects.
+ *
+ * When a column grows past <code>offHeapRows</code> rows, its buffer
+ * is allocated outside the Java heap, so that a large listing does
+ * not need a large heap.
+ */
+class ResultSet {
+    /** What <code>BofhdConnection.washResponse</code> makes of None */
+    static final String NOT_SET = "<not set>";
+    final int offHeapRows;
+    /** The columns, in the order the member names were first seen */
+    final ArrayList columns = new ArrayList();
+    private final HashMap byName = new HashMap();
+    int size = 0;
+
+    /**
+     * One member of the rows.
+     */
+    abstract class Column {
+        final String name;
+        /** The rows that have this member */
+        final BitSet present = new BitSet();
+        /** Values that do not fit the type, by row */
+        final HashMap others = new HashMap();
+        /** The number of rows stored typed */
+        int typed = 0;
+        int capacity = 0;
+
+        Column(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return true if <code>value</code> can be stored typed
+         */
+        abstract boolean accepts(Object value);
+
+        abstract void store(int row, Object value);
+
+        abstract Object load(int row);
+
+        /**
+         * Compare the typed values of two rows.
+         */
+        abstract int compareTyped(int a, int b);
+
+        /**
+         * @return <code>literal</code> in the form
+         * <code>compareTo</code> takes, or null if it is not of the
+         * type of the column
+         */
+        abstract Object parse(String literal);
+
+        /**
+         * Compare the typed value of <code>row</code> with a parsed
+         * literal.
+         */
+        abstract int compareTo(int row, Object literal);
+
+        /**
+         * Make room for <code>n</code> rows.
+         */
+        abstract void grow(int n);
+
+        @SuppressWarnings("unchecked")
+        void set(int row, Object value) {
+            present.set(row);
+            if (accepts(value)) {
+                if (row >= capacity) grow(Math.max(16, Math.max(row + 1,
+                                                                capacity * 2)));
+                store(row, value);
+                typed++;
+            } else {
+                others.put(row, value);
+            }
+        }
+
+        /**
+         * @return true if <code>row</code> has a value of the type of
+         * the column
+         */
+        boolean isTyped(int row) {
+            return present.get(row) && ! others.containsKey(row);
+        }
+
+        Object get(int row) {
+            if (! present.get(row)) return null;
+            Object o = others.get(row);
+            return o != null ? o : load(row);
+        }
+
+        /**
+         * Order rows by typed value, then the values that do not fit
+         * the type by their text, then the rows without the member.
+         * <code>descending</code> reverses the order of the values,
+         * but keeps the odd and missing ones last.
+         */
+        int compare(int a, int b, boolean descending) {
+            int ka = kind(a), kb = kind(b);
+            if (ka != kb) return ka - kb;
+            int c = 0;
+            if (ka == 0) c = compareTyped(a, b);
+            if (ka == 1) c = others.get(a).toString().compareTo(
+                                    others.get(b).toString());
+            return descending ? -c : c;
+        }
+
+        private int kind(int row) {
+            if (! present.get(row)) return 2;
+            return others.containsKey(row) ? 1 : 0;
+        }
+    }
+
+    /**
+     * Creates the buffers of the primitive columns.
+     */
+    ByteBuffer allocate(int n, int bytes) {
+        if (n > offHeapRows)
+            return ByteBuffer.allocateDirect(n * bytes)
+                .order(ByteOrder.nativeOrder());
+        return ByteBuffer.allocate(n * bytes);
+    }
+
+    class IntColumn extends Column {
+        IntBuffer values;
+
+        IntColumn(String name) {
+            super(name);
+        }
+
+        @Override
+        boolean accepts(Object value) {
+            return value instanceof Integer;
+        }
+
+        @Override
+        void grow(int n) {
+            IntBuffer b = allocate(n, 4).asIntBuffer();
+            if (values != null) {
+                values.clear();
+                b.put(values);
+                b.clear();
+            }
+            values = b;
+            capacity = n;
+        }
+
+        @Override
+        void store(int row, Object value) {
+            values.put(row, ((Integer) value).intValue());
+        }
+
+        @Override
+        Object load(int row) {
+            return values.get(row);
+        }
+
+        @Override
+        int compareTyped(int a, int b) {
+            return Integer.compare(values.get(a), values.get(b));
+        }
+
+        @Override
+        Object parse(String literal) {
+            try {
+                return Long.valueOf(literal.trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        int compareTo(int row, Object literal) {
+            return Long.compare(values.get(row), ((Long) literal).longValue());
+        }
+    }
+
+    class DoubleColumn extends Column {
+        DoubleBuffer values;
+
+        DoubleColumn(String name) {
+            super(name);
+        }
+
+        @Override
+        boolean accepts(Object value) {
+            return value instanceof Double;
+        }
+
+        @Override
+        void grow(int n) {
+            DoubleBuffer b = allocate(n, 8).asDoubleBuffer();
+            if (values != null) {
+                values.clear();
+                b.put(values);
+                b.clear();
+            }
+            values = b;
+            capacity = n;
+        }
+
+        @Override
+        void store(int row, Object value) {
+            values.put(row, ((Double) value).doubleValue());
+        }
+
+        @Override
+        Object load(int row) {
+            return values.get(row);
+        }
+
+        @Override
+        int compareTyped(int a, int b) {
+            return Double.compare(values.get(a), values.get(b));
+        }
+
+        @Override
+        Object parse(String literal) {
+            try {
+                return Double.valueOf(literal.trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        int compareTo(int row, Object literal) {
+            return Double.compare(values.get(row),
+                                  ((Double) literal).doubleValue());
+        }
+    }
+
+    /**
+     * Dates, as milliseconds.  A literal is a period, given by as much
+     * of <code>yyyy-MM-dd HH:mm:ss</code> as wanted, and a date
+     * compares equal to the periods it is in.
+     */
+    class DateColumn extends Column {
+        LongBuffer values;
+
+        DateColumn(String name) {
+            super(name);
+        }
+
+        @Override
+        boolean accepts(Object value) {
+            return value instanceof Date;
+        }
+
+        @Override
+        void grow(int n) {
+            LongBuffer b = allocate(n, 8).asLongBuffer();
+            if (values != null) {
+                values.clear();
+                b.put(values);
+                b.clear();
+            }
+            values = b;
+            capacity = n;
+        }
+
+        @Override
+        void store(int row, Object value) {
+            values.put(row, ((Date) value).getTime());
+        }
+
+        @Override
+        Object load(int row) {
+            return new Date(values.get(row));
+        }
+
+        @Override
+        int compareTyped(int a, int b) {
+            return Long.compare(values.get(a), values.get(b));
+        }
+
+        @Override
+        Object parse(String literal) {
+            return Pipeline.parsePeriod(literal.trim());
+        }
+
+        @Override
+        int compareTo(int row, Object literal) {
+            long v = values.get(row);
+            long[] period = (long[]) literal;
+            if (v < period[0]) return -1;
+            return v < period[1] ? 0 : 1;
+        }
+    }
+
+    class BooleanColumn extends Column {
+        final BitSet values = new BitSet();
+
+        BooleanColumn(String name) {
+            super(name);
+        }
+
+        @Override
+        boolean accepts(Object value) {
+            return value instanceof Boolean;
+        }
+
+        @Override
+        void grow(int n) {
+            capacity = n;
+        }
+
+        @Override
+        void store(int row, Object value) {
+            values.set(row, ((Boolean) value).booleanValue());
+        }
+
+        @Override
+        Object load(int row) {
+            return values.get(row);
+        }
+
+        @Override
+        int compareTyped(int a, int b) {
+            return Boolean.compare(values.get(a), values.get(b));
+        }
+
+        @Override
+        Object parse(String literal) {
+            switch (literal.trim().toLowerCase()) {
+                case "true":
+                case "1":
+                    return Boolean.TRUE;
+                case "false":
+                case "0":
+                    return Boolean.FALSE;
+                default:
+                    return null;
+            }
+        }
+
+        @Override
+        int compareTo(int row, Object literal) {
+            return Boolean.compare(values.get(row),
+                                   ((Boolean) literal).booleanValue());
+        }
+    }
+
+    /**
+     * Strings, as codes into a dictionary of the distinct values.
+     */
+    class StringColumn extends Column {
+        IntBuffer codes;
+        final ArrayList dictionary = new ArrayList();
+        private final HashMap index = new HashMap();
+        /** The rank of each code in sorted order, made when sorting */
+        private int[] rank;
+
+        StringColumn(String name) {
+            super(name);
+        }
+
+        @Override
+        boolean accepts(Object value) {
+            return value instanceof String && ! NOT_SET.equals(value);
+        }
+
+        @Override
+        void grow(int n) {
+            IntBuffer b = allocate(n, 4).asIntBuffer();
+            if (codes != null) {
+                codes.clear();
+                b.put(codes);
+                b.clear();
+            }
+            codes = b;
+            capacity = n;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        void store(int row, Object value) {
+            Integer code = (Integer) index.get(value);
+            if (code == null) {
+                code = dictionary.size();
+                dictionary.add(value);
+                index.put(value, code);
+                rank = null;
+            }
+            codes.put(row, code.intValue());
+        }
+
+        @Override
+        Object load(int row) {
+            return dictionary.get(codes.get(row));
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        int compareTyped(int a, int b) {
+            if (rank == null) {
+                Integer[] order = new Integer[dictionary.size()];
+                for (int i = 0; i < order.length; i++) order[i] = i;
+                Arrays.sort(order, (Integer x, Integer y) ->
+                    ((String) dictionary.get(x)).compareTo(
+                        (String) dictionary.get(y)));
+                int[] r = new int[order.length];
+                for (int i = 0; i < order.length; i++) r[order[i]] = i;
+                rank = r;
+            }
+            return Integer.compare(rank[codes.get(a)], rank[codes.get(b)]);
+        }
+
+        @Override
+        Object parse(String literal) {
+            return literal;
+        }
+
+        @Override
+        int compareTo(int row, Object literal) {
+            return ((String) load(row)).compareTo((String) literal);
+        }
+    }
+
+    /**
+     * Anything else, and columns with too many values of other types.
+     */
+    class ObjectColumn extends Column {
+        Object[] values;
+
+        ObjectColumn(String name) {
+            super(name);
+        }
+
+        @Override
+        boolean accepts(Object value) {
+            return true;
+        }
+
+        @Override
+        void grow(int n) {
+            values = values == null ? new Object[n] :
+                Arrays.copyOf(values, n);
+            capacity = n;
+        }
+
+        @Override
+        void store(int row, Object value) {
+            values[row] = value;
+        }
+
+        @Override
+        Object load(int row) {
+            return values[row];
+        }
+
+        @Override
+        int compareTyped(int a, int b) {
+            return values[a].toString().compareTo(values[b].toString());
+        }
+
+        @Override
+        Object parse(String literal) {
+            return literal;
+        }
+
+        @Override
+        int compareTo(int row, Object literal) {
+            return values[row].toString().compareTo((String) literal);
+        }
+    }
+
+    /**
+     * @param offHeapRows columns longer than this are kept outside the
+     * heap
+     */
+    ResultSet(int offHeapRows) {
+        this.offHeapRows = offHeapRows;
+    }
+
+    Column newColumn(String name, Object value) {
+        if (value instanceof Integer) return new IntColumn(name);
+        if (value instanceof Double) return new DoubleColumn(name);
+        if (value instanceof Date) return new DateColumn(name);
+        if (value instanceof Boolean) return new BooleanColumn(name);
+        if (value instanceof String) return new StringColumn(name);
+        return new ObjectColumn(name);
+    }
+
+    Column getColumn(String name) {
+        return (Column) byName.get(name);
+    }
+
+    /**
+     * Add a row.
+     */
+    @SuppressWarnings("unchecked")
+    void add(Map row) {
+        for (Iterator e = row.entrySet().iterator(); e.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) e.next();
+            String name = String.valueOf(entry.getKey());
+            Object value = entry.getValue();
+            Column c = (Column) byName.get(name);
+            if (c == null) {
+                c = newColumn(name, value);
+                columns.add(c);
+                byName.put(name, c);
+            } else if (c.typed == 0 && ! c.accepts(value)) {
+                // Typed by a <not set> or the like, retype by this one
+                c = retype(c, newColumn(name, value));
+            }
+            c.set(size, value);
+            if (c.others.size() > 64 && c.others.size() > size / 2)
+                toObjectColumn(c);
+        }
+        size++;
+    }
+
+    private void toObjectColumn(Column c) {
+        retype(c, new ObjectColumn(c.name));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Column retype(Column c, Column o) {
+        for (int i = c.present.nextSetBit(0); i >= 0;
+                i = c.present.nextSetBit(i + 1))
+            o.set(i, c.get(i));
+        columns.set(columns.indexOf(c), o);
+        byName.put(c.name, o);
+        return o;
+    }
+
+    /**
+     * @return row <code>row</code> as a read-only map
+     */
+    Map row(final int row) {
+        return new AbstractMap() {
+            @Override
+            public Object get(Object key) {
+                Column c = (Column) byName.get(key);
+                return c == null ? null : c.get(row);
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                Column c = (Column) byName.get(key);
+                return c != null && c.present.get(row);
+            }
+
+            @Override
+            public Set entrySet() {
+                return new AbstractSet() {
+                    @Override
+                    public int size() {
+                        int n = 0;
+                        for (int i = 0; i < columns.size(); i++) {
+                            if (((Column) columns.get(i)).present.get(row))
+                                n++;
+                        }
+                        return n;
+                    }
+
+                    @Override
+                    public Iterator iterator() {
+                        return new Iterator() {
+                            int i = advance(0);
+
+                            private int advance(int from) {
+                                while (from < columns.size() &&
+                                       ! ((Column) columns.get(from))
+                                           .present.get(row))
+                                    from++;
+                                return from;
+                            }
+
+                            @Override
+                            public boolean hasNext() {
+                                return i < columns.size();
+                            }
+
+                            @Override
+                            @SuppressWarnings("unchecked")
+                            public Object next() {
+                                if (i >= columns.size())
+                                    throw new NoSuchElementException();
+                                Column c = (Column) columns.get(i);
+                                i = advance(i + 1);
+                                return new SimpleImmutableEntry(c.name,
+                                                                c.get(row));
+                            }
+                        };
+                    }
+                };
+            }
+        };
+    }
+}
+
+// arch-tag: 3f9a6d21-7c4e-4b58-a0d3-e15b82c9f476
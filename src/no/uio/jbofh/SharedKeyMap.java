@@ -0,0 +1,257 @@
+/*
+ * Copyright 2026 University of Oslo, Norway
+ *
+ * This file is part of Cerebrum.
+ *
+ * Cerebrum is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerebrum is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerebrum; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package no.uio.jbofh;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A struct from a bofhd response, kept as an array of values and a
+ * <code>Schema</code> with the member names.  The rows of a listing
+ * have the same members, so they share one schema, and a row takes
+ * little more room than its values, where a <code>HashMap</code> needs
+ * a table and an entry object per member.
+ *
+ * The schemas of a response form a tree: the schema of a struct with
+ * the members <i>a</i> and <i>b</i> is the child <i>b</i> of the child
+ * <i>a</i> of the root.  A struct is built by following (or adding)
+ * one child per member, which also makes the member names kept the
+ * ones in the tree, one <code>String</code> per name.  The parsers
+ * start a new tree for each response, so that it does not grow without
+ * bounds.
+ *
+ * Values can be replaced, which <code>BofhdConnection.washResponse</code>
+ * does, but members can not be added or removed.  The map is
+ * serialized as a <code>HashMap</code>, which is what the command
+ * cache expects.
+ */
+class SharedKeyMap extends AbstractMap implements Serializable {
+    private static final long serialVersionUID = 1L;
+    final Schema schema;
+    final Object[] values;
+
+    /**
+     * The member names of a struct, in the order they came in.
+     */
+    static final class Schema {
+        /** Schemas with more keys than this get a hash index */
+        static final int LINEAR = 8;
+        final Schema parent;
+        final String key;
+        final int size;
+        /** Only used by the thread that parses the response */
+        private HashMap children;
+        private volatile String[] keys;
+        private volatile HashMap index;
+
+        /**
+         * Create the root of a new tree, the schema of an empty struct.
+         */
+        Schema() {
+            this(null, null);
+        }
+
+        private Schema(Schema parent, String key) {
+            this.parent = parent;
+            this.key = key;
+            size = parent == null ? 0 : parent.size + 1;
+        }
+
+        /**
+         * @return the schema with the keys of this one followed by
+         * <code>name</code>, or null if this one already has it
+         */
+        @SuppressWarnings("unchecked")
+        Schema with(String name) {
+            if (children == null) children = new HashMap(4);
+            Schema s = (Schema) children.get(name);
+            if (s == null) {
+                for (Schema p = this; p.parent != null; p = p.parent) {
+                    if (p.key.equals(name)) return null;
+                }
+                s = new Schema(this, name);
+                children.put(name, s);
+            }
+            return s;
+        }
+
+        String[] keys() {
+            String[] k = keys;
+            if (k == null) {
+                k = new String[size];
+                for (Schema p = this; p.parent != null; p = p.parent)
+                    k[p.size - 1] = p.key;
+                keys = k;
+            }
+            return k;
+        }
+
+        @SuppressWarnings("unchecked")
+        int indexOf(Object name) {
+            String[] k = keys();
+            if (k.length <= LINEAR) {
+                for (int i = 0; i < k.length; i++) {
+                    if (k[i].equals(name)) return i;
+                }
+                return -1;
+            }
+            HashMap ix = index;
+            if (ix == null) {
+                ix = new HashMap(k.length * 2);
+                for (int i = 0; i < k.length; i++) ix.put(k[i], i);
+                index = ix;
+            }
+            Integer i = (Integer) ix.get(name);
+            return i == null ? -1 : i.intValue();
+        }
+    }
+
+    /**
+     * Collects the members of one struct at a time.  A parser keeps one
+     * for each nesting depth, so that the scratch array is reused.
+     */
+    static final class Builder {
+        private Schema schema;
+        private Object[] values = new Object[8];
+
+        /**
+         * Start a new struct with the schema tree <code>root</code>.
+         */
+        void start(Schema root) {
+            schema = root;
+        }
+
+        /**
+         * @return false if the struct already has a member
+         * <code>name</code>
+         */
+        boolean add(String name, Object value) {
+            Schema next = schema.with(name);
+            if (next == null) return false;
+            if (schema.size == values.length)
+                values = Arrays.copyOf(values, values.length * 2);
+            values[schema.size] = value;
+            schema = next;
+            return true;
+        }
+
+        SharedKeyMap build() {
+            SharedKeyMap ret = new SharedKeyMap(schema,
+                Arrays.copyOf(values, schema.size));
+            Arrays.fill(values, 0, schema.size, null);
+            return ret;
+        }
+    }
+
+    /**
+     * An entry that writes its value through to the map.
+     */
+    class Member extends SimpleEntry {
+        private static final long serialVersionUID = 1L;
+        private final int i;
+
+        @SuppressWarnings("unchecked")
+        Member(int i) {
+            super(schema.keys()[i], values[i]);
+            this.i = i;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object setValue(Object value) {
+            values[i] = value;
+            return super.setValue(value);
+        }
+    }
+
+    SharedKeyMap(Schema schema, Object[] values) {
+        this.schema = schema;
+        this.values = values;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object writeReplace() {
+        return new HashMap(this);
+    }
+
+    @Override
+    public int size() {
+        return values.length;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return schema.indexOf(key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int i = schema.indexOf(key);
+        return i < 0 ? null : values[i];
+    }
+
+    @Override
+    public Object put(Object key, Object value) {
+        int i = schema.indexOf(key);
+        if (i < 0) throw new UnsupportedOperationException(
+            "Can not add "+key+" to a struct from bofhd");
+        Object old = values[i];
+        values[i] = value;
+        return old;
+    }
+
+    @Override
+    public Set entrySet() {
+        return new AbstractSet() {
+            @Override
+            public int size() {
+                return values.length;
+            }
+
+            @Override
+            public Iterator iterator() {
+                return new Iterator() {
+                    int i = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return i < values.length;
+                    }
+
+                    @Override
+                    public Object next() {
+                        if (i >= values.length)
+                            throw new NoSuchElementException();
+                        return new Member(i++);
+                    }
+                };
+            }
+        };
+    }
+}
+
+// arch-tag: 5e8c2a17-9d4b-4f06-b3a1-6c7e0d29f4b8
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2026 University of Oslo, Norway
+ *
+ * This file is part of Cerebrum.
+ *
+ * Cerebrum is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerebrum is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerebrum; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package no.uio.jbofh;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Measures how long jbofh takes to start, with and without the class
+ * data sharing archive next to the jar (see <code>CdsTraining</code>).
+ * Each run is a new JVM started with <code>--timings</code>:
+ * <ul>
+ * <li>time to prompt: an interactive session, up to the prompt
+ * <li>time to first response: <code>-c command</code>, up to the
+ *     output of the command
+ * </ul>
+ * Both are counted from the start of the JVM.  Run it with <code>ant
+ * cds-bench</code>, or as
+ * <code>java -cp JBofh.jar no.uio.jbofh.StartupBenchmark [--runs N]
+ * [--command "user info foo"] [-- jbofh arguments]</code>.  Without
+ * jbofh arguments the runs go to the server of the training run; with
+ * them, to the server they name, and the password is taken from
+ * <code>JBOFH_BENCH_PASSWORD</code>.
+ */
+class StartupBenchmark {
+    private static final Pattern TOTAL = Pattern.compile(
+        "^startup: .*?, total (\\d+) ms");
+    private final String java;
+    private final Path jar, archive;
+    private final List jbofhArgs;
+    private final String password;
+
+    StartupBenchmark(Path jar, List jbofhArgs, String password) {
+        this.java = Paths.get(System.getProperty("java.home"), "bin", "java")
+            .toString();
+        this.jar = jar;
+        this.archive = jar.resolveSibling("JBofh.jsa");
+        this.jbofhArgs = jbofhArgs;
+        this.password = password;
+    }
+
+    /**
+     * Run jbofh once.
+     *
+     * @param useArchive run with the archive
+     * @param extra arguments after <code>jbofhArgs</code>
+     * @param input written to stdin after the password, if any
+     * @return the startup total reported by jbofh, in milliseconds
+     */
+    @SuppressWarnings("unchecked")
+    long run(boolean useArchive, List extra, String input) throws IOException {
+        ArrayList cmd = new ArrayList();
+        cmd.add(java);
+        if (useArchive) {
+            cmd.add("-XX:SharedArchiveFile="+archive);
+            cmd.add("-Xshare:auto");
+        }
+        cmd.add("-jar");
+        cmd.add(jar.toString());
+        cmd.add("--nogui");
+        cmd.add("--timings");
+        cmd.addAll(jbofhArgs);
+        cmd.addAll(extra);
+        Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        try (OutputStream in = p.getOutputStream()) {
+            if (password != null) input = password+"\n"+input;
+            in.write(input.getBytes(StandardCharsets.UTF_8));
+        }
+        long total = -1;
+        ArrayList output = new ArrayList();
+        try (BufferedReader out = new BufferedReader(new InputStreamReader(
+                p.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = out.readLine()) != null) {
+                Matcher m = TOTAL.matcher(line);
+                if (m.lookingAt()) {
+                    total = Long.parseLong(m.group(1));
+                } else if (output.size() < 20) {
+                    output.add(line);
+                }
+            }
+        }
+        try {
+            p.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (total < 0)
+            throw new IOException("No startup timings from "+cmd+": "+output);
+        return total;
+    }
+
+    /**
+     * @return "median N ms (min N)" of <code>runs</code> runs
+     */
+    @SuppressWarnings("unchecked")
+    String measure(int runs, boolean useArchive, List extra, String input)
+                                                        throws IOException {
+        ArrayList times = new ArrayList();
+        for (int i = 0; i < runs; i++)
+            times.add(run(useArchive, extra, input));
+        Collections.sort(times);
+        return "median "+times.get(runs / 2)+" ms (min "+times.get(0)+")";
+    }
+
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args) throws Exception {
+        int runs = 5;
+        String command = "user info "+CdsTraining.USER;
+        ArrayList jbofhArgs = new ArrayList();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--runs")) {
+                runs = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--command")) {
+                command = args[++i];
+            } else if (args[i].equals("--")) {
+                jbofhArgs.addAll(Arrays.asList(args).subList(i + 1, args.length));
+                break;
+            } else {
+                System.err.println("Usage: StartupBenchmark [--runs N] "+
+                    "[--command cmd] [-- jbofh arguments]");
+                System.exit(1);
+            }
+        }
+        HttpServer server = null;
+        String password = null;
+        if (jbofhArgs.isEmpty()) {
+            server = CdsTraining.startServer();
+            jbofhArgs.addAll(Arrays.asList("-q", "--url",
+                CdsTraining.getURL(server), "--set", "cache.commands.enable=false"));
+        } else {
+            password = System.getenv("JBOFH_BENCH_PASSWORD");
+        }
+        Path jar = new File(StartupBenchmark.class.getProtectionDomain()
+            .getCodeSource().getLocation().toURI()).toPath().toRealPath();
+        StartupBenchmark bench = new StartupBenchmark(jar, jbofhArgs, password);
+        // As in the launcher, the JVM will not use an archive of an older jar
+        File archive = bench.archive.toFile();
+        boolean haveArchive = archive.isFile() &&
+            archive.lastModified() > jar.toFile().lastModified();
+        if (! haveArchive)
+            System.out.println("No up to date "+archive+", run \"ant cds\" first");
+        System.out.println(runs+" runs each, jbofh "+
+                           String.join(" ", jbofhArgs));
+        List interactive = Collections.EMPTY_LIST;
+        List batch = Arrays.asList("-c", command);
+        System.out.println("time to prompt, without archive:         "+
+                           bench.measure(runs, false, interactive, "quit\n"));
+        if (haveArchive)
+            System.out.println("time to prompt, with archive:            "+
+                               bench.measure(runs, true, interactive, "quit\n"));
+        System.out.println("time to first response, without archive: "+
+                           bench.measure(runs, false, batch, ""));
+        if (haveArchive)
+            System.out.println("time to first response, with archive:    "+
+                               bench.measure(runs, true, batch, ""));
+        if (server != null) server.stop(0);
+    }
+}
+
+// arch-tag: 7a1c5e93-d2b8-4f07-a6e4-c9b3f8d20e56
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2026 University of Oslo, Norway
+ *
+ * This file is part of Cerebrum.
+ *
+ * Cerebrum is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerebrum is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerebrum; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package no.uio.jbofh;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+
+/**
+ * How long each phase of starting up took, up to the first command.
+ * The first phase is the time the JVM took to get to <code>main</code>.
+ * Each call to <code>mark</code> ends a phase of the main thread, which
+ * includes any time spent waiting for tasks that run in the background;
+ * those are listed after the total, with the time each took.  The
+ * report is written to the debug log, and to stderr with
+ * <code>--timings</code>.
+ */
+class StartupTimings {
+    private final long jvmStart, mainStart;
+    private long last;
+    private final ArrayList phases = new ArrayList();
+    private final ArrayList tasks = new ArrayList();
+    private boolean reported = false;
+
+    @SuppressWarnings("unchecked")
+    StartupTimings() {
+        mainStart = last = System.currentTimeMillis();
+        long t;
+        try {
+            t = ManagementFactory.getRuntimeMXBean().getStartTime();
+        } catch (LinkageError | SecurityException e) {
+            t = mainStart;
+        }
+        jvmStart = t;
+        phases.add("jvm "+(mainStart - jvmStart)+" ms");
+    }
+
+    /**
+     * End the phase that is running now.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized void mark(String phase) {
+        if (reported) return;
+        long now = System.currentTimeMillis();
+        phases.add(phase+" "+(now - last)+" ms");
+        last = now;
+    }
+
+    /**
+     * Note that a background task that began at <code>started</code>
+     * is done.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized void background(String task, long started) {
+        if (reported) return;
+        tasks.add(task+" "+(System.currentTimeMillis() - started)+" ms");
+    }
+
+    /**
+     * @return the phases so far, the total since the JVM started and the
+     * background tasks
+     */
+    @SuppressWarnings("unchecked")
+    synchronized String getReport() {
+        String report = "startup: "+String.join(", ", phases)+", total "+
+            (last - jvmStart)+" ms";
+        if (tasks.isEmpty()) return report;
+        return report+"; in the background: "+String.join(", ", tasks);
+    }
+
+    /**
+     * Report the phases once.  Later marks are ignored.
+     *
+     * @param toStderr also write the report to stderr
+     */
+    synchronized void report(boolean toStderr) {
+        if (reported) return;
+        reported = true;
+        String msg = getReport();
+        JBofh.logger.debug(msg);
+        if (toStderr) System.err.println(msg);
+    }
+}
+
+// arch-tag: 9c4e1a7b-52d3-4f6e-b8a0-3e7d1f29c5a8
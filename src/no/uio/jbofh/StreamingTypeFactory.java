@@ -0,0 +1,776 @@
+/*
+ * Copyright 2026 University of Oslo, Norway
+ *
+ * This file is part of Cerebrum.
+ *
+ * Cerebrum is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerebrum is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerebrum; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package no.uio.jbofh;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TimeZone;
+
+import javax.xml.namespace.QName;
+
+import org.apache.ws.commons.util.NamespaceContextImpl;
+import org.apache.xmlrpc.common.TypeFactoryImpl;
+import org.apache.xmlrpc.common.XmlRpcController;
+import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
+import org.apache.xmlrpc.common.XmlRpcStreamConfig;
+import org.apache.xmlrpc.parser.MapParser;
+import org.apache.xmlrpc.parser.RecursiveTypeParserImpl;
+import org.apache.xmlrpc.parser.TypeParser;
+import org.apache.xmlrpc.parser.TypeParserImpl;
+import org.apache.xmlrpc.serializer.MapSerializer;
+import org.apache.xmlrpc.serializer.ObjectArraySerializer;
+import org.apache.xmlrpc.serializer.TypeSerializerImpl;
+import org.apache.xmlrpc.util.XmlRpcDateTimeDateFormat;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Type factory that can hand the elements of a top-level array
+ * response to a <code>RowHandler</code> as they are parsed, instead of
+ * collecting them.  The returned value is then an empty list.
+ *
+ * A handler is set for the current thread with
+ * <code>setHandler</code>, and <code>arm</code> is called right before
+ * a request is sent.  The first value parser asked for after that is
+ * the one for the top-level value (or the fault struct), so only that
+ * one is considered for streaming.
+ *
+ * Arrays are returned as <code>ArrayList</code> rather than
+ * <code>Object[]</code>, which is what the rest of jbofh works with,
+ * so that <code>BofhdConnection.washResponse</code> does not have to
+ * copy them.
+ *
+ * The parsers for structs, arrays and the common atomic types are
+ * reused instead of being created for every value.  Each thread keeps
+ * one parser of each type per nesting depth: the values at one depth
+ * are parsed one after the other, so the parser for the previous one
+ * is done when the next is asked for.  The parsers for the top-level
+ * value are not reused, so that they do not keep a whole response
+ * alive.  <code>newResponse</code> must be called before each
+ * response, so that a response that failed halfway does not leave the
+ * depth wrong.
+ *
+ * Structs inside other values, like the rows of a listing, are parsed
+ * into <code>SharedKeyMap</code>s, whose schema tree is started anew
+ * by <code>newResponse</code>.  A struct that is the whole response,
+ * like the command list or a format suggestion, is a
+ * <code>HashMap</code>.
+ */
+class StreamingTypeFactory extends TypeFactoryImpl {
+    static final int STRING = 0, INT = 1, BOOLEAN = 2, DOUBLE = 3, DATE = 4,
+        STRUCT = 5, ARRAY = 6, TYPES = 7;
+    private final ThreadLocal handler = new ThreadLocal();
+    private final ThreadLocal armed = new ThreadLocal();
+    private final ThreadLocal streamed = new ThreadLocal();
+    private final ThreadLocal pools = new ThreadLocal();
+    /** Reuse parsers; false gives a parser for each value, as before */
+    boolean recycle = true;
+    /** Parse nested structs into <code>SharedKeyMap</code>s */
+    boolean sharedKeys = true;
+
+    /**
+     * The parsers kept by one thread.
+     */
+    static class Pool {
+        /** The number of structs and arrays being parsed */
+        int depth = 0;
+        /** The schema tree of the response being parsed */
+        SharedKeyMap.Schema root = new SharedKeyMap.Schema();
+        TypeParser[][] parsers = new TypeParser[8][];
+
+        TypeParser[] at(int d) {
+            if (d >= parsers.length)
+                parsers = Arrays.copyOf(parsers, Math.max(d + 1, parsers.length * 2));
+            if (parsers[d] == null) parsers[d] = new TypeParser[TYPES];
+            return parsers[d];
+        }
+
+        void enter() {
+            depth++;
+        }
+
+        /**
+         * Called when <code>parser</code> is done.  Drops its locator,
+         * which leads to the whole response through the SAX parser, so
+         * that a reused parser does not keep it alive.
+         */
+        void leave(TypeParser parser) {
+            depth--;
+            parser.setDocumentLocator(null);
+        }
+    }
+
+    /**
+     * Receives the rows of a streamed response.
+     */
+    interface RowHandler {
+        /**
+         * Called when the response turns out to be an array, before
+         * any rows.
+         */
+        void start();
+
+        /**
+         * Called for each element of the array, in order.
+         *
+         * @param row the unwashed element
+         */
+        void handleRow(Object row);
+    }
+
+    /**
+     * A handler that does not show the rows before the response is
+     * done, and starts over when <code>start</code> is called again,
+     * so that a failed request can be sent again.
+     */
+    interface RestartableRowHandler extends RowHandler {
+    }
+
+    /**
+     * Parser for arrays.  Works like <code>ObjectArrayParser</code>,
+     * but the result is the <code>ArrayList</code> itself.
+     */
+    static class ArrayListParser extends RecursiveTypeParserImpl {
+        private final Pool pool;
+        private int level = 0;
+        private ArrayList list;
+
+        ArrayListParser(XmlRpcStreamConfig pConfig,
+                        NamespaceContextImpl pContext,
+                        StreamingTypeFactory pFactory, Pool pool) {
+            super(pConfig, pContext, pFactory);
+            this.pool = pool;
+        }
+
+        @Override
+        public void startDocument() throws SAXException {
+            level = 0;
+            list = new ArrayList();
+            super.startDocument();
+            pool.enter();
+        }
+
+        @Override
+        public void endDocument() throws SAXException {
+            super.endDocument();
+            pool.leave(this);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void addResult(Object pValue) {
+            list.add(pValue);
+        }
+
+        @Override
+        public void endElement(String pURI, String pLocalName, String pQName)
+                                                        throws SAXException {
+            switch (--level) {
+                case 0:
+                    setResult(list);
+                    break;
+                case 1:
+                    break;
+                case 2:
+                    endValueTag();
+                    break;
+                default:
+                    super.endElement(pURI, pLocalName, pQName);
+            }
+        }
+
+        @Override
+        public void startElement(String pURI, String pLocalName, String pQName,
+                                 Attributes pAttrs) throws SAXException {
+            switch (level++) {
+                case 0:
+                    expect(ObjectArraySerializer.ARRAY_TAG, pURI, pLocalName);
+                    break;
+                case 1:
+                    expect(ObjectArraySerializer.DATA_TAG, pURI, pLocalName);
+                    break;
+                case 2:
+                    expect(TypeSerializerImpl.VALUE_TAG, pURI, pLocalName);
+                    startValueTag();
+                    break;
+                default:
+                    super.startElement(pURI, pLocalName, pQName, pAttrs);
+                    break;
+            }
+        }
+
+        private void expect(String tag, String pURI, String pLocalName)
+                                                    throws SAXParseException {
+            if (!"".equals(pURI) || !tag.equals(pLocalName)) {
+                throw new SAXParseException("Expected "+tag+" element, got "
+                                            + new QName(pURI, pLocalName),
+                                            getDocumentLocator());
+            }
+        }
+    }
+
+    /**
+     * Parser for the top-level array that passes each element on
+     * instead of keeping it.
+     */
+    static class StreamingArrayParser extends ArrayListParser {
+        private final RowHandler rowHandler;
+
+        StreamingArrayParser(XmlRpcStreamConfig pConfig,
+                             NamespaceContextImpl pContext,
+                             StreamingTypeFactory pFactory, Pool pool,
+                             RowHandler rowHandler) {
+            super(pConfig, pContext, pFactory, pool);
+            this.rowHandler = rowHandler;
+        }
+
+        @Override
+        public void startDocument() throws SAXException {
+            super.startDocument();
+            rowHandler.start();
+        }
+
+        @Override
+        protected void addResult(Object pValue) {
+            rowHandler.handleRow(pValue);
+        }
+    }
+
+    /**
+     * Parser for structs that counts the depth.
+     */
+    static class CountingMapParser extends MapParser {
+        private final Pool pool;
+
+        CountingMapParser(XmlRpcStreamConfig pConfig,
+                          NamespaceContextImpl pContext,
+                          StreamingTypeFactory pFactory, Pool pool) {
+            super(pConfig, pContext, pFactory);
+            this.pool = pool;
+        }
+
+        @Override
+        public void startDocument() throws SAXException {
+            super.startDocument();
+            pool.enter();
+        }
+
+        @Override
+        public void endDocument() throws SAXException {
+            super.endDocument();
+            pool.leave(this);
+        }
+    }
+
+    /**
+     * Parser for structs inside other values, which makes them
+     * <code>SharedKeyMap</code>s.  Works like <code>MapParser</code>
+     * without extensions, with the same errors.
+     */
+    static class SharedKeyMapParser extends RecursiveTypeParserImpl {
+        private final Pool pool;
+        private final SharedKeyMap.Builder builder =
+            new SharedKeyMap.Builder();
+        private final StringBuilder nameBuffer = new StringBuilder();
+        private int level = 0;
+        private String name;
+        private boolean inName, inValue, doneValue;
+
+        SharedKeyMapParser(XmlRpcStreamConfig pConfig,
+                           NamespaceContextImpl pContext,
+                           StreamingTypeFactory pFactory, Pool pool) {
+            super(pConfig, pContext, pFactory);
+            this.pool = pool;
+        }
+
+        @Override
+        protected void addResult(Object pResult) throws SAXException {
+            if (! builder.add(name, pResult)) {
+                throw new SAXParseException("Duplicate name: "+name,
+                                            getDocumentLocator());
+            }
+        }
+
+        @Override
+        public void startDocument() throws SAXException {
+            super.startDocument();
+            level = 0;
+            builder.start(pool.root);
+            inValue = inName = false;
+            pool.enter();
+        }
+
+        @Override
+        public void endDocument() throws SAXException {
+            super.endDocument();
+            pool.leave(this);
+        }
+
+        @Override
+        public void characters(char[] pChars, int pOffset, int pLength)
+                                                        throws SAXException {
+            if (inName && ! inValue) {
+                nameBuffer.append(pChars, pOffset, pLength);
+            } else {
+                super.characters(pChars, pOffset, pLength);
+            }
+        }
+
+        @Override
+        public void ignorableWhitespace(char[] pChars, int pOffset,
+                                        int pLength) throws SAXException {
+            if (inName) {
+                characters(pChars, pOffset, pLength);
+            } else {
+                super.ignorableWhitespace(pChars, pOffset, pLength);
+            }
+        }
+
+        private SAXParseException expected(String what, String pURI,
+                                           String pLocalName) {
+            return new SAXParseException("Expected "+what+", got "+
+                new QName(pURI, pLocalName), getDocumentLocator());
+        }
+
+        @Override
+        public void startElement(String pURI, String pLocalName, String pQName,
+                                 Attributes pAttrs) throws SAXException {
+            switch (level++) {
+                case 0:
+                    if (! "".equals(pURI) ||
+                            ! MapSerializer.STRUCT_TAG.equals(pLocalName))
+                        throw expected(MapSerializer.STRUCT_TAG, pURI,
+                                       pLocalName);
+                    break;
+                case 1:
+                    if (! "".equals(pURI) ||
+                            ! MapSerializer.MEMBER_TAG.equals(pLocalName))
+                        throw expected(MapSerializer.MEMBER_TAG, pURI,
+                                       pLocalName);
+                    doneValue = inName = inValue = false;
+                    name = null;
+                    nameBuffer.setLength(0);
+                    break;
+                case 2:
+                    if (doneValue)
+                        throw expected("/"+MapSerializer.MEMBER_TAG, pURI,
+                                       pLocalName);
+                    if ("".equals(pURI) &&
+                            MapSerializer.NAME_TAG.equals(pLocalName)) {
+                        if (name != null)
+                            throw expected(TypeSerializerImpl.VALUE_TAG, pURI,
+                                           pLocalName);
+                        inName = true;
+                    } else if ("".equals(pURI) &&
+                            TypeSerializerImpl.VALUE_TAG.equals(pLocalName)) {
+                        if (name == null)
+                            throw expected(MapSerializer.NAME_TAG, pURI,
+                                           pLocalName);
+                        inValue = true;
+                        startValueTag();
+                    }
+                    break;
+                case 3:
+                    if (inName && "".equals(pURI) &&
+                            TypeSerializerImpl.VALUE_TAG.equals(pLocalName))
+                        throw expected("/"+MapSerializer.NAME_TAG, pURI,
+                                       pLocalName);
+                    super.startElement(pURI, pLocalName, pQName, pAttrs);
+                    break;
+                default:
+                    super.startElement(pURI, pLocalName, pQName, pAttrs);
+                    break;
+            }
+        }
+
+        @Override
+        public void endElement(String pURI, String pLocalName, String pQName)
+                                                        throws SAXException {
+            switch (--level) {
+                case 0:
+                    setResult(builder.build());
+                    break;
+                case 1:
+                    break;
+                case 2:
+                    if (inName) {
+                        inName = false;
+                        name = nameBuffer.toString();
+                    } else if (inValue) {
+                        endValueTag();
+                        doneValue = true;
+                    }
+                    break;
+                default:
+                    super.endElement(pURI, pLocalName, pQName);
+            }
+        }
+    }
+
+    /**
+     * Parser for string, int, i4, boolean, double and dateTime.iso8601
+     * values.  Works like the parsers of the XML-RPC library, with the
+     * same errors, but keeps its buffer from one value to the next.
+     */
+    static class RecycledAtomicParser extends TypeParserImpl {
+        private final int type;
+        private final StringBuilder sb = new StringBuilder();
+        private XmlRpcDateTimeDateFormat dateFormat;
+        private int level;
+
+        RecycledAtomicParser(int type, final XmlRpcController controller) {
+            this.type = type;
+            if (type == DATE) {
+                dateFormat = new XmlRpcDateTimeDateFormat() {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected TimeZone getTimeZone() {
+                        return controller.getConfig().getTimeZone();
+                    }
+                };
+            }
+        }
+
+        @Override
+        public void startDocument() throws SAXException {
+            level = 0;
+            setResult(null);
+        }
+
+        @Override
+        public void endDocument() throws SAXException {
+            // See Pool.leave
+            setDocumentLocator(null);
+        }
+
+        @Override
+        public void characters(char[] pChars, int pStart, int pLength)
+                                                        throws SAXException {
+            if (level > 0) {
+                sb.append(pChars, pStart, pLength);
+            } else if (! isEmpty(pChars, pStart, pLength)) {
+                throw new SAXParseException("Unexpected non-whitespace "+
+                    "characters", getDocumentLocator());
+            }
+        }
+
+        @Override
+        public void startElement(String pURI, String pLocalName, String pQName,
+                                 Attributes pAttrs) throws SAXException {
+            if (level++ == 0) {
+                sb.setLength(0);
+            } else {
+                throw new SAXParseException("Unexpected start tag in atomic "+
+                    "element: "+new QName(pURI, pLocalName),
+                    getDocumentLocator());
+            }
+        }
+
+        @Override
+        public void endElement(String pURI, String pLocalName, String pQName)
+                                                        throws SAXException {
+            if (--level == 0) {
+                setResult(convert(sb.toString()));
+            } else {
+                throw new SAXParseException("Unexpected end tag in atomic "+
+                    "element: "+new QName(pURI, pLocalName),
+                    getDocumentLocator());
+            }
+        }
+
+        private Object convert(String s) throws SAXException {
+            switch (type) {
+                case INT:
+                    try {
+                        return Integer.valueOf(s.trim());
+                    } catch (NumberFormatException e) {
+                        throw new SAXParseException("Failed to parse integer "+
+                            "value: "+s, getDocumentLocator());
+                    }
+                case BOOLEAN:
+                    String b = s.trim();
+                    if (b.equals("1")) return Boolean.TRUE;
+                    if (b.equals("0")) return Boolean.FALSE;
+                    throw new SAXParseException("Failed to parse boolean "+
+                        "value: "+s, getDocumentLocator());
+                case DOUBLE:
+                    try {
+                        return Double.valueOf(s);
+                    } catch (NumberFormatException e) {
+                        throw new SAXParseException("Failed to parse double "+
+                            "value: "+s, getDocumentLocator());
+                    }
+                case DATE:
+                    String d = s.trim();
+                    if (d.length() == 0) return null;
+                    try {
+                        return dateFormat.parseObject(d);
+                    } catch (ParseException e) {
+                        throw new SAXParseException("Failed to parse date "+
+                            "value: "+s, getDocumentLocator(), e);
+                    }
+                default:
+                    return s;
+            }
+        }
+    }
+
+    StreamingTypeFactory(XmlRpcController pController) {
+        super(pController);
+    }
+
+    /**
+     * Set the handler for streamed responses on this thread, or null
+     * to stop streaming.
+     */
+    @SuppressWarnings("unchecked")
+    void setHandler(RowHandler rowHandler) {
+        if (rowHandler == null) {
+            handler.remove();
+            armed.remove();
+        } else {
+            handler.set(rowHandler);
+        }
+    }
+
+    /**
+     * Stream the next response on this thread, if a handler is set.
+     */
+    @SuppressWarnings("unchecked")
+    void arm() {
+        streamed.remove();
+        if (handler.get() != null) armed.set(Boolean.TRUE);
+    }
+
+    /**
+     * @return true if rows of the last armed response on this thread
+     * may have been given to the handler
+     */
+    boolean hasStreamed() {
+        return streamed.get() != null;
+    }
+
+    /**
+     * Called when the type of the top-level value is known.  Decoders
+     * that do not ask for type parsers call this themselves.
+     *
+     * @param isArray true if the value is an array
+     * @return the handler to give the elements of the array to, or
+     * null if the response is not to be streamed
+     */
+    @SuppressWarnings("unchecked")
+    RowHandler startTopLevel(boolean isArray) {
+        if (armed.get() == null) return null;
+        armed.remove();
+        if (! isArray) return null;
+        RowHandler h = (RowHandler) handler.get();
+        if (! (h instanceof RestartableRowHandler)) streamed.set(Boolean.TRUE);
+        return h;
+    }
+
+    /**
+     * Called before each response is parsed on this thread.
+     */
+    void newResponse() {
+        Pool pool = getPool();
+        pool.depth = 0;
+        pool.root = new SharedKeyMap.Schema();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Pool getPool() {
+        Pool pool = (Pool) pools.get();
+        if (pool == null) {
+            pool = new Pool();
+            pools.set(pool);
+        }
+        return pool;
+    }
+
+    /**
+     * @return the type that is reused, or -1
+     */
+    static int typeOf(String pURI, String pLocalName) {
+        if (! "".equals(pURI)) return -1;
+        switch (pLocalName) {
+            case "string":
+                return STRING;
+            case "int":
+            case "i4":
+                return INT;
+            case "boolean":
+                return BOOLEAN;
+            case "double":
+                return DOUBLE;
+            case "dateTime.iso8601":
+                return DATE;
+            case "struct":
+                return STRUCT;
+            case "array":
+                return ARRAY;
+            default:
+                return -1;
+        }
+    }
+
+    private TypeParser newParser(int type, XmlRpcStreamConfig pConfig,
+                                 NamespaceContextImpl pContext, Pool pool) {
+        switch (type) {
+            case STRUCT:
+                if (pool.depth == 0 || ! sharedKeys)
+                    return new CountingMapParser(pConfig, pContext, this, pool);
+                return new SharedKeyMapParser(pConfig, pContext, this, pool);
+            case ARRAY:
+                return new ArrayListParser(pConfig, pContext, this, pool);
+            default:
+                return new RecycledAtomicParser(type, getController());
+        }
+    }
+
+    @Override
+    public TypeParser getParser(XmlRpcStreamConfig pConfig,
+                                NamespaceContextImpl pContext,
+                                String pURI, String pLocalName) {
+        boolean isArray = "".equals(pURI) &&
+            ObjectArraySerializer.ARRAY_TAG.equals(pLocalName);
+        RowHandler rowHandler = startTopLevel(isArray);
+        Pool pool = getPool();
+        if (rowHandler != null) {
+            return new StreamingArrayParser(pConfig, pContext, this, pool,
+                                            rowHandler);
+        }
+        int type = typeOf(pURI, pLocalName);
+        if (type == -1 || (! recycle && type < STRUCT))
+            return super.getParser(pConfig, pContext, pURI, pLocalName);
+        if (! recycle || pool.depth == 0)
+            return newParser(type, pConfig, pContext, pool);
+        // The parsers keep the namespace context of the response they
+        // were made for.  It is only used for namespaced types, which
+        // are not reused.
+        TypeParser[] parsers = pool.at(pool.depth);
+        if (parsers[type] == null)
+            parsers[type] = newParser(type, pConfig, pContext, pool);
+        return parsers[type];
+    }
+
+    static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /**
+     * @return the heap taken by the result of parsing <code>doc</code>
+     */
+    static long kept(XmlRpcClientConfigImpl config,
+                     StreamingTypeFactory typeFactory, byte[] doc)
+                                                    throws Exception {
+        long before = usedHeap();
+        typeFactory.newResponse();
+        Object result = DirectResponseReader.readSax(config, typeFactory,
+            new ByteArrayInputStream(doc));
+        long kept = usedHeap() - before;
+        Reference.reachabilityFence(result);
+        return kept;
+    }
+
+    /**
+     * Measures how much parsing a large listing allocates, and how much
+     * of it the result keeps, with new parsers for each value, with
+     * reused parsers, and with reused parsers and shared keys.  Checks
+     * that the results are equal.
+     *
+     * Usage: StreamingTypeFactory [rows [iterations]]
+     */
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        String[] names = { "new", "recycled", "shared keys" };
+        XmlRpcClient client = new XmlRpcClient();
+        XmlRpcClientConfigImpl config = new XmlRpcClientConfigImpl();
+        client.setConfig(config);
+        StreamingTypeFactory[] factories =
+            new StreamingTypeFactory[names.length];
+        for (int m = 0; m < names.length; m++) {
+            factories[m] = new StreamingTypeFactory(client);
+            factories[m].recycle = m > 0;
+            factories[m].sharedKeys = m > 1;
+        }
+
+        StringBuilder sb = new StringBuilder("<?xml version='1.0'?>\n"+
+            "<methodResponse><params><param><value><array><data>\n");
+        for (int i = 0; i < rows; i++) sb.append(DirectResponseReader.row(i));
+        sb.append("</data></array></value></param></params>"+
+                  "</methodResponse>\n");
+        byte[] doc = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+        Object first = null;
+        boolean equal = true;
+        for (int m = 0; m < names.length; m++) {
+            factories[m].newResponse();
+            Object result = DirectResponseReader.readSax(config, factories[m],
+                new ByteArrayInputStream(doc));
+            if (first == null) first = result;
+            equal &= first.equals(result);
+        }
+        first = null;
+        System.out.println(equal ? "Results are equal" : "Results differ");
+        System.out.println("Parsing "+rows+" rows, "+doc.length/1024+
+                           " KB, "+iterations+" iterations after warmup");
+        for (int round = 0; round < 2; round++) {
+            for (int m = 0; m < names.length; m++) {
+                StreamingTypeFactory typeFactory = factories[m];
+                long bytes = 0, best = Long.MAX_VALUE;
+                for (int i = 0; i < iterations; i++) {
+                    typeFactory.newResponse();
+                    long b0 = allocatedBytes(), t0 = System.nanoTime();
+                    DirectResponseReader.readSax(config, typeFactory,
+                        new ByteArrayInputStream(doc));
+                    best = Math.min(best, System.nanoTime() - t0);
+                    bytes += allocatedBytes() - b0;
+                }
+                if (round == 0) continue;
+                long kept = kept(config, typeFactory, doc);
+                System.out.println(String.format(
+                    "%-11s %6.1f MB allocated, %5.1f MB kept, %4d bytes "+
+                    "kept per row, best %7.2f ms", names[m],
+                    bytes / 1e6 / iterations, kept / 1e6,
+                    kept / rows, best / 1e6));
+            }
+        }
+    }
+}
+
+// arch-tag: 1b7c4e92-5d3a-4f08-b6e1-83a0f2d9c547
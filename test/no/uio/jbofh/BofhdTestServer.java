@@ -0,0 +1,370 @@
+/*
+ * Copyright 2026 University of Oslo, Norway
+ *
+ * This file is part of Cerebrum.
+ *
+ * Cerebrum is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerebrum is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerebrum; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package no.uio.jbofh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small XML-RPC server that answers like bofhd, for the checks run
+ * by <code>ant check</code>.  It answers the calls of a session like
+ * the server of <code>CdsTraining</code>, and also
+ * <code>system.listMethods</code> and <code>system.multicall</code>.
+ * It fails <code>misc_fail</code>, counts the commands it runs in
+ * <code>runs</code>, and with <code>dropMulticallReplies</code> runs
+ * each multicall and then drops the connection without a reply.
+ * <code>Http2TestServer</code> puts HTTP/2 in front of it.
+ */
+class BofhdTestServer {
+    static final String USER = "test";
+    /** command -> times run */
+    static final ConcurrentHashMap runs = new ConcurrentHashMap();
+    static volatile boolean dropMulticallReplies = false;
+
+    /**
+     * A fault to send instead of a value.
+     */
+    static class Fault extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Fault(String msg) {
+            super(msg);
+        }
+    }
+
+    /**
+     * Start the server on a free port of the loopback interface.
+     *
+     * @return the server, which answers at
+     * <code>http://127.0.0.1:port/</code>
+     */
+    static HttpServer startServer() throws IOException {
+        HttpServer server = HttpServer.create(
+            new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", BofhdTestServer::handle);
+        server.start();
+        return server;
+    }
+
+    static String getURL(HttpServer server) {
+        return "http://127.0.0.1:"+server.getAddress().getPort()+"/";
+    }
+
+    private static void handle(HttpExchange ex) throws IOException {
+        InputStream in = ex.getRequestBody();
+        if ("gzip".equals(ex.getRequestHeaders().getFirst("Content-Encoding")))
+            in = new GZIPInputStream(in);
+        byte[] request = in.readAllBytes();
+        String method = "";
+        ArrayList params = new ArrayList();
+        try {
+            method = parse(request, params);
+        } catch (Exception e) {
+            method = "";
+        }
+        byte[] body = response(method, params).getBytes(StandardCharsets.UTF_8);
+        if (dropMulticallReplies && method.equals("system.multicall")) {
+            // As if the connection broke after bofhd ran the batch
+            ex.close();
+            return;
+        }
+        String accept = ex.getRequestHeaders().getFirst("Accept-Encoding");
+        ex.getResponseHeaders().set("Content-Type", "text/xml");
+        if (accept != null && accept.contains("gzip")) {
+            ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+            try (GZIPOutputStream gz = new GZIPOutputStream(zipped)) {
+                gz.write(body);
+            }
+            body = zipped.toByteArray();
+            ex.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        ex.sendResponseHeaders(200, body.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * @return the <code>methodResponse</code> to the
+     * <code>methodCall</code> in <code>request</code>, for other
+     * servers in front of this one
+     */
+    static String answer(byte[] request) {
+        String method;
+        ArrayList params = new ArrayList();
+        try {
+            method = parse(request, params);
+        } catch (Exception e) {
+            method = "";
+        }
+        return response(method, params);
+    }
+
+    /**
+     * Read a <code>methodCall</code>.
+     *
+     * @return the method name, with the parameters added to
+     * <code>params</code>
+     */
+    @SuppressWarnings("unchecked")
+    private static String parse(byte[] request, ArrayList params)
+                                                        throws Exception {
+        Element call = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .parse(new ByteArrayInputStream(request)).getDocumentElement();
+        String method = "";
+        for (Iterator i = children(call).iterator(); i.hasNext(); ) {
+            Element e = (Element) i.next();
+            if (e.getTagName().equals("methodName")) {
+                method = e.getTextContent().trim();
+            } else if (e.getTagName().equals("params")) {
+                for (Iterator j = children(e).iterator(); j.hasNext(); ) {
+                    Element param = (Element) j.next();
+                    params.add(decode((Element) children(param).get(0)));
+                }
+            }
+        }
+        return method;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayList children(Element parent) {
+        ArrayList ret = new ArrayList();
+        for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n instanceof Element) ret.add(n);
+        }
+        return ret;
+    }
+
+    /**
+     * @return the value of a <code>value</code> element
+     */
+    @SuppressWarnings("unchecked")
+    private static Object decode(Element value) {
+        ArrayList typed = children(value);
+        if (typed.isEmpty()) return value.getTextContent();
+        Element t = (Element) typed.get(0);
+        switch (t.getTagName()) {
+            case "struct":
+                LinkedHashMap m = new LinkedHashMap();
+                for (Iterator i = children(t).iterator(); i.hasNext(); ) {
+                    String name = null;
+                    Object v = null;
+                    for (Iterator j = children((Element) i.next()).iterator();
+                            j.hasNext(); ) {
+                        Element e = (Element) j.next();
+                        if (e.getTagName().equals("name")) {
+                            name = e.getTextContent();
+                        } else {
+                            v = decode(e);
+                        }
+                    }
+                    m.put(name, v);
+                }
+                return m;
+            case "array":
+                ArrayList l = new ArrayList();
+                for (Iterator i = children(t).iterator(); i.hasNext(); ) {
+                    for (Iterator j = children((Element) i.next()).iterator();
+                            j.hasNext(); )
+                        l.add(decode((Element) j.next()));
+                }
+                return l;
+            case "int":
+            case "i4":
+                return Integer.valueOf(t.getTextContent().trim());
+            case "boolean":
+                return "1".equals(t.getTextContent().trim());
+            default:
+                return t.getTextContent();
+        }
+    }
+
+    /**
+     * @return a bofhd-like answer to <code>method</code>
+     */
+    private static String response(String method, List params) {
+        StringBuilder sb = new StringBuilder(
+            "<?xml version='1.0'?>\n<methodResponse>");
+        try {
+            Object value = value(method, params);
+            sb.append("<params><param>");
+            encode(value, sb);
+            sb.append("</param></params>");
+        } catch (Fault f) {
+            sb.append("<fault>");
+            encode(map("faultCode", 1, "faultString", f.getMessage()), sb);
+            sb.append("</fault>");
+        }
+        return sb.append("</methodResponse>\n").toString();
+    }
+
+    /**
+     * @return the value of a call of <code>method</code>
+     * @exception Fault if the call fails
+     */
+    @SuppressWarnings("unchecked")
+    private static Object value(String method, List params) {
+        Object value;
+        switch (method) {
+            case "login":
+                value = "test-session";
+                break;
+            case "get_commands":
+                value = map(
+                    "user_info", list(list("user", "info"), list(map(
+                        "type", "accountName", "prompt", "Account name"))),
+                    "group_list", list(list("group", "list"), list(map(
+                        "type", "groupName", "prompt", "Group"))));
+                break;
+            case "get_format_suggestion":
+                value = "user_info".equals(params.get(0)) ? map(
+                    "str_vars", list(
+                        list("Username:      %s\nOwner:         %s",
+                             list("username", "owner")),
+                        list("Expire:        %s",
+                             list("expire:date:yyyy-MM-dd")))) : map(
+                    "hdr", "Name       Expire",
+                    "str_vars", list(
+                        list("%-10s %s", list("name", "expire:date:yyyy-MM-dd"))));
+                break;
+            case "run_command":
+                String cmd = String.valueOf(params.get(1));
+                ((AtomicInteger) runs.computeIfAbsent(cmd,
+                    k -> new AtomicInteger())).incrementAndGet();
+                if (cmd.equals("misc_fail")) {
+                    throw new Fault("Cerebrum.modules.bofhd.errors."+
+                        "CerebrumError:CerebrumError: failed on purpose");
+                } else if (cmd.equals("user_info")) {
+                    value = map("username", params.size() > 2 ?
+                        params.get(2) : USER, "owner", ":None",
+                        "expire", new Date());
+                } else if (cmd.equals("group_list")) {
+                    value = rows(200);
+                } else {
+                    value = "OK, "+cmd;
+                }
+                break;
+            case "help":
+                value = "There is no help in tests";
+                break;
+            case "system.listMethods":
+                value = list("login", "logout", "get_commands",
+                    "get_format_suggestion", "run_command", "help",
+                    "system.listMethods", "system.multicall");
+                break;
+            case "system.multicall":
+                ArrayList results = new ArrayList();
+                for (Iterator e = ((List) params.get(0)).iterator(); e.hasNext(); ) {
+                    Map call = (Map) e.next();
+                    try {
+                        results.add(list(value((String) call.get("methodName"),
+                                               (List) call.get("params"))));
+                    } catch (Fault f) {
+                        results.add(map("faultCode", 1, "faultString",
+                                        f.getMessage()));
+                    }
+                }
+                value = results;
+                break;
+            default:
+                value = "";
+        }
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayList rows(int n) {
+        ArrayList rows = new ArrayList(n);
+        for (int i = 0; i < n; i++) {
+            rows.add(map("name", String.format("g%05d", i), "expire",
+                          i % 4 == 0 ? ":None" : new Date(i * 86400000L)));
+        }
+        return rows;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static LinkedHashMap map(Object... kv) {
+        LinkedHashMap m = new LinkedHashMap();
+        for (int i = 0; i < kv.length; i += 2) m.put(kv[i], kv[i + 1]);
+        return m;
+    }
+
+    private static List list(Object... values) {
+        return Arrays.asList(values);
+    }
+
+    private static void encode(Object v, StringBuilder sb) {
+        sb.append("<value>");
+        if (v instanceof Map) {
+            sb.append("<struct>");
+            for (Iterator e = ((Map) v).entrySet().iterator(); e.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) e.next();
+                sb.append("<member><name>").append(entry.getKey())
+                    .append("</name>");
+                encode(entry.getValue(), sb);
+                sb.append("</member>");
+            }
+            sb.append("</struct>");
+        } else if (v instanceof List) {
+            sb.append("<array><data>");
+            for (Iterator e = ((List) v).iterator(); e.hasNext(); )
+                encode(e.next(), sb);
+            sb.append("</data></array>");
+        } else if (v instanceof Integer) {
+            sb.append("<int>").append(v).append("</int>");
+        } else if (v instanceof Date) {
+            sb.append("<dateTime.iso8601>")
+                .append(new SimpleDateFormat("yyyyMMdd'T'HH:mm:ss").format((Date) v))
+                .append("</dateTime.iso8601>");
+        } else {
+            sb.append("<string>").append(v.toString().replace("&", "&amp;")
+                .replace("<", "&lt;")).append("</string>");
+        }
+        sb.append("</value>");
+    }
+}
+
+// arch-tag: 8075de78-8d73-46d6-a08b-7a3e1ce03c47
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2026 University of Oslo, Norway
+ *
+ * This file is part of Cerebrum.
+ *
+ * Cerebrum is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerebrum is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerebrum; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package no.uio.jbofh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks that the responses of a <code>CommandBatcher</code> batch go
+ * to the right commands, and that a batch whose reply is lost is not
+ * run again, against <code>BofhdTestServer</code>:
+ * <code>CommandBatcherCheck [transport.type]</code>.
+ */
+class CommandBatcherCheck {
+    private static int failures = 0;
+
+    private static void check(String what, boolean ok) {
+        System.out.println((ok ? "ok      " : "FAILED  ")+what);
+        if (! ok) failures++;
+    }
+
+    private static int runs(String cmd) {
+        AtomicInteger n = (AtomicInteger) BofhdTestServer.runs.get(cmd);
+        return n == null ? 0 : n.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args) throws Exception {
+        HttpServer server = BofhdTestServer.startServer();
+        HashMap props = new HashMap();
+        props.put("cache.commands.enable", "false");
+        props.put("formats.prefetch", "false");
+        props.put("transport.multicall", "true");
+        if (args.length > 0) props.put("transport.type", args[0]);
+        props.put("transport.retry.commands", "[a-z]+_(info|list)");
+        JBofh jb = new JBofh(false, false, "/log4j_normal.properties",
+                             BofhdTestServer.getURL(server), props, null,
+                             new StartupTimings());
+        jb.initialLogin(BofhdTestServer.USER, BofhdTestServer.USER);
+        BofhdConnection bc = jb.bc;
+        check("the server offers system.multicall", bc.useMulticall());
+
+        // Every seventh command fails
+        int n = 200;
+        CommandBatcher batcher = new CommandBatcher(bc, 20, 20, 4);
+        CompletableFuture[] results = new CompletableFuture[n];
+        for (int i = 0; i < n; i++) {
+            results[i] = batcher.submit(i % 7 == 3 ? "misc_fail" : "user_info",
+                new ArrayList(Arrays.asList("u"+i)));
+        }
+        int right = 0;
+        for (int i = 0; i < n; i++) {
+            try {
+                Object r = results[i].get();
+                if (i % 7 != 3 && ("u"+i).equals(((Map) r).get("username")))
+                    right++;
+            } catch (ExecutionException e) {
+                if (i % 7 == 3 && e.getCause() instanceof BofhdException &&
+                        e.getCause().getMessage().contains("failed on purpose"))
+                    right++;
+            }
+        }
+        batcher.shutdown();
+        check(right+" of "+n+" responses and faults went to their command "+
+              "in "+batcher.getBatches()+" requests",
+              right == n && batcher.getBatches() < n);
+
+        // The batch is run, but the reply is lost
+        BofhdTestServer.runs.clear();
+        BofhdTestServer.dropMulticallReplies = true;
+        ArrayList calls = new ArrayList();
+        calls.add(new ArrayList(Arrays.asList("group_add", "u1", "g1")));
+        calls.add(new ArrayList(Arrays.asList("user_info", "u2")));
+        ArrayList resp = bc.sendMulticall(calls);
+        BofhdTestServer.dropMulticallReplies = false;
+        check("a mutating command is not sent again after a lost reply",
+              resp.get(0) instanceof BofhdException &&
+              runs("group_add") == 1);
+        check("a read-only command is sent again after a lost reply",
+              resp.get(1) instanceof Map && runs("user_info") == 2);
+
+        jb.bc.logout();
+        server.stop(0);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
+
+// arch-tag: eda25f35-e130-42ca-a4e0-bd9c2ab6447e
@@ -0,0 +1,498 @@
+/*
+ * Copyright 2026 University of Oslo, Norway
+ *
+ * This file is part of Cerebrum.
+ *
+ * Cerebrum is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerebrum is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerebrum; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package no.uio.jbofh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A minimal HTTP/2 server over TLS, in front of
+ * <code>BofhdTestServer</code>, to check
+ * <code>Http2TransportFactory</code>; run by <code>ant check</code>.
+ *
+ * It speaks just enough of RFC 7540 for the JDK client: the settings
+ * handshake, flow control, ping and one thread per stream.  The
+ * request headers are not decoded, as every stream is taken to be an
+ * XML-RPC POST.  The certificate is made with <code>keytool</code>
+ * for each run.
+ */
+class Http2TestServer {
+    static final int DATA = 0, HEADERS = 1, RST_STREAM = 3, SETTINGS = 4,
+        PING = 6, GOAWAY = 7, WINDOW_UPDATE = 8;
+    static final int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4,
+        PADDED = 0x8;
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n"
+        .getBytes(StandardCharsets.US_ASCII);
+    private static final String PASSWORD = "jbofh-test";
+
+    SSLServerSocket serverSocket;
+    /** Milliseconds to wait before each response */
+    volatile int delay = 0;
+    /** If set, every response is a redirect to it */
+    volatile String redirect = null;
+    /** If true, responses stop after the first bytes of the body */
+    volatile boolean stall = false;
+    final AtomicInteger connections = new AtomicInteger();
+    final AtomicInteger streams = new AtomicInteger();
+    /** The most streams answered at once on one connection */
+    final AtomicInteger maxActive = new AtomicInteger();
+    /** The certificate of the server, for the client to trust */
+    File certificate;
+
+    /**
+     * One connection, read by its own thread.
+     */
+    class Connection implements Runnable {
+        private final SSLSocket socket;
+        private final OutputStream out;
+        private final HashMap bodies = new HashMap();
+        /** Send windows of the open streams */
+        private final HashMap windows = new HashMap();
+        private final AtomicInteger active = new AtomicInteger();
+        private int connectionWindow = 65535, initialWindow = 65535;
+        private boolean closed = false;
+
+        Connection(SSLSocket socket) throws IOException {
+            this.socket = socket;
+            out = socket.getOutputStream();
+        }
+
+        private void send(int type, int flags, int stream, byte[] payload,
+                          int off, int len) throws IOException {
+            byte[] h = { (byte) (len >> 16), (byte) (len >> 8), (byte) len,
+                (byte) type, (byte) flags, (byte) (stream >> 24),
+                (byte) (stream >> 16), (byte) (stream >> 8), (byte) stream };
+            synchronized (out) {
+                out.write(h);
+                out.write(payload, off, len);
+                out.flush();
+            }
+        }
+
+        private void send(int type, int flags, int stream, byte[] payload)
+                                                        throws IOException {
+            send(type, flags, stream, payload, 0, payload.length);
+        }
+
+        private byte[] int32(int i) {
+            return new byte[] { (byte) (i >> 24), (byte) (i >> 16),
+                (byte) (i >> 8), (byte) i };
+        }
+
+        /**
+         * A header field with an indexed name, not added to the
+         * dynamic table.
+         */
+        private void literal(ByteArrayOutputStream hb, int index,
+                             String value) {
+            if (index < 15) {
+                hb.write(index);
+            } else {
+                hb.write(15);
+                hb.write(index - 15);
+            }
+            byte[] v = value.getBytes(StandardCharsets.US_ASCII);
+            hb.write(v.length);
+            hb.write(v, 0, v.length);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void respond(int stream, byte[] request) {
+            int n = active.incrementAndGet();
+            maxActive.accumulateAndGet(n, Math::max);
+            try {
+                if (delay > 0) Thread.sleep(delay);
+                ByteArrayOutputStream hb = new ByteArrayOutputStream();
+                String location = redirect;
+                if (location != null) {
+                    literal(hb, 8, "307");              // :status
+                    literal(hb, 46, location);          // location
+                    literal(hb, 28, "0");               // content-length
+                    send(HEADERS, END_HEADERS | END_STREAM, stream,
+                         hb.toByteArray());
+                    return;
+                }
+                byte[] body = BofhdTestServer.answer(request)
+                    .getBytes(StandardCharsets.UTF_8);
+                hb.write(0x88);                         // :status 200
+                literal(hb, 31, "text/xml");            // content-type
+                literal(hb, 28, String.valueOf(body.length));
+                send(HEADERS, END_HEADERS, stream, hb.toByteArray());
+                int pos = 0, end = stall ? 10 : body.length;
+                while (pos < end) {
+                    int len;
+                    synchronized (this) {
+                        while (! closed && windows.containsKey(stream) &&
+                               (connectionWindow <= 0 ||
+                                (Integer) windows.get(stream) <= 0)) {
+                            wait();
+                        }
+                        if (closed || ! windows.containsKey(stream)) return;
+                        len = Math.min(Math.min(16384, end - pos),
+                            Math.min(connectionWindow,
+                                     (Integer) windows.get(stream)));
+                        connectionWindow -= len;
+                        windows.put(stream, (Integer) windows.get(stream) - len);
+                    }
+                    boolean last = pos + len == body.length;
+                    send(DATA, last ? END_STREAM : 0, stream, body, pos, len);
+                    pos += len;
+                }
+            } catch (IOException | InterruptedException e) {
+                // The client went away
+            } finally {
+                active.decrementAndGet();
+                synchronized (this) {
+                    windows.remove(stream);
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private synchronized void updateWindow(int stream, int increment) {
+            if (stream == 0) {
+                connectionWindow += increment;
+            } else if (windows.containsKey(stream)) {
+                windows.put(stream, (Integer) windows.get(stream) + increment);
+            }
+            notifyAll();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void start(int stream) {
+            final byte[] request = ((ByteArrayOutputStream) bodies.remove(
+                stream)).toByteArray();
+            Thread t = new Thread(() -> respond(stream, request),
+                                  "h2-stream-"+stream);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void run() {
+            try {
+                DataInputStream in = new DataInputStream(
+                    socket.getInputStream());
+                byte[] preface = new byte[PREFACE.length];
+                in.readFully(preface);
+                if (! Arrays.equals(preface, PREFACE)) return;
+                // At most 100 streams, with 1 MB windows
+                send(SETTINGS, 0, 0, new byte[] { 0, 3, 0, 0, 0, 100,
+                    0, 4, 0, 16, 0, 0 });
+                send(WINDOW_UPDATE, 0, 0, int32(1 << 24));
+                while (true) {
+                    byte[] h = new byte[9];
+                    in.readFully(h);
+                    int len = (h[0] & 0xff) << 16 | (h[1] & 0xff) << 8 |
+                        (h[2] & 0xff);
+                    int type = h[3], flags = h[4] & 0xff;
+                    int stream = ((h[5] & 0x7f) << 24 | (h[6] & 0xff) << 16 |
+                                  (h[7] & 0xff) << 8 | (h[8] & 0xff));
+                    byte[] payload = new byte[len];
+                    in.readFully(payload);
+                    if (type == SETTINGS && (flags & ACK) == 0) {
+                        for (int i = 0; i + 6 <= len; i += 6) {
+                            int id = (payload[i] & 0xff) << 8 |
+                                (payload[i + 1] & 0xff);
+                            int value = (payload[i + 2] & 0xff) << 24 |
+                                (payload[i + 3] & 0xff) << 16 |
+                                (payload[i + 4] & 0xff) << 8 |
+                                (payload[i + 5] & 0xff);
+                            if (id != 4) continue;
+                            synchronized (this) {
+                                for (Object s : windows.keySet()) {
+                                    windows.put(s, (Integer) windows.get(s) +
+                                                value - initialWindow);
+                                }
+                                initialWindow = value;
+                                notifyAll();
+                            }
+                        }
+                        send(SETTINGS, ACK, 0, new byte[0]);
+                    } else if (type == PING && (flags & ACK) == 0) {
+                        send(PING, ACK, 0, payload);
+                    } else if (type == WINDOW_UPDATE) {
+                        updateWindow(stream, (payload[0] & 0x7f) << 24 |
+                                     (payload[1] & 0xff) << 16 |
+                                     (payload[2] & 0xff) << 8 |
+                                     (payload[3] & 0xff));
+                    } else if (type == HEADERS) {
+                        streams.incrementAndGet();
+                        synchronized (this) {
+                            windows.put(stream, initialWindow);
+                        }
+                        bodies.put(stream, new ByteArrayOutputStream());
+                        if ((flags & END_STREAM) != 0) start(stream);
+                    } else if (type == DATA) {
+                        int off = 0, n = len;
+                        if ((flags & PADDED) != 0) {
+                            off = 1;
+                            n = len - 1 - (payload[0] & 0xff);
+                        }
+                        ByteArrayOutputStream body =
+                            (ByteArrayOutputStream) bodies.get(stream);
+                        if (body != null) body.write(payload, off, n);
+                        if (len > 0) {
+                            send(WINDOW_UPDATE, 0, 0, int32(len));
+                            if ((flags & END_STREAM) == 0)
+                                send(WINDOW_UPDATE, 0, stream, int32(len));
+                        }
+                        if ((flags & END_STREAM) != 0 && body != null)
+                            start(stream);
+                    } else if (type == RST_STREAM) {
+                        synchronized (this) {
+                            windows.remove(stream);
+                            notifyAll();
+                        }
+                    } else if (type == GOAWAY) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                // Closed
+            } finally {
+                synchronized (this) {
+                    closed = true;
+                    notifyAll();
+                }
+                try {
+                    socket.close();
+                } catch (IOException e) { }  // Ignore
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void keytool(String... args)
+                                throws IOException, InterruptedException {
+        ArrayList cmd = new ArrayList();
+        cmd.add(System.getProperty("java.home")+File.separator+"bin"+
+                File.separator+"keytool");
+        cmd.addAll(Arrays.asList(args));
+        Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        String output = new String(p.getInputStream().readAllBytes());
+        if (p.waitFor() != 0)
+            throw new IOException("keytool failed: "+output);
+    }
+
+    /**
+     * Start the server on a free port of the loopback interface, with
+     * a new self-signed certificate.
+     */
+    void start() throws Exception {
+        File dir = Files.createTempDirectory("jbofh-h2").toFile();
+        File keystore = new File(dir, "server.p12");
+        certificate = new File(dir, "server.pem");
+        dir.deleteOnExit();
+        keystore.deleteOnExit();
+        certificate.deleteOnExit();
+        keytool("-genkeypair", "-keystore", keystore.getPath(), "-storetype",
+                "PKCS12", "-storepass", PASSWORD, "-alias", "bofhd",
+                "-keyalg", "RSA", "-keysize", "2048", "-validity", "2",
+                "-dname", "CN=127.0.0.1", "-ext", "san=ip:127.0.0.1");
+        keytool("-exportcert", "-rfc", "-keystore", keystore.getPath(),
+                "-storepass", PASSWORD, "-alias", "bofhd",
+                "-file", certificate.getPath());
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(keystore)) {
+            ks.load(in, PASSWORD.toCharArray());
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(
+            KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, PASSWORD.toCharArray());
+        SSLContext sc = SSLContext.getInstance("TLS");
+        sc.init(kmf.getKeyManagers(), null, null);
+        serverSocket = (SSLServerSocket) sc.getServerSocketFactory()
+            .createServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        SSLParameters params = serverSocket.getSSLParameters();
+        params.setApplicationProtocols(new String[] { "h2" });
+        serverSocket.setSSLParameters(params);
+        Thread t = new Thread(this::accept, "h2-accept");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void accept() {
+        while (true) {
+            try {
+                Socket s = serverSocket.accept();
+                SSLSocket ssl = (SSLSocket) s;
+                try {
+                    ssl.startHandshake();
+                } catch (IOException e) {
+                    ssl.close();
+                    continue;
+                }
+                if (! "h2".equals(ssl.getApplicationProtocol())) {
+                    ssl.close();
+                    continue;
+                }
+                connections.incrementAndGet();
+                Thread t = new Thread(new Connection(ssl), "h2-connection");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    String getURL() {
+        return "https://127.0.0.1:"+serverSocket.getLocalPort()+"/";
+    }
+
+    private static int failures = 0;
+
+    private static void check(String what, boolean ok) {
+        System.out.println((ok ? "ok      " : "FAILED  ")+what);
+        if (! ok) failures++;
+    }
+
+    /**
+     * Run <code>n</code> commands at once.
+     *
+     * @return the number of right responses
+     */
+    @SuppressWarnings("unchecked")
+    private static int runConcurrently(BofhdConnection bc, int n)
+                                                        throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(n);
+        Future[] results = new Future[n];
+        for (int i = 0; i < n; i++) {
+            final String name = "u"+i;
+            results[i] = executor.submit(() -> bc.sendCommand("user_info",
+                new ArrayList(Arrays.asList(name))));
+        }
+        int right = 0;
+        for (int i = 0; i < n; i++) {
+            Object r = results[i].get(60, TimeUnit.SECONDS);
+            if (("u"+i).equals(((Map) r).get("username"))) right++;
+        }
+        executor.shutdown();
+        return right;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JBofh login(String url, String cafile) throws Exception {
+        HashMap props = new HashMap();
+        props.put("cache.commands.enable", "false");
+        props.put("formats.prefetch", "false");
+        props.put("transport.type", "http2");
+        props.put("transport.replyTimeout", "2");
+        props.put("transport.retry.max", "0");
+        JBofh jb = new JBofh(false, false, "/log4j_normal.properties", url,
+                             props, cafile, new StartupTimings());
+        jb.initialLogin(BofhdTestServer.USER, BofhdTestServer.USER);
+        return jb;
+    }
+
+    /**
+     * Check that concurrent commands share one HTTP/2 connection, that
+     * HTTP/1.1 servers still work, that redirects are not followed and
+     * that a stalled body times out.
+     */
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args) throws Exception {
+        HttpServer plain = BofhdTestServer.startServer();
+        Http2TestServer server = new Http2TestServer();
+        server.start();
+
+        JBofh jb = login(server.getURL(), server.certificate.getPath());
+        BofhdConnection bc = jb.bc;
+        // The startup requests may each have opened a connection
+        int connections = server.connections.get();
+        int n = 40;
+        server.delay = 200;
+        long start = System.currentTimeMillis();
+        int right = runConcurrently(bc, n);
+        long ms = System.currentTimeMillis() - start;
+        check(right+" of "+n+" concurrent commands answered over HTTP/2 in "+
+              ms+" ms", right == n);
+        check("no new connections, and up to "+server.maxActive.get()+
+              " streams at once on one",
+              server.connections.get() == connections &&
+              server.maxActive.get() > n / 2);
+        check(bc.http2.getStats(), bc.http2.getStats().contains(" 0 over HTTP/1.1"));
+
+        server.delay = 0;
+        server.redirect = BofhdTestServer.getURL(plain);
+        try {
+            bc.sendCommand("user_info", new ArrayList(Arrays.asList("u1")));
+            check("a redirect is not followed", false);
+        } catch (BofhdException e) {
+            check("a redirect is not followed: "+e.getMessage(),
+                  e.getMessage().contains("307"));
+        }
+        server.redirect = null;
+
+        server.stall = true;
+        start = System.currentTimeMillis();
+        try {
+            bc.sendCommand("user_info", new ArrayList(Arrays.asList("u1")));
+            check("a stalled body times out", false);
+        } catch (BofhdException e) {
+            ms = System.currentTimeMillis() - start;
+            check("a stalled body times out after "+ms+" ms: "+e.getMessage(),
+                  ms < 4000 && e.getMessage().contains("timed out"));
+        }
+        server.stall = false;
+
+        JBofh jb1 = login(BofhdTestServer.getURL(plain), null);
+        right = runConcurrently(jb1.bc, 20);
+        check(right+" of 20 concurrent commands answered over HTTP/1.1",
+              right == 20);
+        check(jb1.bc.http2.getStats(),
+              jb1.bc.http2.getStats().contains(" 0 over HTTP/2"));
+
+        plain.stop(0);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
+
+// arch-tag: 8d4b2f6e-1c7a-4e93-b5d0-3a9f6e2c7b18